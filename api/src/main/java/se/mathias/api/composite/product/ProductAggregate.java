@@ -1,28 +1,44 @@
 package se.mathias.api.composite.product;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import java.util.List;
 
+/**
+ * The composite product info. Parts that weren't selected with the fields parameter are null and left out
+ * of the JSON.
+ * <p>
+ * Recommendations and reviews only hold the first page. If there are more, the cursor next to them fetches
+ * the next page from the paging endpoints of {@link ProductCompositeService}; it is left out when the list
+ * is complete.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class ProductAggregate {
   private final int productId;
   private final String name;
-  private final int weight;
+  private final Integer weight;
   private final List<RecommendationSummary> recommendations;
+  private final String recommendationsCursor;
   private final List<ReviewSummary> reviews;
+  private final String reviewsCursor;
   private final ServiceAddresses serviceAddresses;
 
   public ProductAggregate(
     int productId,
     String name,
-    int weight,
+    Integer weight,
     List<RecommendationSummary> recommendations,
+    String recommendationsCursor,
     List<ReviewSummary> reviews,
+    String reviewsCursor,
     ServiceAddresses serviceAddresses) {
 
     this.productId = productId;
     this.name = name;
     this.weight = weight;
     this.recommendations = recommendations;
+    this.recommendationsCursor = recommendationsCursor;
     this.reviews = reviews;
+    this.reviewsCursor = reviewsCursor;
     this.serviceAddresses = serviceAddresses;
   }
 
@@ -34,7 +50,7 @@ public class ProductAggregate {
     return name;
   }
 
-  public int getWeight() {
+  public Integer getWeight() {
     return weight;
   }
 
@@ -42,10 +58,18 @@ public class ProductAggregate {
     return recommendations;
   }
 
+  public String getRecommendationsCursor() {
+    return recommendationsCursor;
+  }
+
   public List<ReviewSummary> getReviews() {
     return reviews;
   }
 
+  public String getReviewsCursor() {
+    return reviewsCursor;
+  }
+
   public ServiceAddresses getServiceAddresses() {
     return serviceAddresses;
   }
@@ -1,18 +1,107 @@
 package se.mathias.api.composite.product;
 
+import java.util.List;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface ProductCompositeService {
 
   /**
-   * Sample usage: "curl $HOST:$PORT/product-composite/1".
+   * Sample usage: "curl $HOST:$PORT/product-composite/1" or "curl $HOST:$PORT/product-composite/1?fields=name,reviews".
+   * <p>
+   * The response has a weak ETag derived from the content hashes of the product, recommendations and reviews
+   * it was made of, so that a client that polls can send it back in an If-None-Match header and gets a 304
+   * without a body as long as none of them changed, whichever replica answers. The service addresses
+   * aren't covered. A response that had to do without the recommendations or reviews, since they failed or
+   * were too slow, has no ETag.
    *
    * @param productId Id of the product
-   * @return the composite product info, if found, else null
+   * @param fields the parts of the product info to return, any of name, weight, recommendations, reviews and
+   *               serviceAddresses. The productId is always returned. If left out, all parts are returned.
+   * @param ifNoneMatch The entity tags of the product info the client already has, if any
+   * @return the composite product info with the first page of recommendations and reviews, if found, else a
+   *     404 error
    */
   @GetMapping(
     value = "/product-composite/{productId}",
     produces = "application/json")
-  ProductAggregate getProduct(@PathVariable int productId);
+  Mono<ResponseEntity<ProductAggregate>> getProduct(
+    @PathVariable int productId,
+    @RequestParam(value = "fields", required = false) List<String> fields,
+    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/product-composite/1/recommendations?cursor=AAAAAwAAAGU".
+   * <p>
+   * Pages through the recommendations of a product, starting from the recommendationsCursor of its
+   * {@link ProductAggregate}, without fetching the product again.
+   *
+   * @param productId Id of the product
+   * @param limit Maximum number of recommendations in the page, the page size of the aggregate if left out
+   * @param cursor Where to continue, the first page is returned if it is left out
+   * @return the page of recommendations, highest rate first, with the cursor of the next page if there is one
+   */
+  @GetMapping(
+    value = "/product-composite/{productId}/recommendations",
+    produces = "application/json")
+  Mono<SummaryPage<RecommendationSummary>> getRecommendations(
+    @PathVariable int productId,
+    @RequestParam(value = "limit", required = false) Integer limit,
+    @RequestParam(value = "cursor", required = false) String cursor);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/product-composite/1/reviews?cursor=AAAAZQ".
+   * <p>
+   * Pages through the reviews of a product, starting from the reviewsCursor of its {@link ProductAggregate},
+   * without fetching the product again.
+   *
+   * @param productId Id of the product
+   * @param limit Maximum number of reviews in the page, the page size of the aggregate if left out
+   * @param cursor Where to continue, the first page is returned if it is left out
+   * @return the page of reviews, in reviewId order, with the cursor of the next page if there is one
+   */
+  @GetMapping(
+    value = "/product-composite/{productId}/reviews",
+    produces = "application/json")
+  Mono<SummaryPage<ReviewSummary>> getReviews(
+    @PathVariable int productId,
+    @RequestParam(value = "limit", required = false) Integer limit,
+    @RequestParam(value = "cursor", required = false) String cursor);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/product-composite?productIds=1,2,3".
+   * <p>
+   * Costs one call per core service, regardless of the number of products.
+   *
+   * @param productIds Ids of the products
+   * @return the composite product info of the products that were found, in request order
+   */
+  @GetMapping(
+    value = "/product-composite",
+    produces = "application/json")
+  Flux<ProductAggregate> getProducts(
+    @RequestParam(value = "productIds", required = true) List<Integer> productIds);
+
+  /**
+   * Sample usage: "curl -H 'Accept: application/x-ndjson' '$HOST:$PORT/product-composite/stream?fromId=1&toId=100000'".
+   * <p>
+   * Streams the products as they are fetched, as newline delimited JSON or server-sent events. The products
+   * are fetched in chunks with a bounded number of chunks in flight, and no faster than the client reads them.
+   *
+   * @param fromId Id of the first product in the range
+   * @param toId Id of the last product in the range, inclusive
+   * @return the composite product info of the products in the range that were found, in id order
+   */
+  @GetMapping(
+    value = "/product-composite/stream",
+    produces = {"application/x-ndjson", "text/event-stream"})
+  Flux<ProductAggregate> getProductStream(
+    @RequestParam(value = "fromId", required = true) int fromId,
+    @RequestParam(value = "toId", required = true) int toId);
 }
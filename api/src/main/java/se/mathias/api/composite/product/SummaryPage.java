@@ -0,0 +1,26 @@
+package se.mathias.api.composite.product;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.List;
+
+/**
+ * A page of recommendation or review summaries. The next cursor is left out of the JSON on the last page.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SummaryPage<T> {
+  private final List<T> items;
+  private final String nextCursor;
+
+  public SummaryPage(List<T> items, String nextCursor) {
+    this.items = items;
+    this.nextCursor = nextCursor;
+  }
+
+  public List<T> getItems() {
+    return items;
+  }
+
+  public String getNextCursor() {
+    return nextCursor;
+  }
+}
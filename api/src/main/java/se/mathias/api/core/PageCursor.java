@@ -0,0 +1,54 @@
+package se.mathias.api.core;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import se.mathias.api.exceptions.InvalidInputException;
+
+/**
+ * Continuation cursors for paged lists. A cursor holds the sort key of the last item of a page, so the next
+ * page starts right after it no matter how many items were added or removed in between, and fetching it costs
+ * a seek instead of skipping all earlier pages.
+ * <p>
+ * Cursors are opaque to clients: URL-safe base64 of the key values. Reviews are keyed on reviewId and
+ * recommendations on rate and recommendationId.
+ */
+public final class PageCursor {
+
+  private PageCursor() {}
+
+  /**
+   * Encodes the sort key of the last item of a page.
+   */
+  public static String of(int... keys) {
+    ByteBuffer buffer = ByteBuffer.allocate(keys.length * Integer.BYTES);
+    for (int key : keys) {
+      buffer.putInt(key);
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+  }
+
+  /**
+   * Decodes a cursor made by {@link #of(int...)}.
+   *
+   * @param keyCount the number of values in the sort key
+   * @throws InvalidInputException if the cursor is malformed
+   */
+  public static int[] parse(String cursor, int keyCount) {
+    byte[] bytes;
+    try {
+      bytes = Base64.getUrlDecoder().decode(cursor);
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidInputException("Invalid cursor: " + cursor);
+    }
+    if (bytes.length != keyCount * Integer.BYTES) {
+      throw new InvalidInputException("Invalid cursor: " + cursor);
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int[] keys = new int[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = buffer.getInt();
+    }
+    return keys;
+  }
+}
@@ -1,18 +1,97 @@
 package se.mathias.api.core.product;
 
+import java.util.List;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface ProductService {
 
   /**
    * Sample usage: "curl $HOST:$PORT/product/1".
+   * <p>
+   * The response has a weak ETag made from a hash of the product's fields, so it changes with every update
+   * that changes them and is the same on every replica. The service address isn't covered. A request with
+   * a matching If-None-Match header gets a 304 without a body.
    *
    * @param productId Id of the product
-   * @return the product, if found, else null
+   * @param ifNoneMatch The entity tags of the product the client already has, if any
+   * @return the product, if found, else a 404 error
    */
   @GetMapping(
     value = "/product/{productId}",
+    produces = {"application/json", "application/x-jackson-smile"})
+  Mono<ResponseEntity<Product>> getProduct(
+    @PathVariable int productId,
+    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+  /**
+   * Gets a product unconditionally.
+   *
+   * @param productId Id of the product
+   * @return the product, if found, else a 404 error
+   */
+  default Mono<Product> getProduct(int productId) {
+    return getProduct(productId, null).mapNotNull(HttpEntity::getBody);
+  }
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/product?productIds=1,2,3".
+   *
+   * @param productIds Ids of the products
+   * @return the products that were found, unknown products are left out
+   */
+  @GetMapping(
+    value = "/product",
+    produces = {"application/json", "application/x-ndjson", "application/x-jackson-smile"})
+  Flux<Product> getProducts(
+    @RequestParam(value = "productIds", required = true) List<Integer> productIds);
+
+  /**
+   * Sample usage: "curl -X POST $HOST:$PORT/product -H "Content-Type: application/json" --data
+   * '{"productId":123,"name":"product 123","weight":456}'".
+   *
+   * @param body A JSON representation of the new product
+   * @return the created product, or a 422 error if a product with the same id already exists
+   */
+  @PostMapping(
+    value = "/product",
+    consumes = "application/json",
     produces = "application/json")
-  Product getProduct(@PathVariable int productId);
+  Mono<Product> createProduct(@RequestBody Product body);
+
+  /**
+   * Sample usage: "curl -X PUT $HOST:$PORT/product/123 -H "Content-Type: application/json" --data
+   * '{"productId":123,"name":"product 123","weight":789}'".
+   *
+   * @param productId Id of the product
+   * @param body A JSON representation of the new state of the product
+   * @return the updated product, or a 404 error if it doesn't exist
+   */
+  @PutMapping(
+    value = "/product/{productId}",
+    consumes = "application/json",
+    produces = "application/json")
+  Mono<Product> updateProduct(@PathVariable int productId, @RequestBody Product body);
+
+  /**
+   * Sample usage: "curl -X DELETE $HOST:$PORT/product/123".
+   * <p>
+   * Deleting a product that doesn't exist is not an error, so the call can safely be retried.
+   *
+   * @param productId Id of the product
+   * @return completes when the product is deleted
+   */
+  @DeleteMapping(value = "/product/{productId}")
+  Mono<Void> deleteProduct(@PathVariable int productId);
 }
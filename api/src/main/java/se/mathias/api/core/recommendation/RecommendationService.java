@@ -1,20 +1,134 @@
 package se.mathias.api.core.recommendation;
 
 import java.util.List;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface RecommendationService {
 
   /**
-   * Sample usage: "curl $HOST:$PORT/recommendation?productId=1".
+   * Sample usage: "curl $HOST:$PORT/recommendation?productId=1" or
+   * "curl $HOST:$PORT/recommendation?productId=1&limit=10&cursor=AAAAAwAAAGU".
+   * <p>
+   * To get the next page, pass a cursor made with {@link se.mathias.api.core.PageCursor#of(int...)} from the
+   * rate and recommendationId of the last recommendation of the current page.
+   * <p>
+   * The response has a weak ETag made from a hash of all recommendations of the product, not only the page,
+   * so it changes with every change of them and is the same on every replica. The service addresses aren't
+   * covered. A request with a matching If-None-Match header gets a 304 without a body.
+   *
+   * @param productId Id of the product
+   * @param limit Maximum number of recommendations to return, all are returned if it is left out
+   * @param cursor Where to continue, the first page is returned if it is left out
+   * @param ifNoneMatch The entity tags of the page the client already has, if any
+   * @return the recommendations of the product, highest rate first
+   */
+  @GetMapping(
+    value = "/recommendation",
+    produces = {"application/json", "application/x-ndjson", "application/x-jackson-smile"})
+  Mono<ResponseEntity<Flux<Recommendation>>> getRecommendations(
+    @RequestParam(value = "productId", required = true) int productId,
+    @RequestParam(value = "limit", required = false) Integer limit,
+    @RequestParam(value = "cursor", required = false) String cursor,
+    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+  /**
+   * Gets a page of the recommendations of a product unconditionally.
+   *
+   * @param productId Id of the product
+   * @param limit Maximum number of recommendations to return, all are returned if it is left out
+   * @param cursor Where to continue, the first page is returned if it is left out
+   * @return the recommendations of the product, highest rate first
+   */
+  default Flux<Recommendation> getRecommendations(int productId, Integer limit, String cursor) {
+    return getRecommendations(productId, limit, cursor, null)
+      .flatMapMany(response -> response.hasBody() ? response.getBody() : Flux.empty());
+  }
+
+  /**
+   * Gets all recommendations of a product, highest rate first.
    *
    * @param productId Id of the product
    * @return the recommendations of the product
    */
+  default Flux<Recommendation> getRecommendations(int productId) {
+    return getRecommendations(productId, null, null);
+  }
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/recommendation?productIds=1,2,3" or
+   * "curl $HOST:$PORT/recommendation?productIds=1,2,3&limit=10".
+   *
+   * @param productIds Ids of the products
+   * @param limit Maximum number of recommendations to return per product, all are returned if it is left out
+   * @return the top recommendations of all the products, grouped by product in request order
+   */
   @GetMapping(
     value = "/recommendation",
+    params = "productIds",
+    produces = {"application/json", "application/x-ndjson", "application/x-jackson-smile"})
+  Flux<Recommendation> getRecommendationsByProducts(
+    @RequestParam(value = "productIds", required = true) List<Integer> productIds,
+    @RequestParam(value = "limit", required = false) Integer limit);
+
+  /**
+   * Gets all recommendations of a number of products.
+   *
+   * @param productIds Ids of the products
+   * @return the recommendations of all the products, grouped by product in request order
+   */
+  default Flux<Recommendation> getRecommendationsByProducts(List<Integer> productIds) {
+    return getRecommendationsByProducts(productIds, null);
+  }
+
+  /**
+   * Sample usage: "curl -X POST $HOST:$PORT/recommendation -H "Content-Type: application/json" --data
+   * '{"productId":123,"recommendationId":456,"author":"me","rate":5,"content":"yada, yada, yada"}'".
+   *
+   * @param body A JSON representation of the new recommendation
+   * @return the created recommendation, or a 422 error if the product already has one with the same id
+   */
+  @PostMapping(
+    value = "/recommendation",
+    consumes = "application/json",
+    produces = "application/json")
+  Mono<Recommendation> createRecommendation(@RequestBody Recommendation body);
+
+  /**
+   * Sample usage: "curl -X PUT $HOST:$PORT/recommendation -H "Content-Type: application/json" --data
+   * '{"productId":123,"recommendationId":456,"author":"me","rate":4,"content":"yada, yada, yada"}'".
+   *
+   * @param body A JSON representation of the new state of the recommendation
+   * @return the updated recommendation, or a 404 error if it doesn't exist
+   */
+  @PutMapping(
+    value = "/recommendation",
+    consumes = "application/json",
     produces = "application/json")
-  List<Recommendation> getRecommendations(
-    @RequestParam(value = "productId", required = true) int productId);
+  Mono<Recommendation> updateRecommendation(@RequestBody Recommendation body);
+
+  /**
+   * Sample usage: "curl -X DELETE $HOST:$PORT/recommendation?productId=1" or
+   * "curl -X DELETE $HOST:$PORT/recommendation?productId=1&recommendationId=2".
+   * <p>
+   * Deleting recommendations that don't exist is not an error, so the call can safely be retried.
+   *
+   * @param productId Id of the product
+   * @param recommendationId Id of the recommendation to delete, all recommendations of the product are
+   *     deleted if it is left out
+   * @return completes when the recommendations are deleted
+   */
+  @DeleteMapping(value = "/recommendation")
+  Mono<Void> deleteRecommendations(
+    @RequestParam(value = "productId", required = true) int productId,
+    @RequestParam(value = "recommendationId", required = false) Integer recommendationId);
 }
@@ -1,19 +1,133 @@
 package se.mathias.api.core.review;
 
 import java.util.List;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface ReviewService {
 
   /**
-   * Sample usage: "curl $HOST:$PORT/review?productId=1".
+   * Sample usage: "curl $HOST:$PORT/review?productId=1" or
+   * "curl $HOST:$PORT/review?productId=1&limit=10&cursor=AAAAZQ".
+   * <p>
+   * To get the next page, pass a cursor made with {@link se.mathias.api.core.PageCursor#of(int...)} from the
+   * reviewId of the last review of the current page.
+   * <p>
+   * The response has a weak ETag made from a hash of all reviews of the product, not only the page, so it
+   * changes with every change of them and is the same on every replica. The service addresses aren't
+   * covered. A request with a matching If-None-Match header gets a 304 without a body.
+   *
+   * @param productId Id of the product
+   * @param limit Maximum number of reviews to return, all are returned if it is left out
+   * @param cursor Where to continue, the first page is returned if it is left out
+   * @param ifNoneMatch The entity tags of the page the client already has, if any
+   * @return the reviews of the product, in reviewId order
+   */
+  @GetMapping(
+    value = "/review",
+    produces = {"application/json", "application/x-ndjson", "application/x-jackson-smile"})
+  Mono<ResponseEntity<Flux<Review>>> getReviews(
+    @RequestParam(value = "productId", required = true) int productId,
+    @RequestParam(value = "limit", required = false) Integer limit,
+    @RequestParam(value = "cursor", required = false) String cursor,
+    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+  /**
+   * Gets a page of the reviews of a product unconditionally.
+   *
+   * @param productId Id of the product
+   * @param limit Maximum number of reviews to return, all are returned if it is left out
+   * @param cursor Where to continue, the first page is returned if it is left out
+   * @return the reviews of the product, in reviewId order
+   */
+  default Flux<Review> getReviews(int productId, Integer limit, String cursor) {
+    return getReviews(productId, limit, cursor, null)
+      .flatMapMany(response -> response.hasBody() ? response.getBody() : Flux.empty());
+  }
+
+  /**
+   * Gets all reviews of a product, in reviewId order.
    *
    * @param productId Id of the product
    * @return the reviews of the product
    */
+  default Flux<Review> getReviews(int productId) {
+    return getReviews(productId, null, null);
+  }
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/review?productIds=1,2,3" or
+   * "curl $HOST:$PORT/review?productIds=1,2,3&limit=10".
+   *
+   * @param productIds Ids of the products
+   * @param limit Maximum number of reviews to return per product, all are returned if it is left out
+   * @return the first reviews of all the products, grouped by product in request order
+   */
   @GetMapping(
     value = "/review",
+    params = "productIds",
+    produces = {"application/json", "application/x-ndjson", "application/x-jackson-smile"})
+  Flux<Review> getReviewsByProducts(
+    @RequestParam(value = "productIds", required = true) List<Integer> productIds,
+    @RequestParam(value = "limit", required = false) Integer limit);
+
+  /**
+   * Gets all reviews of a number of products.
+   *
+   * @param productIds Ids of the products
+   * @return the reviews of all the products, grouped by product in request order
+   */
+  default Flux<Review> getReviewsByProducts(List<Integer> productIds) {
+    return getReviewsByProducts(productIds, null);
+  }
+
+  /**
+   * Sample usage: "curl -X POST $HOST:$PORT/review -H "Content-Type: application/json" --data
+   * '{"productId":123,"reviewId":456,"author":"me","subject":"yada, yada, yada","content":"yada"}'".
+   *
+   * @param body A JSON representation of the new review
+   * @return the created review, or a 422 error if the product already has a review with the same id
+   */
+  @PostMapping(
+    value = "/review",
+    consumes = "application/json",
+    produces = "application/json")
+  Mono<Review> createReview(@RequestBody Review body);
+
+  /**
+   * Sample usage: "curl -X PUT $HOST:$PORT/review -H "Content-Type: application/json" --data
+   * '{"productId":123,"reviewId":456,"author":"me","subject":"yada, yada, yada","content":"yada"}'".
+   *
+   * @param body A JSON representation of the new state of the review
+   * @return the updated review, or a 404 error if it doesn't exist
+   */
+  @PutMapping(
+    value = "/review",
+    consumes = "application/json",
     produces = "application/json")
-  List<Review> getReviews(@RequestParam(value = "productId", required = true) int productId);
+  Mono<Review> updateReview(@RequestBody Review body);
+
+  /**
+   * Sample usage: "curl -X DELETE $HOST:$PORT/review?productId=1" or
+   * "curl -X DELETE $HOST:$PORT/review?productId=1&reviewId=2".
+   * <p>
+   * Deleting reviews that don't exist is not an error, so the call can safely be retried.
+   *
+   * @param productId Id of the product
+   * @param reviewId Id of the review to delete, all reviews of the product are deleted if it is left out
+   * @return completes when the reviews are deleted
+   */
+  @DeleteMapping(value = "/review")
+  Mono<Void> deleteReviews(
+    @RequestParam(value = "productId", required = true) int productId,
+    @RequestParam(value = "reviewId", required = false) Integer reviewId);
 }
@@ -0,0 +1,63 @@
+package se.mathias.api.event;
+
+/**
+ * A change to a product, a review or a recommendation, published by the core service that made it.
+ * <p>
+ * Events only identify what changed, consumers that need the new state fetch it. The entity id is the
+ * reviewId or recommendationId, and null for products and for deleting all reviews or recommendations of a
+ * product.
+ */
+public class ChangeEvent {
+
+  public enum Type {
+    PRODUCT,
+    RECOMMENDATION,
+    REVIEW
+  }
+
+  public enum Action {
+    CREATED,
+    UPDATED,
+    DELETED
+  }
+
+  private final Type type;
+  private final Action action;
+  private final int productId;
+  private final Integer entityId;
+
+  public ChangeEvent() {
+    type = null;
+    action = null;
+    productId = 0;
+    entityId = null;
+  }
+
+  public ChangeEvent(Type type, Action action, int productId, Integer entityId) {
+    this.type = type;
+    this.action = action;
+    this.productId = productId;
+    this.entityId = entityId;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public Action getAction() {
+    return action;
+  }
+
+  public int getProductId() {
+    return productId;
+  }
+
+  public Integer getEntityId() {
+    return entityId;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + action + " productId=" + productId + (entityId == null ? "" : ", entityId=" + entityId);
+  }
+}
@@ -0,0 +1,22 @@
+package se.mathias.api.event;
+
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.GetMapping;
+import reactor.core.publisher.Flux;
+
+public interface ChangeEventService {
+
+  /**
+   * Sample usage: "curl -N $HOST:$PORT/events".
+   * <p>
+   * The stream starts with a heartbeat comment, after which every change made by the service is sent. Changes
+   * made while a client isn't connected are not replayed, a client that reconnects must assume that
+   * anything may have changed in between.
+   *
+   * @return the changes as server-sent events, with heartbeat comments in between
+   */
+  @GetMapping(
+    value = "/events",
+    produces = "text/event-stream")
+  Flux<ServerSentEvent<ChangeEvent>> getChangeEvents();
+}
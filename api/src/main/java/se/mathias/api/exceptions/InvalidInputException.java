@@ -1,17 +1,24 @@
 package se.mathias.api.exceptions;
 
+/**
+ * Thrown for an ordinary outcome, like a request with a negative product id, that the services answer
+ * without logging a stack trace. So none is filled in, that is most of the cost of throwing it. The message
+ * tells what happened, and the cause, if any, keeps its own stack trace.
+ */
 public class InvalidInputException extends RuntimeException {
-  public InvalidInputException() {}
+  public InvalidInputException() {
+    super(null, null, true, false);
+  }
 
   public InvalidInputException(String message) {
-    super(message);
+    super(message, null, true, false);
   }
 
   public InvalidInputException(String message, Throwable cause) {
-    super(message, cause);
+    super(message, cause, true, false);
   }
 
   public InvalidInputException(Throwable cause) {
-    super(cause);
+    super(cause == null ? null : cause.toString(), cause, true, false);
   }
 }
@@ -1,17 +1,24 @@
 package se.mathias.api.exceptions;
 
+/**
+ * Thrown for an ordinary outcome, like a request for a product that doesn't exist, that the services answer
+ * without logging a stack trace. So none is filled in, that is most of the cost of throwing it. The message
+ * tells what happened, and the cause, if any, keeps its own stack trace.
+ */
 public class NotFoundException extends RuntimeException {
-  public NotFoundException() {}
+  public NotFoundException() {
+    super(null, null, true, false);
+  }
 
   public NotFoundException(String message) {
-    super(message);
+    super(message, null, true, false);
   }
 
   public NotFoundException(String message, Throwable cause) {
-    super(message, cause);
+    super(message, cause, true, false);
   }
 
   public NotFoundException(Throwable cause) {
-    super(cause);
+    super(cause == null ? null : cause.toString(), cause, true, false);
   }
 }
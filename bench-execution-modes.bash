@@ -0,0 +1,100 @@
+#!/usr/bin/env bash
+#
+# Compares throughput, p99 latency and memory of the WebFlux and the virtual-threads execution modes.
+# Each mode is started from scratch with docker compose, warmed up and then loaded with wrk.
+#
+# All four services change mode, the product composite included: in the virtual-threads mode its handlers
+# run on virtual threads, while its downstream calls still go through the shared WebClient.
+#
+# Sample usage:
+#
+#   CONNECTIONS=200 DURATION=120s ./bench-execution-modes.bash
+#
+: ${HOST=localhost}
+: ${PORT=8080}
+: ${PROD_ID=1}
+: ${THREADS=4}
+: ${CONNECTIONS=100}
+: ${WARMUP=30s}
+: ${DURATION=60s}
+: ${MODES="webflux virtual-threads"}
+
+set -e
+
+function composeFiles() {
+  local mode=$1
+  if [ "$mode" = "virtual-threads" ]
+  then
+    echo "-f docker-compose.yml -f docker-compose-virtual-threads.yml"
+  else
+    echo "-f docker-compose.yml"
+  fi
+}
+
+function waitForService() {
+  local url=$1
+  echo -n "Wait for: $url... "
+  n=0
+  until curl -ks -f -o /dev/null $url
+  do
+    n=$((n + 1))
+    if [[ $n == 100 ]]
+    then
+      echo " Give up"
+      exit 1
+    else
+      sleep 3
+      echo -n ", retry #$n "
+    fi
+  done
+  echo "DONE, continues..."
+}
+
+function toMillis() {
+  # wrk prints latencies as e.g. 850.00us, 12.34ms or 1.02s
+  echo $1 | awk '/us$/ { print $1 / 1000; next } /ms$/ { print $1 + 0; next } /s$/ { print $1 * 1000 }'
+}
+
+command -v wrk > /dev/null || { echo "wrk is required, see https://github.com/wg/wrk"; exit 1; }
+
+url=http://$HOST:$PORT/product-composite/$PROD_ID
+results=$(mktemp)
+
+echo "Start benchmark:" `date`
+echo "URL=$url, THREADS=$THREADS, CONNECTIONS=$CONNECTIONS, WARMUP=$WARMUP, DURATION=$DURATION"
+
+for mode in $MODES
+do
+  files=$(composeFiles $mode)
+
+  echo "Starting the $mode environment..."
+  docker compose $files down --remove-orphans
+  docker compose $files up -d
+  waitForService $url
+
+  echo "Warming up for $WARMUP..."
+  wrk -t$THREADS -c$CONNECTIONS -d$WARMUP $url > /dev/null
+
+  echo "Measuring for $DURATION..."
+  output=$(wrk -t$THREADS -c$CONNECTIONS -d$DURATION --latency $url)
+  echo "$output"
+
+  throughput=$(echo "$output" | awk '/Requests\/sec/ { print $2 }')
+  p99=$(toMillis $(echo "$output" | awk '$1 == "99%" { print $2 }'))
+  memory=$(docker stats --no-stream --format '{{.Name}}={{.MemUsage}}' $(docker compose $files ps -q) \
+    | sed 's| / .*||' | tr '\n' ' ')
+
+  echo "$mode $throughput $p99 $memory" >> $results
+
+  docker compose $files down
+done
+
+echo
+printf "%-16s %12s %10s  %s\n" "MODE" "REQ/S" "P99 (ms)" "MEMORY"
+while read mode throughput p99 memory
+do
+  printf "%-16s %12s %10s  %s\n" "$mode" "$throughput" "$p99" "$memory"
+done < $results
+rm $results
+
+echo "End benchmark:" `date`
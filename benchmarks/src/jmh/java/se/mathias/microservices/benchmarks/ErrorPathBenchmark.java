@@ -0,0 +1,64 @@
+package se.mathias.microservices.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpStatus;
+import se.mathias.api.exceptions.NotFoundException;
+import se.mathias.util.http.HttpErrorInfo;
+
+/**
+ * The cost of a 404: creating the exception, the {@link HttpErrorInfo} for it, and encoding that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ErrorPathBenchmark {
+
+    private static final String PATH = "/product/13";
+    private static final String MESSAGE = "No product found for productId: 13";
+
+    private ObjectMapper mapper;
+    private HttpErrorInfo errorInfo;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mapper = JsonMapper.builder()
+                .findAndAddModules()
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .build();
+        errorInfo = new HttpErrorInfo(HttpStatus.NOT_FOUND, PATH, MESSAGE);
+    }
+
+    @Benchmark
+    public HttpErrorInfo createHttpErrorInfo() {
+        return new HttpErrorInfo(HttpStatus.NOT_FOUND, PATH, MESSAGE);
+    }
+
+    @Benchmark
+    public HttpErrorInfo createNotFound() {
+        NotFoundException ex = new NotFoundException(MESSAGE);
+        return new HttpErrorInfo(HttpStatus.NOT_FOUND, PATH, ex.getMessage());
+    }
+
+    @Benchmark
+    public byte[] serializeHttpErrorInfo() throws IOException {
+        return mapper.writeValueAsBytes(errorInfo);
+    }
+}
@@ -0,0 +1,101 @@
+package se.mathias.microservices.benchmarks;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.mathias.api.composite.product.ProductAggregate;
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.api.core.review.Review;
+
+/**
+ * JSON encoding and decoding of the API types, with an object mapper configured like the one Spring Boot
+ * auto-configures. Reviews and recommendations are decoded in the composite and encoded in the core
+ * services, aggregates are encoded in the composite.
+ * <p>
+ * The list sizes are those of the demo data, of a first page, and of a product with many reviews fetched
+ * without a limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JacksonBenchmark {
+
+    private static final int PRODUCT_ID = 1;
+
+    @Param({"3", "21", "500"})
+    public int listSize;
+
+    private ObjectMapper mapper;
+    private ObjectReader recommendationReader;
+    private ObjectReader reviewReader;
+
+    private ProductAggregate aggregate;
+    private List<Recommendation> recommendations;
+    private List<Review> reviews;
+
+    private byte[] recommendationJson;
+    private byte[] reviewJson;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mapper = JsonMapper.builder()
+                .findAndAddModules()
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .build();
+        recommendationReader = mapper.readerForListOf(Recommendation.class);
+        reviewReader = mapper.readerForListOf(Review.class);
+
+        aggregate = Payloads.aggregate(PRODUCT_ID, listSize);
+        recommendations = Payloads.recommendations(PRODUCT_ID, listSize);
+        reviews = Payloads.reviews(PRODUCT_ID, listSize);
+
+        recommendationJson = mapper.writeValueAsBytes(recommendations);
+        reviewJson = mapper.writeValueAsBytes(reviews);
+    }
+
+    @Benchmark
+    public byte[] serializeAggregate() throws IOException {
+        return mapper.writeValueAsBytes(aggregate);
+    }
+
+    @Benchmark
+    public byte[] serializeRecommendations() throws IOException {
+        return mapper.writeValueAsBytes(recommendations);
+    }
+
+    @Benchmark
+    public List<Recommendation> deserializeRecommendations() throws IOException {
+        return recommendationReader.readValue(recommendationJson);
+    }
+
+    @Benchmark
+    public byte[] serializeReviews() throws IOException {
+        return mapper.writeValueAsBytes(reviews);
+    }
+
+    @Benchmark
+    public List<Review> deserializeReviews() throws IOException {
+        return reviewReader.readValue(reviewJson);
+    }
+}
@@ -0,0 +1,64 @@
+package se.mathias.microservices.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import se.mathias.api.composite.product.ProductAggregate;
+import se.mathias.api.composite.product.RecommendationSummary;
+import se.mathias.api.composite.product.ReviewSummary;
+import se.mathias.api.composite.product.ServiceAddresses;
+import se.mathias.api.core.product.Product;
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.api.core.review.Review;
+
+/**
+ * Test data of realistic size: authors and subjects of a few words, contents of a few sentences.
+ */
+public final class Payloads {
+
+    private static final String SERVICE_ADDRESS = "review-7c9d8f6b5-x2kqp/172.18.0.5:8080";
+
+    private static final String SENTENCE =
+            "Solid build quality and it does what the description promises, though shipping took a while. ";
+
+    private Payloads() {
+    }
+
+    public static Product product(int productId) {
+        return new Product(productId, "Product name " + productId, 123, SERVICE_ADDRESS);
+    }
+
+    public static List<Recommendation> recommendations(int productId, int count) {
+        List<Recommendation> recommendations = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            recommendations.add(new Recommendation(productId, i, "Author " + i, 5 - i % 5,
+                    SENTENCE.repeat(1 + i % 3), SERVICE_ADDRESS));
+        }
+        return recommendations;
+    }
+
+    public static List<Review> reviews(int productId, int count) {
+        List<Review> reviews = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            reviews.add(new Review(productId, i, "Author " + i, "Subject of review " + i,
+                    SENTENCE.repeat(2 + i % 4), SERVICE_ADDRESS));
+        }
+        return reviews;
+    }
+
+    /**
+     * An aggregate as the composite returns it, with all parts and {@code count} recommendations and reviews.
+     */
+    public static ProductAggregate aggregate(int productId, int count) {
+        Product product = product(productId);
+        List<RecommendationSummary> recommendationSummaries = recommendations(productId, count).stream()
+                .map(r -> new RecommendationSummary(r.getRecommendationId(), r.getAuthor(), r.getRate()))
+                .collect(Collectors.toList());
+        List<ReviewSummary> reviewSummaries = reviews(productId, count).stream()
+                .map(r -> new ReviewSummary(r.getReviewId(), r.getAuthor(), r.getSubject()))
+                .collect(Collectors.toList());
+        return new ProductAggregate(productId, product.getName(), product.getWeight(), recommendationSummaries,
+                "AAAAAwAAAGU", reviewSummaries, "AAAAZQ",
+                new ServiceAddresses(SERVICE_ADDRESS, SERVICE_ADDRESS, SERVICE_ADDRESS, SERVICE_ADDRESS));
+    }
+}
@@ -0,0 +1,88 @@
+package se.mathias.microservices.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.microservices.core.recommendation.persistence.ProductRecommendations;
+import se.mathias.microservices.core.recommendation.persistence.RecommendationIndex;
+
+/**
+ * Top N requests against a {@link RecommendationIndex} holding a million recommendations, converted to API
+ * objects the way the recommendation service does it.
+ * <p>
+ * The heap the index retains is measured once per fork, after a full GC before and after loading it, and
+ * printed per recommendation, to check the estimate in the javadoc of the index. The authors and contents
+ * are about as long as the ones the estimate assumes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RecommendationIndexBenchmark {
+
+    private static final String SERVICE_ADDRESS = "recommendation-6d8c7b5f9-m4wzr/172.18.0.4:8080";
+    private static final String CONTENT = "x".repeat(100);
+
+    @Param({"100000"})
+    public int products;
+
+    @Param({"10"})
+    public int recommendationsPerProduct;
+
+    @Param({"5"})
+    public int limit;
+
+    private RecommendationIndex index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long before = memory.getHeapMemoryUsage().getUsed();
+
+        index = new RecommendationIndex();
+        for (int productId = 1; productId <= products; productId++) {
+            for (int recommendationId = 1; recommendationId <= recommendationsPerProduct; recommendationId++) {
+                // Distinct strings, as if they had been parsed from separate requests
+                index.insert(productId, recommendationId, String.format("Author%04d", recommendationId % 10_000),
+                        (recommendationId * 7) % 6, new String(CONTENT.toCharArray()));
+            }
+        }
+
+        System.gc();
+        long retained = memory.getHeapMemoryUsage().getUsed() - before;
+        long recommendations = (long) products * recommendationsPerProduct;
+        System.out.printf("%nIndex of %d recommendations retains %d MB, %d bytes per recommendation%n",
+                recommendations, retained >> 20, retained / recommendations);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Recommendation[] topN() {
+        int productId = ThreadLocalRandom.current().nextInt(1, products + 1);
+        ProductRecommendations recommendations = index.get(productId);
+        Recommendation[] page = new Recommendation[Math.min(limit, recommendations.size())];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = new Recommendation(productId, recommendations.recommendationIdAt(i), recommendations.authorAt(i),
+                    recommendations.rateAt(i), recommendations.contentAt(i), SERVICE_ADDRESS);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,43 @@
+package se.mathias.microservices.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import se.mathias.util.http.ServiceUtil;
+
+/**
+ * {@link ServiceUtil#getServiceAddress()}, which every response calls. The address is looked up on the first
+ * call; the benchmark measures the calls after that, from several threads as in a service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceUtilBenchmark {
+
+    private ServiceUtil serviceUtil;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        serviceUtil = new ServiceUtil("8080");
+        serviceUtil.getServiceAddress();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getServiceAddress() {
+        return serviceUtil.getServiceAddress();
+    }
+}
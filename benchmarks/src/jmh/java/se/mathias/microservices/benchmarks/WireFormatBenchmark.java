@@ -0,0 +1,104 @@
+package se.mathias.microservices.benchmarks;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import se.mathias.api.core.product.Product;
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.api.core.review.Review;
+
+/**
+ * What the composite pays per aggregate to move the core service responses over the wire, in JSON and in
+ * Smile: encoding them in the core services and decoding them in the composite. An aggregate takes one
+ * product and a page of recommendations and reviews, fetched one more than the page size.
+ * <p>
+ * The time per operation is the CPU cost per aggregate. The bytes per aggregate are printed once per fork,
+ * since they don't depend on the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    private static final int PRODUCT_ID = 1;
+
+    @Param({"json", "smile"})
+    public String format;
+
+    @Param({"21"})
+    public int listSize;
+
+    private ObjectMapper mapper;
+    private ObjectReader recommendationReader;
+    private ObjectReader reviewReader;
+
+    private Product product;
+    private List<Recommendation> recommendations;
+    private List<Review> reviews;
+
+    private byte[] productBytes;
+    private byte[] recommendationBytes;
+    private byte[] reviewBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mapper = "smile".equals(format)
+                ? SmileMapper.builder().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES).build()
+                : JsonMapper.builder().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES).build();
+        recommendationReader = mapper.readerForListOf(Recommendation.class);
+        reviewReader = mapper.readerForListOf(Review.class);
+
+        product = Payloads.product(PRODUCT_ID);
+        recommendations = Payloads.recommendations(PRODUCT_ID, listSize);
+        reviews = Payloads.reviews(PRODUCT_ID, listSize);
+
+        productBytes = mapper.writeValueAsBytes(product);
+        recommendationBytes = mapper.writeValueAsBytes(recommendations);
+        reviewBytes = mapper.writeValueAsBytes(reviews);
+
+        System.out.printf("%n%s: %d bytes per aggregate (product %d, recommendations %d, reviews %d)%n", format,
+                productBytes.length + recommendationBytes.length + reviewBytes.length,
+                productBytes.length, recommendationBytes.length, reviewBytes.length);
+    }
+
+    /**
+     * The core services' side.
+     */
+    @Benchmark
+    public void encode(Blackhole blackhole) throws IOException {
+        blackhole.consume(mapper.writeValueAsBytes(product));
+        blackhole.consume(mapper.writeValueAsBytes(recommendations));
+        blackhole.consume(mapper.writeValueAsBytes(reviews));
+    }
+
+    /**
+     * The composite's side.
+     */
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        blackhole.consume(mapper.readValue(productBytes, Product.class));
+        blackhole.consume(recommendationReader.<List<Recommendation>>readValue(recommendationBytes));
+        blackhole.consume(reviewReader.<List<Review>>readValue(reviewBytes));
+    }
+}
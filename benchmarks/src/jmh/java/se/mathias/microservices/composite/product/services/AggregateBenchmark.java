@@ -0,0 +1,63 @@
+package se.mathias.microservices.composite.product.services;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.mathias.api.composite.product.ProductAggregate;
+import se.mathias.api.core.product.Product;
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.api.core.review.Review;
+import se.mathias.microservices.benchmarks.Payloads;
+
+/**
+ * Building a {@link ProductAggregate} from the core service responses. In the same package as
+ * {@link ProductCompositeServiceImpl} to reach its package private createProductAggregate; the
+ * collaborators it doesn't use are left null.
+ * <p>
+ * The list sizes are those of the demo data and of a full first page, which is fetched one more than the
+ * page size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateBenchmark {
+
+    private static final int PRODUCT_ID = 1;
+    private static final int PAGE_SIZE = 20;
+    private static final String SERVICE_ADDRESS = "product-composite-5f7b9c8d4-q8jzt/172.18.0.2:8080";
+
+    @Param({"3", "21"})
+    public int listSize;
+
+    private ProductCompositeServiceImpl service;
+    private Product product;
+    private List<Recommendation> recommendations;
+    private List<Review> reviews;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        service = new ProductCompositeServiceImpl(null, null, null, 50, 4, PAGE_SIZE, 100);
+        product = Payloads.product(PRODUCT_ID);
+        recommendations = Payloads.recommendations(PRODUCT_ID, listSize);
+        reviews = Payloads.reviews(PRODUCT_ID, listSize);
+    }
+
+    @Benchmark
+    public ProductAggregate createProductAggregate() {
+        return service.createProductAggregate(product, recommendations, reviews, SERVICE_ADDRESS, AggregateField.ALL);
+    }
+}
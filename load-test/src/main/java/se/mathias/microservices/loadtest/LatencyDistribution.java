@@ -0,0 +1,92 @@
+package se.mathias.microservices.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The response time of a stub service, in milliseconds, from one of the specs:
+ * <ul>
+ *   <li>{@code constant:5} always 5 ms</li>
+ *   <li>{@code uniform:2-10} anywhere between 2 and 10 ms</li>
+ *   <li>{@code exponential:5} exponential with a mean of 5 ms, most calls are fast and a few are much slower</li>
+ *   <li>{@code lognormal:5:50} log-normal with a median of 5 ms and a p99 of 50 ms, the usual shape of real
+ *   service latencies with a long tail</li>
+ * </ul>
+ */
+abstract class LatencyDistribution {
+
+    // The standard normal quantile of 0.99
+    private static final double Z_99 = 2.3263;
+
+    private final String spec;
+
+    private LatencyDistribution(String spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Draws the next latency.
+     *
+     * @return the latency in nanoseconds
+     */
+    abstract long nextNanos();
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    static LatencyDistribution parse(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "constant": {
+                    long nanos = millisToNanos(Double.parseDouble(parts[1]));
+                    return new LatencyDistribution(spec) {
+                        @Override
+                        long nextNanos() {
+                            return nanos;
+                        }
+                    };
+                }
+                case "uniform": {
+                    String[] range = parts[1].split("-");
+                    long min = millisToNanos(Double.parseDouble(range[0]));
+                    long max = millisToNanos(Double.parseDouble(range[1]));
+                    return new LatencyDistribution(spec) {
+                        @Override
+                        long nextNanos() {
+                            return min + (long) (ThreadLocalRandom.current().nextDouble() * (max - min));
+                        }
+                    };
+                }
+                case "exponential": {
+                    double mean = Double.parseDouble(parts[1]);
+                    return new LatencyDistribution(spec) {
+                        @Override
+                        long nextNanos() {
+                            return millisToNanos(-mean * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+                        }
+                    };
+                }
+                case "lognormal": {
+                    double mu = Math.log(Double.parseDouble(parts[1]));
+                    double sigma = (Math.log(Double.parseDouble(parts[2])) - mu) / Z_99;
+                    return new LatencyDistribution(spec) {
+                        @Override
+                        long nextNanos() {
+                            return millisToNanos(Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian()));
+                        }
+                    };
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid latency distribution: " + spec, ex);
+        }
+    }
+
+    private static long millisToNanos(double millis) {
+        return (long) (millis * 1_000_000);
+    }
+}
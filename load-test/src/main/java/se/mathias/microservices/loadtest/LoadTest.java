@@ -0,0 +1,121 @@
+package se.mathias.microservices.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import se.mathias.microservices.composite.product.ProductCompositeServiceApplication;
+
+/**
+ * Drives the product composite with an open model load and reports throughput and latency percentiles.
+ * <p>
+ * By default the composite is started in this JVM against three stub core services with configurable latency
+ * and error rate, so that the composite's own overhead can be measured without databases or containers. Pass
+ * {@code --composite-url} to load a composite that is already running instead. Stubs, composite and load
+ * generator share the CPU of this machine, so compare runs with each other rather than with production.
+ * <p>
+ * Options, with their defaults:
+ * <pre>
+ *   --rate=500                               requests per second
+ *   --warmup=10s --duration=30s              warmup is sent but not reported
+ *   --product-ids=1-1000                     products are picked at random from the range
+ *   --connections=500 --max-in-flight=10000  requests over the limit are dropped, and count as timed out
+ *   --product-latency=lognormal:2:20         see LatencyDistribution for the specs
+ *   --recommendation-latency=lognormal:3:30
+ *   --review-latency=lognormal:5:50
+ *   --product-error-rate=0 --recommendation-error-rate=0 --review-error-rate=0
+ *   --recommendations=10 --reviews=10        per product
+ *   --histogram-file=                        writes the full latency distribution in HdrHistogram format
+ * </pre>
+ * All arguments are also passed on to the composite, so any of its properties can be set, for example
+ * {@code --app.cache.product-aggregate.enabled=false} to measure every request end to end.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        ObjectMapper mapper = new ObjectMapper();
+
+        StubServer product = StubServer.product(
+                options.latency("product-latency", "lognormal:2:20"),
+                options.decimal("product-error-rate", 0), mapper);
+        StubServer recommendation = StubServer.recommendations(
+                options.latency("recommendation-latency", "lognormal:3:30"),
+                options.decimal("recommendation-error-rate", 0), options.integer("recommendations", 10), mapper);
+        StubServer review = StubServer.reviews(
+                options.latency("review-latency", "lognormal:5:50"),
+                options.decimal("review-error-rate", 0), options.integer("reviews", 10), mapper);
+
+        ConfigurableApplicationContext composite = null;
+        String baseUrl = options.string("composite-url", null);
+        if (baseUrl == null) {
+            composite = startComposite(options, args, product, recommendation, review);
+            baseUrl = "http://localhost:" + composite.getEnvironment().getProperty("local.server.port");
+            System.out.println(product);
+            System.out.println(recommendation);
+            System.out.println(review);
+        }
+
+        String[] productIds = options.string("product-ids", "1-1000").split("-");
+        double rate = options.decimal("rate", 500);
+        Duration duration = options.duration("duration", "30s");
+        OpenModelLoad load = new OpenModelLoad(baseUrl, rate,
+                Integer.parseInt(productIds[0]), Integer.parseInt(productIds[productIds.length - 1]),
+                options.integer("connections", 500), options.integer("max-in-flight", 10_000));
+
+        System.out.println("Loading " + baseUrl);
+        OpenModelLoad.Result result;
+        try {
+            result = load.run(options.duration("warmup", "10s"), duration);
+        } finally {
+            load.close();
+            if (composite != null) {
+                composite.close();
+            }
+            product.stop();
+            recommendation.stop();
+            review.stop();
+        }
+
+        result.print(System.out, rate);
+        String histogramFile = options.string("histogram-file", null);
+        if (histogramFile != null) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(histogramFile))) {
+                result.latencies().outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    private static ConfigurableApplicationContext startComposite(Options options, String[] args, StubServer product,
+            StubServer recommendation, StubServer review) {
+
+        // Spring joins repeated options with commas instead of letting the last one win, so a default is only
+        // added when the arguments don't set the property themselves
+        List<String> compositeArgs = new ArrayList<>(Arrays.asList(args));
+        addDefault(compositeArgs, options, "server.port", "0");
+        addDefault(compositeArgs, options, "logging.level.root", "WARN");
+        // The deployed stack, with the reactive-only web filters
+        addDefault(compositeArgs, options, "spring.main.web-application-type", "reactive");
+        // The stubs don't stream change events
+        addDefault(compositeArgs, options, "app.events.transport", "none");
+        addDefault(compositeArgs, options, "app.product-service.host", "localhost");
+        addDefault(compositeArgs, options, "app.product-service.port", String.valueOf(product.port()));
+        addDefault(compositeArgs, options, "app.recommendation-service.host", "localhost");
+        addDefault(compositeArgs, options, "app.recommendation-service.port", String.valueOf(recommendation.port()));
+        addDefault(compositeArgs, options, "app.review-service.host", "localhost");
+        addDefault(compositeArgs, options, "app.review-service.port", String.valueOf(review.port()));
+        return SpringApplication.run(ProductCompositeServiceApplication.class, compositeArgs.toArray(String[]::new));
+    }
+
+    private static void addDefault(List<String> args, Options options, String name, String value) {
+        if (options.string(name, null) == null) {
+            args.add("--" + name + "=" + value);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package se.mathias.microservices.loadtest;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+/**
+ * Open model load: requests are sent at a fixed arrival rate, whether or not earlier requests have completed,
+ * the way independent users arrive. A closed model, a fixed number of clients that each wait for their
+ * response, slows down with the system under test and hides its queueing.
+ * <p>
+ * Latency is measured from the time a request was scheduled to be sent, not from when it actually was, so a
+ * stall in the generator or in the system under test shows up in the latencies of all requests that should
+ * have been sent during it (no coordinated omission). Requests that are dropped because too many are in
+ * flight count as failed and are recorded with the response timeout as their latency, the least they would
+ * have taken, so that dropping them doesn't make the percentiles look better. Requests go to random products
+ * in a range, and run on event loops of their own.
+ */
+final class OpenModelLoad {
+
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(30);
+
+    private final HttpClient client;
+    private final ConnectionProvider connectionProvider;
+    private final LoopResources loops;
+    private final double rate;
+    private final int fromProductId;
+    private final int toProductId;
+    private final int maxInFlight;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    OpenModelLoad(String baseUrl, double rate, int fromProductId, int toProductId, int connections, int maxInFlight) {
+        this.rate = rate;
+        this.fromProductId = fromProductId;
+        this.toProductId = toProductId;
+        this.maxInFlight = maxInFlight;
+
+        this.loops = LoopResources.create("load-test", Math.max(2, Runtime.getRuntime().availableProcessors() / 4), true);
+        this.connectionProvider = ConnectionProvider.builder("load-test")
+                .maxConnections(connections)
+                .pendingAcquireMaxCount(-1)
+                .pendingAcquireTimeout(Duration.ofMinutes(1))
+                .build();
+        this.client = HttpClient.create(connectionProvider)
+                .runOn(loops)
+                .baseUrl(baseUrl)
+                .responseTimeout(RESPONSE_TIMEOUT)
+                .headers(headers -> headers.set(HttpHeaderNames.ACCEPT, "application/json"));
+    }
+
+    /**
+     * Sends requests for the warmup and then the measured duration, and waits for the last responses.
+     *
+     * @return the results of the requests scheduled during the measured duration
+     */
+    Result run(Duration warmup, Duration duration) {
+        Result warmupResult = new Result(warmup);
+        Result result = new Result(duration);
+
+        double periodNanos = 1_000_000_000 / rate;
+        long start = System.nanoTime();
+        long measureStart = start + warmup.toNanos();
+        long end = measureStart + duration.toNanos();
+
+        for (long i = 0; ; i++) {
+            long intendedStart = start + (long) (i * periodNanos);
+            if (intendedStart >= end) {
+                break;
+            }
+            long wait = intendedStart - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            send(intendedStart, intendedStart < measureStart ? warmupResult : result);
+        }
+
+        long drainDeadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(Duration.ofMillis(10).toNanos());
+        }
+        return result;
+    }
+
+    void close() {
+        connectionProvider.disposeLater().block();
+        loops.disposeLater().block();
+    }
+
+    private void send(long intendedStart, Result result) {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            result.drop();
+            return;
+        }
+        result.sent.increment();
+
+        int productId = ThreadLocalRandom.current().nextInt(fromProductId, toProductId + 1);
+        client.get()
+                .uri("/product-composite/" + productId)
+                .responseSingle((response, body) -> body.asByteArray()
+                        .then(Mono.just(response.status().code())))
+                .doFinally(signal -> inFlight.decrementAndGet())
+                .subscribe(
+                        status -> result.record(intendedStart, status >= 200 && status < 300),
+                        error -> result.record(intendedStart, false));
+    }
+
+    /**
+     * The outcome of the requests of one phase. Latencies of all completed requests, successful or not, and of
+     * the dropped ones are recorded in microseconds.
+     */
+    static final class Result {
+
+        private final Duration duration;
+        private final Histogram latencies = new ConcurrentHistogram(3);
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+
+        private Result(Duration duration) {
+            this.duration = duration;
+        }
+
+        Histogram latencies() {
+            return latencies;
+        }
+
+        void print(PrintStream out, double rate) {
+            double seconds = duration.toNanos() / 1e9;
+            out.printf("Target rate:  %.0f/s for %s%n", rate, duration);
+            out.printf("Sent:         %d, dropped at the in-flight limit: %d%n", sent.sum(), dropped.sum());
+            out.printf("Throughput:   %.1f/s successful, %.1f/s failed%n", succeeded.sum() / seconds, failed.sum() / seconds);
+            out.printf("Latency (ms) from the scheduled send time, %d responses and %d drops at %s:%n",
+                    latencies.getTotalCount() - dropped.sum(), dropped.sum(), RESPONSE_TIMEOUT);
+            for (double percentile : new double[] {50, 90, 99, 99.9}) {
+                out.printf("  p%-6s %10.3f%n", percentile == 99.9 ? "99.9" : String.valueOf((int) percentile),
+                        latencies.getValueAtPercentile(percentile) / 1000.0);
+            }
+            out.printf("  max     %10.3f%n", latencies.getMaxValue() / 1000.0);
+        }
+
+        private void record(long intendedStart, boolean success) {
+            latencies.recordValue(Math.max(0, (System.nanoTime() - intendedStart) / 1000));
+            (success ? succeeded : failed).increment();
+        }
+
+        private void drop() {
+            latencies.recordValue(RESPONSE_TIMEOUT.toNanos() / 1000);
+            dropped.increment();
+            failed.increment();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package se.mathias.microservices.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.http.server.HttpServerRoutes;
+import se.mathias.api.core.product.Product;
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.api.core.review.Review;
+
+/**
+ * An in-process stand-in for one of the core services, serving the read endpoints the composite calls with
+ * generated data. Every response is delayed by a draw from a {@link LatencyDistribution}, and a share of them
+ * fail with a 500. The products exist for every id and have {@code listSize} reviews or recommendations, or
+ * fewer if the call has a limit.
+ * <p>
+ * Uses the shared Reactor Netty event loops, so the stubs take CPU from the same cores as the composite
+ * and the load generator. They only ever answer in JSON, like a core service that doesn't know about Smile.
+ */
+final class StubServer {
+
+    private static final String CONTENT =
+            "Solid build quality and it does what the description promises, though shipping took a while. ";
+
+    private final String name;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final int listSize;
+    private final ObjectMapper mapper;
+    private final String serviceAddress;
+
+    private DisposableServer server;
+
+    private StubServer(String name, LatencyDistribution latency, double errorRate, int listSize, ObjectMapper mapper) {
+        this.name = name;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.listSize = listSize;
+        this.mapper = mapper;
+        this.serviceAddress = name + "-stub";
+    }
+
+    static StubServer product(LatencyDistribution latency, double errorRate, ObjectMapper mapper) {
+        StubServer stub = new StubServer("product", latency, errorRate, 1, mapper);
+        stub.start(routes -> routes
+                .get("/product/{productId}", (request, response) -> stub.respond(response,
+                        () -> stub.product(Integer.parseInt(request.param("productId")))))
+                .get("/product", (request, response) -> stub.respond(response,
+                        () -> productIds(request).stream().map(stub::product).toList())));
+        return stub;
+    }
+
+    static StubServer recommendations(LatencyDistribution latency, double errorRate, int listSize, ObjectMapper mapper) {
+        StubServer stub = new StubServer("recommendation", latency, errorRate, listSize, mapper);
+        stub.start(routes -> routes.get("/recommendation", (request, response) -> stub.respond(response,
+                () -> stub.perProduct(request, stub::recommendations))));
+        return stub;
+    }
+
+    static StubServer reviews(LatencyDistribution latency, double errorRate, int listSize, ObjectMapper mapper) {
+        StubServer stub = new StubServer("review", latency, errorRate, listSize, mapper);
+        stub.start(routes -> routes.get("/review", (request, response) -> stub.respond(response,
+                () -> stub.perProduct(request, stub::reviews))));
+        return stub;
+    }
+
+    int port() {
+        return server.port();
+    }
+
+    void stop() {
+        server.disposeNow();
+    }
+
+    @Override
+    public String toString() {
+        return name + " stub on port " + port() + ": latency " + latency + ", error rate " + errorRate
+                + (name.equals("product") ? "" : ", " + listSize + " per product");
+    }
+
+    private void start(Consumer<HttpServerRoutes> routes) {
+        server = HttpServer.create()
+                .host("localhost")
+                .port(0)
+                .route(routes)
+                .bindNow();
+    }
+
+    private Publisher<Void> respond(HttpServerResponse response, Supplier<Object> body) {
+        Mono<Void> delay = Mono.delay(Duration.ofNanos(latency.nextNanos())).then();
+        if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return delay.then(Mono.defer(() -> response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).send().then()));
+        }
+        return delay.then(Mono.defer(() -> response
+                .header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                .sendByteArray(Mono.fromCallable(() -> mapper.writeValueAsBytes(body.get())))
+                .then()));
+    }
+
+    /**
+     * Answers both the single product form, with a productId and optionally a limit, and the batch form,
+     * with productIds.
+     */
+    private <T> List<T> perProduct(HttpServerRequest request, Function<Integer, List<T>> generator) {
+        Map<String, List<String>> parameters = new QueryStringDecoder(request.uri()).parameters();
+        List<Integer> productIds = parameters.containsKey("productIds")
+                ? productIds(request)
+                : List.of(Integer.parseInt(parameters.get("productId").get(0)));
+        int limit = parameters.containsKey("limit") ? Integer.parseInt(parameters.get("limit").get(0)) : listSize;
+
+        List<T> result = new ArrayList<>();
+        for (int productId : productIds) {
+            List<T> all = generator.apply(productId);
+            result.addAll(all.subList(0, Math.min(limit, all.size())));
+        }
+        return result;
+    }
+
+    private Product product(int productId) {
+        return new Product(productId, "Product " + productId, productId % 1000, serviceAddress);
+    }
+
+    private List<Recommendation> recommendations(int productId) {
+        List<Recommendation> recommendations = new ArrayList<>(listSize);
+        for (int i = 1; i <= listSize; i++) {
+            recommendations.add(new Recommendation(productId, i, "Author " + i, 5 - i * 5 / (listSize + 1),
+                    CONTENT, serviceAddress));
+        }
+        return recommendations;
+    }
+
+    private List<Review> reviews(int productId) {
+        List<Review> reviews = new ArrayList<>(listSize);
+        for (int i = 1; i <= listSize; i++) {
+            reviews.add(new Review(productId, i, "Author " + i, "Subject " + i, CONTENT.repeat(3), serviceAddress));
+        }
+        return reviews;
+    }
+
+    private static List<Integer> productIds(HttpServerRequest request) {
+        Map<String, List<String>> parameters = new QueryStringDecoder(request.uri()).parameters();
+        return parameters.getOrDefault("productIds", List.of()).stream()
+                .flatMap(value -> Arrays.stream(value.split(",")))
+                .map(Integer::parseInt)
+                .toList();
+    }
+}
@@ -1,10 +1,22 @@
 package se.mathias.microservices.composite.product;
 
+import io.netty.channel.ChannelOption;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import se.mathias.microservices.composite.product.services.DownstreamRejections;
+import se.mathias.util.http.DeadlineExchangeFilterFunction;
+
+import java.time.Duration;
 
 /**
  * The type Product composite service application.
@@ -13,14 +25,89 @@ import org.springframework.web.client.RestTemplate;
 @ComponentScan("se.mathias")
 public class ProductCompositeServiceApplication {
 
+	private static final String SMILE_VALUE = "application/x-jackson-smile";
+
+	/**
+	 * Connection pool shared by all calls to the core services. Reactor Netty keeps one pool per
+	 * remote address, so the limits apply per core service instance. Pool utilisation is published
+	 * to Micrometer as the reactor.netty.connection.provider.* gauges.
+	 *
+	 * @param maxConnections        the max number of connections per host
+	 * @param pendingAcquireMaxCount the max number of requests waiting for a connection per host
+	 * @param pendingAcquireTimeout the max time to wait for a connection
+	 * @param maxIdleTime           the time after which an idle connection is closed
+	 * @param maxLifeTime           the time after which a connection is closed, regardless of use
+	 * @param evictInBackground     the interval of the background eviction of idle and expired connections
+	 * @return the connection provider
+	 */
+	@Bean(destroyMethod = "dispose")
+	ConnectionProvider connectionProvider(
+			@Value("${app.http-client.max-connections}") int maxConnections,
+			@Value("${app.http-client.pending-acquire-max-count}") int pendingAcquireMaxCount,
+			@Value("${app.http-client.pending-acquire-timeout}") Duration pendingAcquireTimeout,
+			@Value("${app.http-client.max-idle-time}") Duration maxIdleTime,
+			@Value("${app.http-client.max-life-time}") Duration maxLifeTime,
+			@Value("${app.http-client.evict-in-background}") Duration evictInBackground) {
+
+		return ConnectionProvider.builder("core-services")
+				.maxConnections(maxConnections)
+				.pendingAcquireMaxCount(pendingAcquireMaxCount)
+				.pendingAcquireTimeout(pendingAcquireTimeout)
+				.maxIdleTime(maxIdleTime)
+				.maxLifeTime(maxLifeTime)
+				.evictInBackground(evictInBackground)
+				.lifo()
+				.metrics(true)
+				.build();
+	}
+
 	/**
-	 * Rest template rest template.
+	 * Web client used for the non-blocking calls to the core services. The deadline of the incoming
+	 * request is propagated to the core services and bounds the time spent waiting for them.
+	 * <p>
+	 * Responses are asked for in Smile, binary JSON, if enabled. It is smaller than JSON text and cheaper to
+	 * parse, and still falls back to JSON with a core service that doesn't produce it.
+	 * <p>
+	 * 404 and 422 answers are turned into the domain exceptions they stand for right away, see
+	 * {@link DownstreamRejections}.
 	 *
-	 * @return the rest template
+	 * @param builder            the auto-configured web client builder
+	 * @param connectionProvider the connection pool
+	 * @param connectTimeout     the max time to establish a connection
+	 * @param responseTimeout    the max time to wait for a response after the request is sent
+	 * @param h2c                if HTTP/2 over cleartext should be negotiated with the core services
+	 * @param smile              if the core services should be asked for Smile instead of JSON
+	 * @return the web client
 	 */
 	@Bean
-	RestTemplate restTemplate(){
-		return new RestTemplate();
+	WebClient webClient(
+			WebClient.Builder builder,
+			ConnectionProvider connectionProvider,
+			@Value("${app.http-client.connect-timeout}") Duration connectTimeout,
+			@Value("${app.http-client.response-timeout}") Duration responseTimeout,
+			@Value("${app.http-client.h2c}") boolean h2c,
+			@Value("${app.http-client.smile}") boolean smile){
+
+		HttpClient httpClient = HttpClient.create(connectionProvider)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis())
+				.option(ChannelOption.SO_KEEPALIVE, true)
+				.responseTimeout(responseTimeout)
+				.keepAlive(true);
+
+		if (h2c) {
+			// Upgrade from HTTP/1.1, lets a single connection multiplex concurrent requests
+			httpClient = httpClient.protocol(HttpProtocol.H2C, HttpProtocol.HTTP11);
+		}
+
+		if (smile) {
+			builder = builder.defaultHeader(HttpHeaders.ACCEPT, SMILE_VALUE + ", " + MediaType.APPLICATION_JSON_VALUE + ";q=0.9");
+		}
+
+		return builder
+				.clientConnector(new ReactorClientHttpConnector(httpClient))
+				.filter(new DeadlineExchangeFilterFunction())
+				.defaultStatusHandler(DownstreamRejections::isRejection, DownstreamRejections::toException)
+				.build();
 	}
 
 	/**
@@ -0,0 +1,58 @@
+package se.mathias.microservices.composite.product.services;
+
+import se.mathias.api.exceptions.InvalidInputException;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The parts of a product aggregate that can be selected with the fields parameter. The product id is always
+ * included. Parts that aren't selected are neither fetched from the core services nor serialized.
+ */
+enum AggregateField {
+    NAME("name"),
+    WEIGHT("weight"),
+    RECOMMENDATIONS("recommendations"),
+    REVIEWS("reviews"),
+    SERVICE_ADDRESSES("serviceAddresses");
+
+    static final Set<AggregateField> ALL = EnumSet.allOf(AggregateField.class);
+
+    private final String fieldName;
+
+    AggregateField(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * Parses the fields parameter of a request.
+     *
+     * @param fieldNames the names of the selected fields, null or empty selects all fields
+     * @return the selected fields
+     */
+    static Set<AggregateField> parse(List<String> fieldNames) {
+        if (fieldNames == null || fieldNames.isEmpty()) {
+            return ALL;
+        }
+
+        Set<AggregateField> fields = EnumSet.noneOf(AggregateField.class);
+        for (String fieldName : fieldNames) {
+            String trimmed = fieldName.trim();
+            if (trimmed.isEmpty() || trimmed.equals("productId")) {
+                continue;
+            }
+            fields.add(of(trimmed));
+        }
+        return fields;
+    }
+
+    private static AggregateField of(String fieldName) {
+        for (AggregateField field : values()) {
+            if (field.fieldName.equals(fieldName)) {
+                return field;
+            }
+        }
+        throw new InvalidInputException("Unknown field: " + fieldName);
+    }
+}
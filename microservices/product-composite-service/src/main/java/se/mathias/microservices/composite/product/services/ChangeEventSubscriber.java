@@ -0,0 +1,184 @@
+package se.mathias.microservices.composite.product.services;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.netty.http.client.HttpClientRequest;
+import reactor.util.retry.Retry;
+import se.mathias.api.event.ChangeEvent;
+import se.mathias.util.event.ChangeEventBroker;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the product aggregate cache up to date with the changes made in the core services, so that its time
+ * to live can be long without serving stale aggregates. Only the aggregate of the product that changed is
+ * invalidated, the next request for it loads it again. So is a cached rejection of the product, e.g. once
+ * it is created.
+ * <p>
+ * The transport is set with app.events.transport:
+ * <ul>
+ *   <li>http, the default, streams the server-sent events of each core service's /events endpoint. Events
+ *   sent while a stream is down are lost, so every time a stream is (re)established both caches are
+ *   invalidated. A stream without even a heartbeat for the idle timeout is assumed dead and reconnected.</li>
+ *   <li>local subscribes to the {@link ChangeEventBroker} of this JVM, for tests and for running the core
+ *   services in-process</li>
+ *   <li>none doesn't subscribe, aggregates are only refreshed when they expire</li>
+ * </ul>
+ */
+@Component
+public class ChangeEventSubscriber {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeEventSubscriber.class);
+
+    private static final ParameterizedTypeReference<ServerSentEvent<ChangeEvent>> EVENT_TYPE = new ParameterizedTypeReference<>() {};
+
+    private final WebClient webClient;
+
+    private final ChangeEventBroker localBroker;
+
+    private final ProductAggregateCache cache;
+
+    private final ProductRejectionCache rejections;
+
+    private final String transport;
+
+    private final String[] eventUrls;
+
+    private final Duration reconnectDelay;
+
+    private final Duration idleTimeout;
+
+    private Disposable subscription;
+
+    /**
+     * Instantiates a new Change event subscriber.
+     *
+     * @param webClient                 the web client
+     * @param localBroker               the broker of this JVM, used by the local transport
+     * @param cache                     the cache to invalidate
+     * @param rejections                the cache of rejected product ids to invalidate
+     * @param transport                 http, local or none
+     * @param productServiceHost        the product service host
+     * @param productServicePort        the product service port
+     * @param recommendationServiceHost the recommendation service host
+     * @param recommendationServicePort the recommendation service port
+     * @param reviewServiceHost         the review service host
+     * @param reviewServicePort         the review service port
+     * @param reconnectDelay            the time to wait before reconnecting a stream that failed
+     * @param idleTimeout               the max time without any data, after which a stream is reconnected
+     */
+    @Autowired
+    public ChangeEventSubscriber(
+            WebClient webClient,
+            ChangeEventBroker localBroker,
+            ProductAggregateCache cache,
+            ProductRejectionCache rejections,
+            @Value("${app.events.transport}") String transport,
+            @Value("${app.product-service.host}") String productServiceHost,
+            @Value("${app.product-service.port}") int productServicePort,
+            @Value("${app.recommendation-service.host}") String recommendationServiceHost,
+            @Value("${app.recommendation-service.port}") int recommendationServicePort,
+            @Value("${app.review-service.host}") String reviewServiceHost,
+            @Value("${app.review-service.port}") int reviewServicePort,
+            @Value("${app.events.reconnect-delay}") Duration reconnectDelay,
+            @Value("${app.events.idle-timeout}") Duration idleTimeout) {
+
+        this.webClient = webClient;
+        this.localBroker = localBroker;
+        this.cache = cache;
+        this.rejections = rejections;
+        this.transport = transport;
+        this.eventUrls = new String[] {
+                "http://" + productServiceHost + ":" + productServicePort + "/events",
+                "http://" + recommendationServiceHost + ":" + recommendationServicePort + "/events",
+                "http://" + reviewServiceHost + ":" + reviewServicePort + "/events"};
+        this.reconnectDelay = reconnectDelay;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Starts the subscription once the application is up.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Flux<ChangeEvent> events;
+        switch (transport) {
+            case "http":
+                events = Flux.merge(Flux.fromArray(eventUrls).map(this::stream));
+                break;
+            case "local":
+                events = localBroker.subscribe().retryWhen(Retry.indefinitely().doBeforeRetry(signal -> {
+                    LOG.warn("Fell behind the change events, invalidating all cached product aggregates");
+                    invalidateAll();
+                }));
+                break;
+            case "none":
+                LOG.info("Not subscribing to change events");
+                return;
+            default:
+                throw new IllegalStateException("Unknown app.events.transport: " + transport);
+        }
+
+        LOG.info("Subscribing to change events over {}", transport);
+        subscription = events.subscribe(this::onEvent);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+
+    private void onEvent(ChangeEvent event) {
+        LOG.debug("Invalidating the product aggregate of change event: {}", event);
+        cache.invalidate(event.getProductId());
+        rejections.invalidate(event.getProductId());
+    }
+
+    private void invalidateAll() {
+        cache.invalidateAll();
+        rejections.invalidateAll();
+    }
+
+    /**
+     * Streams the events of one core service, reconnecting for as long as the application runs.
+     */
+    private Flux<ChangeEvent> stream(String url) {
+        return Flux.defer(() -> {
+                    AtomicBoolean connected = new AtomicBoolean();
+                    return webClient.get().uri(url)
+                            .accept(MediaType.TEXT_EVENT_STREAM)
+                            // Replaces the response timeout of the shared client, heartbeats only come every now and then
+                            .httpRequest(request -> ((HttpClientRequest) request.getNativeRequest()).responseTimeout(idleTimeout))
+                            .retrieve()
+                            .bodyToFlux(EVENT_TYPE)
+                            .doOnNext(sse -> {
+                                // The first heartbeat is sent once the core service has subscribed us to its changes
+                                if (connected.compareAndSet(false, true)) {
+                                    LOG.info("Connected to the change events of {}, invalidating all cached product aggregates", url);
+                                    invalidateAll();
+                                }
+                            });
+                })
+                .mapNotNull(ServerSentEvent::data)
+                // A stream that ends or fails is reconnected, the core service may have restarted
+                .repeatWhen(completions -> completions.delayElements(reconnectDelay))
+                .retryWhen(Retry.fixedDelay(Long.MAX_VALUE, reconnectDelay)
+                        .doBeforeRetry(signal -> LOG.warn("Lost the change events of {}, reconnecting in {}: {}",
+                                url, reconnectDelay, signal.failure().getMessage())));
+    }
+}
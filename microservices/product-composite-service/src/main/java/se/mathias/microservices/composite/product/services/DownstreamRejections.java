@@ -0,0 +1,100 @@
+package se.mathias.microservices.composite.product.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import reactor.core.publisher.Mono;
+import se.mathias.api.exceptions.InvalidInputException;
+import se.mathias.api.exceptions.NotFoundException;
+import se.mathias.util.http.HttpErrorInfo;
+
+import java.io.IOException;
+
+/**
+ * Turns 404 and 422 answers of the core services into the {@link NotFoundException} and
+ * {@link InvalidInputException} they stand for, as a default status handler of the web client.
+ * <p>
+ * Unknown products are a large share of the calls, so the answers are mapped directly, instead of to a
+ * WebClientResponseException, with its stack trace and a copy of the body, that is then decoded to an
+ * {@link HttpErrorInfo} and mapped again. Only the message of the body is read, with a streaming parser
+ * that skips the rest, in JSON or Smile as the content type says.
+ */
+public final class DownstreamRejections {
+
+    private static final MediaType SMILE = MediaType.parseMediaType("application/x-jackson-smile");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final JsonFactory SMILE_FACTORY = new SmileFactory();
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private DownstreamRejections() {
+    }
+
+    /**
+     * Tells if a status is one of the rejections that are mapped.
+     *
+     * @param status the status of the answer
+     * @return true for 404 and 422
+     */
+    public static boolean isRejection(HttpStatusCode status) {
+        return status.value() == HttpStatus.NOT_FOUND.value() || status.value() == HttpStatus.UNPROCESSABLE_ENTITY.value();
+    }
+
+    /**
+     * Reads the message of a rejection and makes the exception it stands for.
+     *
+     * @param response the 404 or 422 answer
+     * @return the exception, with the message of the body, or with the status and request if it has none
+     */
+    public static Mono<RuntimeException> toException(ClientResponse response) {
+        MediaType contentType = response.headers().contentType().orElse(MediaType.APPLICATION_JSON);
+        return response.bodyToMono(byte[].class)
+                .defaultIfEmpty(NO_BODY)
+                .map(body -> {
+                    String message = messageOf(body, contentType);
+                    if (message == null) {
+                        HttpRequest request = response.request();
+                        message = response.statusCode().value() + " from " + request.getMethod() + " " + request.getURI();
+                    }
+                    return response.statusCode().value() == HttpStatus.NOT_FOUND.value()
+                            ? new NotFoundException(message)
+                            : new InvalidInputException(message);
+                });
+    }
+
+    /**
+     * Reads the message field of an {@link HttpErrorInfo} body.
+     *
+     * @return the message, or null if the body has none or can't be parsed
+     */
+    static String messageOf(byte[] body, MediaType contentType) {
+        if (body.length == 0) {
+            return null;
+        }
+        JsonFactory factory = SMILE.isCompatibleWith(contentType) ? SMILE_FACTORY : JSON_FACTORY;
+        try (JsonParser parser = factory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("message".equals(field)) {
+                    return parser.getValueAsString();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
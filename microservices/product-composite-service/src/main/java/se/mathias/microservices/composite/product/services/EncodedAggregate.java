@@ -0,0 +1,50 @@
+package se.mathias.microservices.composite.product.services;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The encoded response body of a complete product aggregate, as JSON and optionally gzip compressed, in
+ * read-only direct buffers outside the heap. Each response writes a duplicate, so the buffers are shared by
+ * any number of concurrent responses and are freed with the aggregate they belong to.
+ */
+final class EncodedAggregate {
+
+    private final String etag;
+
+    private final ByteBuffer json;
+
+    private final ByteBuffer gzip;
+
+    /**
+     * Instantiates a new Encoded aggregate.
+     *
+     * @param etag the entity tag of the aggregate, or null
+     * @param json the JSON body
+     * @param gzip the gzip compressed JSON body, or null if it isn't worth compressing
+     */
+    EncodedAggregate(String etag, byte[] json, byte[] gzip) {
+        this.etag = etag;
+        this.json = direct(json);
+        this.gzip = gzip == null ? null : direct(gzip);
+    }
+
+    String etag() {
+        return etag;
+    }
+
+    ByteBuffer json() {
+        return json.duplicate();
+    }
+
+    ByteBuffer gzip() {
+        return gzip == null ? null : gzip.duplicate();
+    }
+
+    boolean hasGzip() {
+        return gzip != null;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+}
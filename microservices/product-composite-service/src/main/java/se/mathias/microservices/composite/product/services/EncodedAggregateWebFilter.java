@@ -0,0 +1,199 @@
+package se.mathias.microservices.composite.product.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import se.mathias.util.http.EntityTags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Answers requests for complete product aggregates that are in the {@link ProductAggregateCache} with the
+ * response body encoded when the aggregate was first served, so a hit neither builds a DTO nor runs Jackson.
+ * <p>
+ * Only GET /product-composite/{productId} without parameters is served, anything else, and aggregates that
+ * aren't cached or are still loading, go on to the controller as usual. The body is encoded once per cache
+ * entry with the application's object mapper, the same one the controller's JSON encoder uses, and is also
+ * kept gzip compressed if it is at least app.cache.product-aggregate.encoded.gzip-min-size. Clients that
+ * accept gzip get the compressed body. Both are kept in direct buffers and written to the connection
+ * without copying.
+ * <p>
+ * Only registered for the reactive stack, with app.cache.product-aggregate.encoded.enabled.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@ConditionalOnProperty(name = "app.cache.product-aggregate.encoded.enabled", havingValue = "true")
+class EncodedAggregateWebFilter implements WebFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EncodedAggregateWebFilter.class);
+
+    private static final String PATH_PREFIX = "/product-composite/";
+
+    private final ProductAggregateCache cache;
+
+    private final ObjectMapper objectMapper;
+
+    private final boolean gzipEnabled;
+
+    private final long gzipMinSize;
+
+    private final int pageSize;
+
+    /**
+     * Instantiates a new Encoded aggregate web filter.
+     *
+     * @param cache        the product aggregate cache
+     * @param objectMapper the object mapper of the application
+     * @param gzipEnabled  if the body should also be kept gzip compressed
+     * @param gzipMinSize  the min size of a body to compress
+     * @param pageSize     the number of recommendations and reviews per page
+     */
+    @Autowired
+    EncodedAggregateWebFilter(
+            ProductAggregateCache cache,
+            ObjectMapper objectMapper,
+            @Value("${app.cache.product-aggregate.encoded.gzip}") boolean gzipEnabled,
+            @Value("${app.cache.product-aggregate.encoded.gzip-min-size}") DataSize gzipMinSize,
+            @Value("${app.aggregate.page-size}") int pageSize) {
+        this.cache = cache;
+        this.objectMapper = objectMapper;
+        this.gzipEnabled = gzipEnabled;
+        this.gzipMinSize = gzipMinSize.toBytes();
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        int productId = productIdOf(request);
+        if (productId < 1 || !acceptsJson(request)) {
+            return chain.filter(exchange);
+        }
+
+        TaggedAggregate tagged = cache.getIfLoaded(productId);
+        EncodedAggregate encoded = tagged == null ? null : encoded(tagged);
+        if (encoded == null) {
+            return chain.filter(exchange);
+        }
+
+        ServerHttpResponse response = exchange.getResponse();
+        HttpHeaders headers = response.getHeaders();
+        if (EntityTags.notModified(encoded.etag(), request.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH), headers)) {
+            response.setStatusCode(HttpStatus.NOT_MODIFIED);
+            return response.setComplete();
+        }
+
+        ByteBuffer body = encoded.json();
+        if (encoded.hasGzip()) {
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (acceptsGzip(request)) {
+                headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+                body = encoded.gzip();
+            }
+        }
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.setContentLength(body.remaining());
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(body)));
+    }
+
+    /**
+     * Returns the product id of a request for a complete aggregate, or 0 for any other request.
+     */
+    private static int productIdOf(ServerHttpRequest request) {
+        if (request.getMethod() != HttpMethod.GET || request.getURI().getRawQuery() != null) {
+            return 0;
+        }
+        String path = request.getPath().pathWithinApplication().value();
+        int length = path.length() - PATH_PREFIX.length();
+        if (length < 1 || length > 9 || !path.startsWith(PATH_PREFIX)) {
+            return 0;
+        }
+
+        int productId = 0;
+        for (int i = PATH_PREFIX.length(); i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            productId = productId * 10 + (c - '0');
+        }
+        return productId;
+    }
+
+    private static boolean acceptsJson(ServerHttpRequest request) {
+        List<MediaType> accepted = request.getHeaders().getAccept();
+        if (accepted.isEmpty()) {
+            return true;
+        }
+        for (MediaType mediaType : accepted) {
+            if (mediaType.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(ServerHttpRequest request) {
+        for (String value : request.getHeaders().getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String coding : value.split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim();
+                boolean refused = parts.length > 1 && parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+                if ((name.equalsIgnoreCase("gzip") || name.equals("*")) && !refused) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the encoded body of a cached aggregate, encoding it on first use. Concurrent first uses may
+     * both encode it, the result is the same.
+     *
+     * @return the encoded body, or null if it can't be encoded
+     */
+    private EncodedAggregate encoded(TaggedAggregate tagged) {
+        EncodedAggregate encoded = tagged.getEncoded();
+        if (encoded == null) {
+            try {
+                byte[] json = objectMapper.writeValueAsBytes(tagged.getAggregate());
+                byte[] gzip = gzipEnabled && json.length >= gzipMinSize ? gzip(json) : null;
+                encoded = new EncodedAggregate(tagged.etag(AggregateField.ALL, pageSize), json, gzip);
+            } catch (IOException ex) {
+                LOG.warn("Failed to encode the product aggregate of productId: {}", tagged.getAggregate().getProductId(), ex);
+                return null;
+            }
+            tagged.setEncoded(encoded);
+        }
+        return encoded;
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+}
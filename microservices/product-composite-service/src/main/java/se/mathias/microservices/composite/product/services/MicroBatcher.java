@@ -0,0 +1,209 @@
+package se.mathias.microservices.composite.product.services;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.context.ContextView;
+import se.mathias.util.http.Deadline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * DataLoader style micro-batching of downstream calls.
+ * <p>
+ * Keys requested by unrelated callers are collected until either the max delay has passed since the first
+ * key of the batch arrived or max size callers are waiting, whichever comes first. The batch is then sent as
+ * one call, with at most max size distinct keys, and each caller gets the value of its own key from the
+ * result. Callers asking for the same key in a batch share its value. Keys missing in the result get the
+ * default value, a failed batch call fails all its callers. The batch call runs with the Reactor context of
+ * the first caller of the batch, but not with its deadline, see {@link Deadline#shared}; each caller
+ * bounds its own wait for the result.
+ * <p>
+ * Callers never lock: they add their key to a lock-free queue, and one thread at a time drains it into
+ * batches, the thread that filled a batch or the max delay timer. Callers that arrive while the queue is
+ * being drained make the draining thread go round once more.
+ *
+ * @param <K> the type of the key
+ * @param <V> the type of the value
+ */
+final class MicroBatcher<K, V> {
+
+    private final Function<List<K>, Mono<Map<K, V>>> batchCall;
+
+    private final V defaultValue;
+
+    private final int maxSize;
+
+    private final long maxDelayNanos;
+
+    private final Scheduler scheduler;
+
+    private final Duration sharedTimeout;
+
+    private final Queue<Caller<K, V>> queue = new ConcurrentLinkedQueue<>();
+
+    // Counted before a caller is added to the queue, so never less than its size
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger draining = new AtomicInteger();
+
+    private final AtomicBoolean flush = new AtomicBoolean();
+
+    /**
+     * Instantiates a new Micro batcher.
+     *
+     * @param batchCall    the call that loads the values of a batch of keys
+     * @param defaultValue the value of keys that are missing in the result of the batch call
+     * @param maxSize      the max number of distinct keys in a batch
+     * @param maxDelay     the max time the first key of a batch waits for the batch to be sent
+     * @param scheduler    the scheduler of the max delay timer
+     * @param sharedTimeout the budget of a batch call, zero for none
+     */
+    MicroBatcher(Function<List<K>, Mono<Map<K, V>>> batchCall, V defaultValue, int maxSize, Duration maxDelay, Scheduler scheduler,
+                 Duration sharedTimeout) {
+        this.batchCall = batchCall;
+        this.defaultValue = defaultValue;
+        this.maxSize = maxSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.scheduler = scheduler;
+        this.sharedTimeout = sharedTimeout;
+    }
+
+    /**
+     * Loads the value of a key as part of the next batch call.
+     *
+     * @param key the key
+     * @return the value of the key
+     */
+    Mono<V> load(K key) {
+        // A caller that cancels must not cancel the batch other callers are waiting for
+        return Mono.deferContextual(context -> Mono.fromFuture(enqueue(key, context), true));
+    }
+
+    private CompletableFuture<V> enqueue(K key, ContextView context) {
+        Caller<K, V> caller = new Caller<>(key, context);
+        int waiting = queued.incrementAndGet();
+        queue.offer(caller);
+
+        if (waiting == 1) {
+            startTimer();
+        }
+        if (waiting >= maxSize) {
+            drain();
+        }
+        return caller.future;
+    }
+
+    private void startTimer() {
+        scheduler.schedule(() -> {
+            flush.set(true);
+            drain();
+        }, maxDelayNanos, NANOSECONDS);
+    }
+
+    /**
+     * Sends the full batches in the queue, or all of it once the max delay has passed. Only one thread drains
+     * at a time, a call while another thread drains makes that thread drain again when it is done.
+     */
+    private void drain() {
+        if (draining.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            boolean all = flush.getAndSet(false);
+            while (all ? queued.get() > 0 : queued.get() >= maxSize) {
+                Batch<K, V> batch = take();
+                if (batch == null) {
+                    // The counted callers are still being added, the next drain sends them
+                    break;
+                }
+                send(batch);
+            }
+            missed = draining.addAndGet(-missed);
+        } while (missed != 0);
+
+        // Callers left behind, e.g. added while the timer drained the queue, get a timer of their own
+        if (queued.get() > 0) {
+            startTimer();
+        }
+    }
+
+    /**
+     * Takes the callers of the next batch off the queue: up to max size distinct keys, and every caller of
+     * them that is next in line.
+     */
+    private Batch<K, V> take() {
+        Batch<K, V> batch = null;
+        Caller<K, V> caller;
+        while ((caller = queue.peek()) != null) {
+            if (batch != null && batch.keys.size() >= maxSize && !batch.keys.contains(caller.key)) {
+                break;
+            }
+            // Only the draining thread takes from the queue, so this is the caller that was peeked at
+            queue.poll();
+            queued.decrementAndGet();
+            if (batch == null) {
+                batch = new Batch<>(caller.context);
+            }
+            batch.keys.add(caller.key);
+            batch.callers.add(caller);
+        }
+        return batch;
+    }
+
+    private void send(Batch<K, V> batch) {
+        List<Caller<K, V>> callers = batch.callers;
+        Mono<Map<K, V>> call;
+        try {
+            call = batchCall.apply(new ArrayList<>(batch.keys));
+        } catch (RuntimeException ex) {
+            callers.forEach(c -> c.future.completeExceptionally(ex));
+            return;
+        }
+
+        call.contextWrite(Deadline.shared(batch.context, sharedTimeout)).subscribe(
+                values -> callers.forEach(c -> c.future.complete(values.getOrDefault(c.key, defaultValue))),
+                error -> callers.forEach(c -> c.future.completeExceptionally(error)),
+                () -> callers.forEach(c -> c.future.complete(defaultValue)));
+    }
+
+    private static final class Caller<K, V> {
+        private final K key;
+
+        private final ContextView context;
+
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+
+        Caller(K key, ContextView context) {
+            this.key = key;
+            this.context = context;
+        }
+    }
+
+    private static final class Batch<K, V> {
+        // Only touched by the draining thread until the batch is sent
+        private final Set<K> keys = new LinkedHashSet<>();
+
+        private final List<Caller<K, V>> callers = new ArrayList<>();
+
+        private final ContextView context;
+
+        Batch(ContextView context) {
+            this.context = context;
+        }
+    }
+}
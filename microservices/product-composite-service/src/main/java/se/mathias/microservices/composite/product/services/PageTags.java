@@ -0,0 +1,54 @@
+package se.mathias.microservices.composite.product.services;
+
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.api.core.review.Review;
+import se.mathias.util.http.EntityTags;
+
+import java.util.List;
+
+/**
+ * Entity tags of first pages that were fetched in a batch, whose answers carry no tag per product.
+ * <p>
+ * The tag is made from the decoded page like the core services make theirs, see {@link EntityTags}: the sum
+ * of the content hashes of the entries. It covers what the page shows, not what the core service has
+ * beyond it, so it only changes when the page does. The service addresses don't take part.
+ */
+final class PageTags {
+
+    private PageTags() {
+    }
+
+    /**
+     * Makes the tag of a page of recommendations.
+     *
+     * @param recommendations the recommendations of the page
+     * @return the weak entity tag
+     */
+    static String ofRecommendations(List<Recommendation> recommendations) {
+        long hash = 0;
+        for (Recommendation recommendation : recommendations) {
+            long entry = EntityTags.hash(EntityTags.NO_CONTENT, recommendation.getRecommendationId());
+            entry = EntityTags.hash(entry, recommendation.getAuthor());
+            entry = EntityTags.hash(entry, recommendation.getRate());
+            hash += EntityTags.hash(entry, recommendation.getContent());
+        }
+        return EntityTags.of(hash);
+    }
+
+    /**
+     * Makes the tag of a page of reviews.
+     *
+     * @param reviews the reviews of the page
+     * @return the weak entity tag
+     */
+    static String ofReviews(List<Review> reviews) {
+        long hash = 0;
+        for (Review review : reviews) {
+            long entry = EntityTags.hash(EntityTags.NO_CONTENT, review.getReviewId());
+            entry = EntityTags.hash(entry, review.getAuthor());
+            entry = EntityTags.hash(entry, review.getSubject());
+            hash += EntityTags.hash(entry, review.getContent());
+        }
+        return EntityTags.of(hash);
+    }
+}
@@ -0,0 +1,191 @@
+package se.mathias.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+import se.mathias.util.http.Deadline;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Size bounded, in-process cache of product aggregates, kept with the entity tags of their parts.
+ * <p>
+ * Eviction uses Caffeine's W-TinyLFU policy, so a burst of one-off lookups can't push out the frequently
+ * requested products. Each entry gets its own time to live, spread out with a random jitter so entries
+ * loaded together don't expire together. Concurrent lookups of a missing or expired key share a single
+ * load, i.e. a hot entry that expires results in one call per core service, not one per waiting request.
+ * The load isn't bound by the deadline of the request that started it, see {@link Deadline#shared}, each
+ * request only bounds its own wait for it.
+ * Failed loads are not cached. Degraded aggregates, with recommendations or reviews that are a fallback for
+ * a failed, late or skipped call, are only kept for the degraded time to live, which is short or zero, so
+ * one failure isn't served to every client for the whole time to live.
+ * <p>
+ * Hit ratio, evictions and load latency are published through Micrometer as the cache.* meters with
+ * the tag cache=productAggregate.
+ */
+@Component
+public class ProductAggregateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductAggregateCache.class);
+
+    private static final String CACHE_NAME = "productAggregate";
+
+    private final boolean enabled;
+
+    private final AsyncCache<Integer, TaggedAggregate> cache;
+
+    private final Duration sharedTimeout;
+
+    /**
+     * Instantiates a new Product aggregate cache.
+     *
+     * @param meterRegistry   the meter registry
+     * @param enabled         if the cache is enabled, if not all lookups go to the loader
+     * @param maximumSize     the max number of entries
+     * @param timeToLive      the time to live of an entry
+     * @param timeToLiveJitter the fraction of the time to live that is randomly subtracted per entry
+     * @param degradedTimeToLive the time to live of a degraded aggregate, zero to not keep it at all
+     * @param sharedTimeout    the budget of a load, zero for none
+     */
+    @Autowired
+    public ProductAggregateCache(
+            MeterRegistry meterRegistry,
+            @Value("${app.cache.product-aggregate.enabled}") boolean enabled,
+            @Value("${app.cache.product-aggregate.maximum-size}") long maximumSize,
+            @Value("${app.cache.product-aggregate.time-to-live}") Duration timeToLive,
+            @Value("${app.cache.product-aggregate.time-to-live-jitter}") double timeToLiveJitter,
+            @Value("${app.cache.product-aggregate.degraded-time-to-live}") Duration degradedTimeToLive,
+            @Value("${app.deadline.default-timeout:0ms}") Duration sharedTimeout) {
+
+        this.enabled = enabled;
+        this.sharedTimeout = sharedTimeout;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new JitteredTimeToLive(timeToLive, timeToLiveJitter, degradedTimeToLive))
+                .recordStats()
+                .buildAsync();
+
+        new CaffeineCacheMetrics<>(cache.synchronous(), CACHE_NAME, Tags.empty()).bindTo(meterRegistry);
+
+        LOG.info("Product aggregate cache enabled: {}, maximum size: {}, time to live: {}", enabled, maximumSize, timeToLive);
+    }
+
+    /**
+     * Gets a product aggregate, the loader is only called if it isn't cached and no other load is in flight.
+     *
+     * @param productId the product id
+     * @param loader    loads the product aggregate on a miss
+     * @return the product aggregate
+     */
+    public Mono<TaggedAggregate> get(int productId, Function<Integer, Mono<TaggedAggregate>> loader) {
+        if (!enabled) {
+            return loader.apply(productId);
+        }
+
+        // Cancelling one subscriber must not cancel the load other subscribers are waiting for,
+        // the load runs with the Reactor context of the subscriber that started it, but with a shared deadline
+        return Mono.deferContextual(context -> withDeadline(context, Mono.fromFuture(cache.get(productId,
+                (id, executor) -> loader.apply(id).contextWrite(Deadline.shared(context, sharedTimeout)).toFuture()), true)));
+    }
+
+    /**
+     * Gets a product aggregate if it is cached or being loaded, without loading it otherwise.
+     *
+     * @param productId the product id
+     * @return the product aggregate, or null if it isn't cached
+     */
+    public Mono<TaggedAggregate> getIfPresent(int productId) {
+        if (!enabled) {
+            return null;
+        }
+
+        CompletableFuture<TaggedAggregate> future = cache.getIfPresent(productId);
+        return future == null ? null : Mono.deferContextual(context -> withDeadline(context, Mono.fromFuture(future, true)));
+    }
+
+    /**
+     * Gets a product aggregate if it is cached and done loading, without waiting or loading it otherwise.
+     *
+     * @param productId the product id
+     * @return the product aggregate, or null if it isn't cached or still loading
+     */
+    public TaggedAggregate getIfLoaded(int productId) {
+        if (!enabled) {
+            return null;
+        }
+
+        CompletableFuture<TaggedAggregate> future = cache.getIfPresent(productId);
+        return future != null && future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+    }
+
+    /**
+     * Removes a product aggregate, also if it is being loaded, so that the next lookup loads it again.
+     *
+     * @param productId the product id
+     */
+    public void invalidate(int productId) {
+        cache.synchronous().invalidate(productId);
+    }
+
+    /**
+     * Removes all product aggregates.
+     */
+    public void invalidateAll() {
+        cache.synchronous().invalidateAll();
+    }
+
+    /**
+     * Bounds the wait of one subscriber for a shared load by its own deadline, if it has one.
+     */
+    private static Mono<TaggedAggregate> withDeadline(ContextView context, Mono<TaggedAggregate> shared) {
+        return Deadline.from(context)
+                .map(deadline -> shared.timeout(deadline.remaining()))
+                .orElse(shared);
+    }
+
+    private static final class JitteredTimeToLive implements Expiry<Integer, TaggedAggregate> {
+
+        private final long timeToLiveNanos;
+
+        private final long maxJitterNanos;
+
+        private final long degradedTimeToLiveNanos;
+
+        JitteredTimeToLive(Duration timeToLive, double jitter, Duration degradedTimeToLive) {
+            this.timeToLiveNanos = timeToLive.toNanos();
+            this.maxJitterNanos = (long) (timeToLiveNanos * jitter);
+            this.degradedTimeToLiveNanos = degradedTimeToLive.toNanos();
+        }
+
+        @Override
+        public long expireAfterCreate(Integer key, TaggedAggregate value, long currentTime) {
+            if (value.isDegraded()) {
+                return degradedTimeToLiveNanos;
+            }
+            return maxJitterNanos > 0 ? timeToLiveNanos - ThreadLocalRandom.current().nextLong(maxJitterNanos) : timeToLiveNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(Integer key, TaggedAggregate value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(Integer key, TaggedAggregate value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -1,16 +1,22 @@
 package se.mathias.microservices.composite.product.services;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
-import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import se.mathias.api.core.PageCursor;
 import se.mathias.api.core.product.Product;
 import se.mathias.api.core.product.ProductService;
 import se.mathias.api.core.recommendation.Recommendation;
@@ -19,127 +25,728 @@ import se.mathias.api.core.review.Review;
 import se.mathias.api.core.review.ReviewService;
 import se.mathias.api.exceptions.InvalidInputException;
 import se.mathias.api.exceptions.NotFoundException;
-import se.mathias.util.http.HttpErrorInfo;
+import se.mathias.util.http.Deadline;
 
-import java.io.IOException;
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.List;
-
-import static org.springframework.http.HttpMethod.GET;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * The type Product composite integration.
+ * <p>
+ * All calls to the core services are non-blocking, i.e. they only describe the request and
+ * are executed when the returned publisher is subscribed to. Concurrent single product calls for the
+ * same product id share one downstream call. Recommendation and review calls from concurrent requests
+ * for different products can be batched into one downstream call per core service, and slow
+ * recommendation and review calls can be hedged.
+ * <p>
+ * If the request has a deadline, every call only gets the remaining budget, and the budget is
+ * propagated to the core services. Coalesced and batched calls are shared with other requests, they get
+ * the default budget instead, or the remaining one of the request that starts them if that is larger; each
+ * request only bounds its own wait for them. Recommendations and reviews are optional, once the budget is
+ * exhausted they are skipped instead of waited for.
+ * <p>
+ * Recommendations and reviews are fetched a page at a time. Product aggregates get the first page plus one
+ * entry, which tells if there is a next page; only those calls are coalesced and batched.
+ * <p>
+ * Every downstream call is timed per service, kind of call and outcome, and calls answered with an empty
+ * list instead of an error are counted, see {@link DownstreamMetrics}.
+ * <p>
+ * Products and first pages are returned with their entity tags. With conditional requests enabled, the last
+ * product and first pages fetched for a product id are kept in a size bounded store, and the next call for
+ * it sends their tag in If-None-Match. A 304 answer reuses the kept value, so unchanged lists are neither
+ * transferred nor parsed again. Batched answers carry no tags per product, so a batch can't be revalidated:
+ * with conditional requests enabled, first pages are always fetched one product at a time. They are
+ * disabled by default, so batching stays in effect. A first page fetched in a batch is tagged from its
+ * decoded entries instead, see {@link PageTags}, so aggregates are tagged either way.
+ * <p>
+ * Products the product service rejected, since they don't exist or the id is invalid, are rejected again
+ * without a call for a short while, see {@link ProductRejectionCache}.
  */
 @Component
 public class ProductCompositeIntegration implements ProductService, RecommendationService, ReviewService {
 
     private static final Logger LOG = LoggerFactory.getLogger(ProductCompositeIntegration.class);
 
-    private final RestTemplate restTemplate;
-
-    private final ObjectMapper objectMapper;
+    private final WebClient webClient;
 
     private final String productServiceUrl;
 
+    private final String productCreateServiceUrl;
+
     private final String recommendationServiceUrl;
 
+    private final String recommendationCreateServiceUrl;
+
     private final String reviewServiceUrl;
 
+    private final String reviewCreateServiceUrl;
+
+    private final String productBatchServiceUrl;
+
+    private final String recommendationBatchServiceUrl;
+
+    private final String reviewBatchServiceUrl;
+
+    private final ProductRejectionCache productRejections;
+
+    private final RequestCoalescer<Integer, Versioned<Product>> productCalls;
+
+    private final RequestCoalescer<Integer, Versioned<List<Recommendation>>> recommendationCalls;
+
+    private final RequestCoalescer<Integer, Versioned<List<Review>>> reviewCalls;
+
+    private final boolean conditionalRequestsEnabled;
+
+    private final Cache<Integer, Versioned<Product>> productValidators;
+
+    private final Cache<Integer, Versioned<List<Recommendation>>> recommendationValidators;
+
+    private final Cache<Integer, Versioned<List<Review>>> reviewValidators;
+
+    private final boolean batchingEnabled;
+
+    private final MicroBatcher<Integer, List<Recommendation>> recommendationBatcher;
+
+    private final MicroBatcher<Integer, List<Review>> reviewBatcher;
+
+    private final RequestHedger recommendationHedger;
+
+    private final RequestHedger recommendationBatchHedger;
+
+    private final RequestHedger reviewHedger;
+
+    private final RequestHedger reviewBatchHedger;
+
+    private final DownstreamMetrics productMetrics;
+
+    private final DownstreamMetrics productBatchMetrics;
+
+    private final DownstreamMetrics productWriteMetrics;
+
+    private final DownstreamMetrics recommendationMetrics;
+
+    private final DownstreamMetrics recommendationBatchMetrics;
+
+    private final DownstreamMetrics recommendationPageMetrics;
+
+    private final DownstreamMetrics recommendationWriteMetrics;
+
+    private final DownstreamMetrics reviewMetrics;
+
+    private final DownstreamMetrics reviewBatchMetrics;
+
+    private final DownstreamMetrics reviewPageMetrics;
+
+    private final DownstreamMetrics reviewWriteMetrics;
+
+    private final Duration minOptionalBudget;
+
+    private final int firstPageLimit;
+
     /**
      * Instantiates a new Product composite integration.
      *
-     * @param restTemplate              the rest template
-     * @param objectMapper              the object mapper
+     * @param webClient                 the web client
+     * @param meterRegistry             the meter registry
+     * @param productRejections         the cache of the product ids the product service rejected
      * @param productServiceHost        the product service host
      * @param productServicePort        the product service port
      * @param recommendationServiceHost the recommendation service host
      * @param recommendationServicePort the recommendation service port
      * @param reviewServiceHost         the review service host
      * @param reviewServicePort         the review service port
+     * @param coalescingEnabled         if concurrent calls for the same product should share one downstream call
+     * @param conditionalRequestsEnabled if products and first pages should be revalidated instead of fetched again, instead of batching first pages
+     * @param conditionalRequestsMaxSize the max number of products to keep products and first pages of, per core service
+     * @param batchingEnabled           if recommendation and review calls from concurrent requests should be batched
+     * @param batchingMaxSize           the max number of products in a batched call
+     * @param batchingMaxDelay          the max time a call waits for other calls to batch with
+     * @param hedgingEnabled            if slow recommendation and review calls should be hedged
+     * @param hedgingPercentile         the latency percentile after which a call is hedged
+     * @param hedgingMinDelay           the min time after which a call is hedged
+     * @param hedgingBudgetRatio        the max fraction of the calls that are hedged
+     * @param minOptionalBudget         the min remaining budget to still make optional recommendation and review calls
+     * @param sharedCallTimeout         the budget of coalesced and batched calls, which don't take that of the request
+     * @param pageSize                  the number of recommendations and reviews in a product aggregate
      */
     @Autowired
     public ProductCompositeIntegration(
-            RestTemplate restTemplate,
-            ObjectMapper objectMapper,
+            WebClient webClient,
+            MeterRegistry meterRegistry,
+            ProductRejectionCache productRejections,
             @Value("${app.product-service.host}") String productServiceHost,
             @Value("${app.product-service.port}") int productServicePort,
             @Value("${app.recommendation-service.host}") String recommendationServiceHost,
             @Value("${app.recommendation-service.port}") int recommendationServicePort,
             @Value("${app.review-service.host}") String reviewServiceHost,
-            @Value("${app.review-service.port}") int reviewServicePort) {
+            @Value("${app.review-service.port}") int reviewServicePort,
+            @Value("${app.coalescing.enabled}") boolean coalescingEnabled,
+            @Value("${app.conditional-requests.enabled}") boolean conditionalRequestsEnabled,
+            @Value("${app.conditional-requests.maximum-size}") long conditionalRequestsMaxSize,
+            @Value("${app.batching.enabled}") boolean batchingEnabled,
+            @Value("${app.batching.max-size}") int batchingMaxSize,
+            @Value("${app.batching.max-delay}") Duration batchingMaxDelay,
+            @Value("${app.hedging.enabled}") boolean hedgingEnabled,
+            @Value("${app.hedging.percentile}") double hedgingPercentile,
+            @Value("${app.hedging.min-delay}") Duration hedgingMinDelay,
+            @Value("${app.hedging.budget-ratio}") double hedgingBudgetRatio,
+            @Value("${app.deadline.min-optional-budget}") Duration minOptionalBudget,
+            @Value("${app.deadline.default-timeout:0ms}") Duration sharedCallTimeout,
+            @Value("${app.aggregate.page-size}") int pageSize) {
 
-        this.restTemplate = restTemplate;
-        this.objectMapper = objectMapper;
+        this.webClient = webClient;
 
         this.productServiceUrl = "http://" + productServiceHost + ":" + productServicePort + "/product/";
+        this.productCreateServiceUrl = "http://" + productServiceHost + ":" + productServicePort + "/product";
         this.recommendationServiceUrl = "http://" + recommendationServiceHost + ":" + recommendationServicePort + "/recommendation?productId=";
+        this.recommendationCreateServiceUrl = "http://" + recommendationServiceHost + ":" + recommendationServicePort + "/recommendation";
         this.reviewServiceUrl = "http://" + reviewServiceHost + ":" + reviewServicePort + "/review?productId=";
+        this.reviewCreateServiceUrl = "http://" + reviewServiceHost + ":" + reviewServicePort + "/review";
+
+        this.productBatchServiceUrl = "http://" + productServiceHost + ":" + productServicePort + "/product?productIds=";
+        this.recommendationBatchServiceUrl = "http://" + recommendationServiceHost + ":" + recommendationServicePort + "/recommendation?productIds=";
+        this.reviewBatchServiceUrl = "http://" + reviewServiceHost + ":" + reviewServicePort + "/review?productIds=";
+
+        this.productRejections = productRejections;
+        this.productCalls = new RequestCoalescer<>(coalescingEnabled, sharedCallTimeout);
+        this.recommendationCalls = new RequestCoalescer<>(coalescingEnabled, sharedCallTimeout);
+        this.reviewCalls = new RequestCoalescer<>(coalescingEnabled, sharedCallTimeout);
+
+        this.conditionalRequestsEnabled = conditionalRequestsEnabled;
+        this.productValidators = Caffeine.newBuilder().maximumSize(conditionalRequestsMaxSize).build();
+        this.recommendationValidators = Caffeine.newBuilder().maximumSize(conditionalRequestsMaxSize).build();
+        this.reviewValidators = Caffeine.newBuilder().maximumSize(conditionalRequestsMaxSize).build();
+
+        this.batchingEnabled = batchingEnabled;
+        this.recommendationBatcher = new MicroBatcher<>(
+                productIds -> callGetRecommendationsByProducts(productIds, firstPageLimit)
+                        .map(recommendations -> recommendations.stream().collect(Collectors.groupingBy(Recommendation::getProductId))),
+                List.of(), batchingMaxSize, batchingMaxDelay, Schedulers.parallel(), sharedCallTimeout);
+        this.reviewBatcher = new MicroBatcher<>(
+                productIds -> callGetReviewsByProducts(productIds, firstPageLimit)
+                        .map(reviews -> reviews.stream().collect(Collectors.groupingBy(Review::getProductId))),
+                List.of(), batchingMaxSize, batchingMaxDelay, Schedulers.parallel(), sharedCallTimeout);
+
+        this.recommendationHedger = new RequestHedger("recommendation", "single",
+                hedgingEnabled, hedgingPercentile, hedgingMinDelay, hedgingBudgetRatio, meterRegistry);
+        this.recommendationBatchHedger = new RequestHedger("recommendation", "batch",
+                hedgingEnabled, hedgingPercentile, hedgingMinDelay, hedgingBudgetRatio, meterRegistry);
+        this.reviewHedger = new RequestHedger("review", "single",
+                hedgingEnabled, hedgingPercentile, hedgingMinDelay, hedgingBudgetRatio, meterRegistry);
+        this.reviewBatchHedger = new RequestHedger("review", "batch",
+                hedgingEnabled, hedgingPercentile, hedgingMinDelay, hedgingBudgetRatio, meterRegistry);
+
+        this.productMetrics = new DownstreamMetrics("product", "single", meterRegistry);
+        this.productBatchMetrics = new DownstreamMetrics("product", "batch", meterRegistry);
+        this.productWriteMetrics = new DownstreamMetrics("product", "write", meterRegistry);
+        this.recommendationMetrics = new DownstreamMetrics("recommendation", "single", meterRegistry);
+        this.recommendationBatchMetrics = new DownstreamMetrics("recommendation", "batch", meterRegistry);
+        this.recommendationPageMetrics = new DownstreamMetrics("recommendation", "page", meterRegistry);
+        this.recommendationWriteMetrics = new DownstreamMetrics("recommendation", "write", meterRegistry);
+        this.reviewMetrics = new DownstreamMetrics("review", "single", meterRegistry);
+        this.reviewBatchMetrics = new DownstreamMetrics("review", "batch", meterRegistry);
+        this.reviewPageMetrics = new DownstreamMetrics("review", "page", meterRegistry);
+        this.reviewWriteMetrics = new DownstreamMetrics("review", "write", meterRegistry);
+
+        this.minOptionalBudget = minOptionalBudget;
+        this.firstPageLimit = pageSize + 1;
     }
 
 
+    /**
+     * Gets a product from the product service.
+     *
+     * @param productId the product id
+     * @return the product, or an error if it doesn't exist or the id is invalid
+     */
     @Override
-    public Product getProduct(int productId) {
-        try{
-            String url = productServiceUrl + productId;
-            LOG.debug("Calling getProduct API on url: {}", url);
+    public Mono<Product> getProduct(int productId) {
+        return getVersionedProduct(productId).map(Versioned::getValue);
+    }
 
-            Product product = restTemplate.getForObject(url, Product.class);
-            LOG.debug("Found a product with id: {}", product.getProductId());
+    /**
+     * Gets a product from the product service with its entity tag, revalidating the product fetched before
+     * if there is one.
+     *
+     * @param productId the product id
+     * @return the product, or an error if it doesn't exist or the id is invalid
+     */
+    public Mono<Versioned<Product>> getVersionedProduct(int productId) {
+        return productRejections.guard(productId, () -> required(productCalls.execute(productId, () -> callGetProduct(productId))));
+    }
 
-            return product;
-        }catch (HttpClientErrorException ex){
-            switch (HttpStatus.resolve(ex.getStatusCode().value())){
-                case NOT_FOUND:
-                    throw new NotFoundException(getErrorMessage(ex));
-                case UNPROCESSABLE_ENTITY:
-                    throw new InvalidInputException(getErrorMessage(ex));
-                default:
-                    LOG.warn("Got an unexpected HTTP error: {}, will rethrow it", ex.getStatusCode());
-                    LOG.warn("Error body: {}", ex.getResponseBodyAsString());
-                    throw ex;
-            }
-        }
+    private Mono<Versioned<Product>> callGetProduct(int productId) {
+        String url = productServiceUrl + productId;
+        LOG.debug("Calling getProduct API on url: {}", url);
+
+        return productMetrics.record(conditionalGet(url, productId, productValidators, response -> response.toEntity(Product.class)))
+                .doOnNext(product -> LOG.debug("Found a product with id: {}", product.getValue().getProductId()))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
     }
 
+    /**
+     * Gets a product from the product service, without coalescing.
+     *
+     * @param productId   the product id
+     * @param ifNoneMatch the entity tags of the product the caller has, or null
+     * @return the product with its entity tag, or a 304 without it if it matches, or an error if it doesn't exist
+     */
+    @Override
+    public Mono<ResponseEntity<Product>> getProduct(int productId, String ifNoneMatch) {
+        String url = productServiceUrl + productId;
+        LOG.debug("Calling getProduct API on url: {}", url);
+
+        return productRejections.guard(productId, () -> required(productMetrics.record(webClient.get().uri(url)
+                        .headers(headers -> setIfNoneMatch(headers, ifNoneMatch))
+                        .retrieve()
+                        .toEntity(Product.class)))
+                .onErrorMap(WebClientResponseException.class, this::handleException));
+    }
+
+    /**
+     * Creates a product in the product service.
+     *
+     * @param body the product
+     * @return the created product, or an error if it already exists or is invalid
+     */
+    @Override
+    public Mono<Product> createProduct(Product body) {
+        LOG.debug("Calling createProduct API on url: {}", productCreateServiceUrl);
+
+        return productWriteMetrics.record(webClient.post().uri(productCreateServiceUrl).bodyValue(body).retrieve()
+                        .bodyToMono(Product.class))
+                .doOnSuccess(product -> productRejections.invalidate(body.getProductId()))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Updates a product in the product service.
+     *
+     * @param productId the product id
+     * @param body      the new state of the product
+     * @return the updated product, or an error if it doesn't exist or is invalid
+     */
+    @Override
+    public Mono<Product> updateProduct(int productId, Product body) {
+        String url = productServiceUrl + productId;
+        LOG.debug("Calling updateProduct API on url: {}", url);
+
+        return productWriteMetrics.record(webClient.put().uri(url).bodyValue(body).retrieve()
+                        .bodyToMono(Product.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Deletes a product in the product service.
+     *
+     * @param productId the product id
+     * @return completes when the product is deleted
+     */
     @Override
-    public List<Recommendation> getRecommendations(int productId) {
-        try{
-            String recommendationUrl = recommendationServiceUrl + productId;
-            LOG.debug("Calling recommendations API on url: {}", recommendationUrl);
+    public Mono<Void> deleteProduct(int productId) {
+        String url = productServiceUrl + productId;
+        LOG.debug("Calling deleteProduct API on url: {}", url);
+
+        return productWriteMetrics.record(webClient.delete().uri(url).retrieve()
+                        .bodyToMono(Void.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
 
-            List<Recommendation> recommendations = restTemplate
-                    .exchange(recommendationUrl, GET, null, new ParameterizedTypeReference<List<Recommendation>>() {})
-                    .getBody();
-            LOG.debug("Found {} recommendations for a product with id: {}", recommendations.size(), productId);
-            return recommendations;
-        }catch (Exception ex){
-            LOG.warn("Exception occurred while requesting a recommendation for product id: {}, return zero recommendations: {}", productId, ex.getMessage());
-            return new ArrayList<>();
+    /**
+     * Gets the first page of the recommendations of a product, plus one more if there is a next page. Errors
+     * are logged and result in zero recommendations, marked as a fallback.
+     *
+     * @param productId the product id
+     * @return the top recommendations, highest rate first, with their entity tag
+     */
+    public Mono<Versioned<List<Recommendation>>> getRecommendationsFirstPage(int productId) {
+        return optional(recommendationCalls.execute(productId, () -> batchingEnabled && !conditionalRequestsEnabled
+                        ? batchGetRecommendations(productId)
+                        : callGetRecommendations(productId)), Versioned.fallback(List.of()), recommendationMetrics);
+    }
+
+    private Mono<Versioned<List<Recommendation>>> batchGetRecommendations(int productId) {
+        return recommendationBatcher.load(productId)
+                .map(recommendations -> new Versioned<>(recommendations, PageTags.ofRecommendations(recommendations)))
+                .onErrorResume(ex -> {
+                    recommendationMetrics.errorFallback();
+                    LOG.warn("Exception occurred while requesting a recommendation for product id: {}, return zero recommendations: {}", productId, ex.getMessage());
+                    return Mono.just(Versioned.fallback(List.of()));
+                });
+    }
+
+    private Mono<Versioned<List<Recommendation>>> callGetRecommendations(int productId) {
+        String recommendationUrl = recommendationServiceUrl + productId + "&limit=" + firstPageLimit;
+        LOG.debug("Calling recommendations API on url: {}", recommendationUrl);
+
+        return recommendationHedger.execute(() -> recommendationMetrics.record(conditionalGet(recommendationUrl, productId,
+                        recommendationValidators, response -> response.toEntityList(Recommendation.class))))
+                .onErrorResume(ex -> {
+                    recommendationMetrics.errorFallback();
+                    LOG.warn("Exception occurred while requesting a recommendation for product id: {}, return zero recommendations: {}", productId, ex.getMessage());
+                    return Mono.just(Versioned.fallback(List.of()));
+                });
+    }
+
+    /**
+     * Gets a page of the recommendations of a product, without batching or coalescing. Unlike the first page
+     * of an aggregate the page is what the client asked for, so errors are passed on.
+     *
+     * @param productId   the product id
+     * @param limit       the maximum number of recommendations, or null for all
+     * @param cursor      where to continue, or null to start with the first page
+     * @param ifNoneMatch the entity tags of the page the caller has, or null
+     * @return the recommendations, highest rate first, with their entity tag, or a 304 without them if it matches
+     * @throws InvalidInputException if the cursor is malformed, it isn't passed on
+     */
+    @Override
+    public Mono<ResponseEntity<Flux<Recommendation>>> getRecommendations(int productId, Integer limit, String cursor,
+                                                                         String ifNoneMatch) {
+        if (cursor != null) {
+            PageCursor.parse(cursor, 2);
         }
+        String recommendationUrl = recommendationServiceUrl + productId
+                + (limit == null ? "" : "&limit=" + limit)
+                + (cursor == null ? "" : "&cursor={cursor}");
+        LOG.debug("Calling recommendations API on url: {}, cursor: {}", recommendationUrl, cursor);
+
+        return required(recommendationPageMetrics.record(webClient.get().uri(recommendationUrl, cursorVariable(cursor))
+                        .headers(headers -> setIfNoneMatch(headers, ifNoneMatch))
+                        .retrieve()
+                        .toEntityList(Recommendation.class)))
+                .onErrorMap(WebClientResponseException.class, this::handleException)
+                .map(ProductCompositeIntegration::toFluxEntity);
     }
 
+    /**
+     * Creates a recommendation in the recommendation service.
+     *
+     * @param body the recommendation
+     * @return the created recommendation, or an error if it already exists or is invalid
+     */
     @Override
-    public List<Review> getReviews(int productId) {
-        try{
-            String reviewUrl = reviewServiceUrl + productId;
-            LOG.debug("Calling review API with url: {}", reviewUrl);
+    public Mono<Recommendation> createRecommendation(Recommendation body) {
+        LOG.debug("Calling createRecommendation API on url: {}", recommendationCreateServiceUrl);
 
-            List<Review> reviews = restTemplate
-                    .exchange(reviewUrl, GET, null, new ParameterizedTypeReference<List<Review>>() {})
-                    .getBody();
-            LOG.debug("Got {} reviews for a product id: {}", reviews.size(), productId);
-            return reviews;
-        }catch (Exception ex){
-            LOG.warn("Got an exception while requesting a review on product id: {}, gor zero reviews: {}", productId, ex.getMessage());
-            return new ArrayList<>();
+        return recommendationWriteMetrics.record(webClient.post().uri(recommendationCreateServiceUrl).bodyValue(body).retrieve()
+                        .bodyToMono(Recommendation.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Updates a recommendation in the recommendation service.
+     *
+     * @param body the new state of the recommendation
+     * @return the updated recommendation, or an error if it doesn't exist or is invalid
+     */
+    @Override
+    public Mono<Recommendation> updateRecommendation(Recommendation body) {
+        LOG.debug("Calling updateRecommendation API on url: {}", recommendationCreateServiceUrl);
+
+        return recommendationWriteMetrics.record(webClient.put().uri(recommendationCreateServiceUrl).bodyValue(body).retrieve()
+                        .bodyToMono(Recommendation.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Deletes one or all recommendations of a product in the recommendation service.
+     *
+     * @param productId        the product id
+     * @param recommendationId the recommendation id, or null to delete all recommendations of the product
+     * @return completes when the recommendations are deleted
+     */
+    @Override
+    public Mono<Void> deleteRecommendations(int productId, Integer recommendationId) {
+        String url = recommendationServiceUrl + productId
+                + (recommendationId == null ? "" : "&recommendationId=" + recommendationId);
+        LOG.debug("Calling deleteRecommendations API on url: {}", url);
+
+        return recommendationWriteMetrics.record(webClient.delete().uri(url).retrieve()
+                        .bodyToMono(Void.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Gets the first page of the reviews of a product, plus one more if there is a next page. Errors are
+     * logged and result in zero reviews, marked as a fallback.
+     *
+     * @param productId the product id
+     * @return the first reviews, in reviewId order, with their entity tag
+     */
+    public Mono<Versioned<List<Review>>> getReviewsFirstPage(int productId) {
+        return optional(reviewCalls.execute(productId, () -> batchingEnabled && !conditionalRequestsEnabled
+                        ? batchGetReviews(productId)
+                        : callGetReviews(productId)), Versioned.fallback(List.of()), reviewMetrics);
+    }
+
+    private Mono<Versioned<List<Review>>> batchGetReviews(int productId) {
+        return reviewBatcher.load(productId)
+                .map(reviews -> new Versioned<>(reviews, PageTags.ofReviews(reviews)))
+                .onErrorResume(ex -> {
+                    reviewMetrics.errorFallback();
+                    LOG.warn("Got an exception while requesting a review on product id: {}, gor zero reviews: {}", productId, ex.getMessage());
+                    return Mono.just(Versioned.fallback(List.of()));
+                });
+    }
+
+    private Mono<Versioned<List<Review>>> callGetReviews(int productId) {
+        String reviewUrl = reviewServiceUrl + productId + "&limit=" + firstPageLimit;
+        LOG.debug("Calling review API with url: {}", reviewUrl);
+
+        return reviewHedger.execute(() -> reviewMetrics.record(conditionalGet(reviewUrl, productId,
+                        reviewValidators, response -> response.toEntityList(Review.class))))
+                .onErrorResume(ex -> {
+                    reviewMetrics.errorFallback();
+                    LOG.warn("Got an exception while requesting a review on product id: {}, gor zero reviews: {}", productId, ex.getMessage());
+                    return Mono.just(Versioned.fallback(List.of()));
+                });
+    }
+
+    /**
+     * Gets a page of the reviews of a product, without batching or coalescing. Errors are passed on.
+     *
+     * @param productId   the product id
+     * @param limit       the maximum number of reviews, or null for all
+     * @param cursor      where to continue, or null to start with the first page
+     * @param ifNoneMatch the entity tags of the page the caller has, or null
+     * @return the reviews, in reviewId order, with their entity tag, or a 304 without them if it matches
+     * @throws InvalidInputException if the cursor is malformed, it isn't passed on
+     */
+    @Override
+    public Mono<ResponseEntity<Flux<Review>>> getReviews(int productId, Integer limit, String cursor, String ifNoneMatch) {
+        if (cursor != null) {
+            PageCursor.parse(cursor, 1);
         }
+        String reviewUrl = reviewServiceUrl + productId
+                + (limit == null ? "" : "&limit=" + limit)
+                + (cursor == null ? "" : "&cursor={cursor}");
+        LOG.debug("Calling review API with url: {}, cursor: {}", reviewUrl, cursor);
+
+        return required(reviewPageMetrics.record(webClient.get().uri(reviewUrl, cursorVariable(cursor))
+                        .headers(headers -> setIfNoneMatch(headers, ifNoneMatch))
+                        .retrieve()
+                        .toEntityList(Review.class)))
+                .onErrorMap(WebClientResponseException.class, this::handleException)
+                .map(ProductCompositeIntegration::toFluxEntity);
+    }
+
+    /**
+     * Creates a review in the review service.
+     *
+     * @param body the review
+     * @return the created review, or an error if it already exists or is invalid
+     */
+    @Override
+    public Mono<Review> createReview(Review body) {
+        LOG.debug("Calling createReview API on url: {}", reviewCreateServiceUrl);
+
+        return reviewWriteMetrics.record(webClient.post().uri(reviewCreateServiceUrl).bodyValue(body).retrieve()
+                        .bodyToMono(Review.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Updates a review in the review service.
+     *
+     * @param body the new state of the review
+     * @return the updated review, or an error if it doesn't exist or is invalid
+     */
+    @Override
+    public Mono<Review> updateReview(Review body) {
+        LOG.debug("Calling updateReview API on url: {}", reviewCreateServiceUrl);
+
+        return reviewWriteMetrics.record(webClient.put().uri(reviewCreateServiceUrl).bodyValue(body).retrieve()
+                        .bodyToMono(Review.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Deletes one or all reviews of a product in the review service.
+     *
+     * @param productId the product id
+     * @param reviewId  the review id, or null to delete all reviews of the product
+     * @return completes when the reviews are deleted
+     */
+    @Override
+    public Mono<Void> deleteReviews(int productId, Integer reviewId) {
+        String url = reviewServiceUrl + productId + (reviewId == null ? "" : "&reviewId=" + reviewId);
+        LOG.debug("Calling deleteReviews API on url: {}", url);
+
+        return reviewWriteMetrics.record(webClient.delete().uri(url).retrieve()
+                        .bodyToMono(Void.class))
+                .onErrorMap(WebClientResponseException.class, this::handleException);
+    }
+
+    /**
+     * Gets several products from the product service in one call.
+     *
+     * @param productIds the product ids
+     * @return the products that were found, or an error if any of the ids is invalid
+     */
+    @Override
+    public Flux<Product> getProducts(List<Integer> productIds) {
+        String url = productBatchServiceUrl + joinIds(productIds);
+        LOG.debug("Calling getProducts API on url: {}", url);
+
+        return required(productBatchMetrics.record(webClient.get().uri(url).retrieve()
+                        .bodyToFlux(Product.class)
+                        .collectList()))
+                .onErrorMap(WebClientResponseException.class, this::handleException)
+                .flatMapIterable(Function.identity());
+    }
+
+    /**
+     * Gets the recommendations of several products in one call. Errors are logged and result in zero recommendations.
+     *
+     * @param productIds the product ids
+     * @param limit      the maximum number of recommendations per product, or null for all
+     * @return the recommendations of all the products
+     */
+    @Override
+    public Flux<Recommendation> getRecommendationsByProducts(List<Integer> productIds, Integer limit) {
+        return optional(callGetRecommendationsByProducts(productIds, limit), List.of(), recommendationBatchMetrics)
+                .onErrorResume(ex -> {
+                    recommendationBatchMetrics.errorFallback();
+                    LOG.warn("Exception occurred while requesting recommendations for product ids: {}, return zero recommendations: {}", productIds, ex.getMessage());
+                    return Mono.just(List.of());
+                })
+                .flatMapIterable(Function.identity());
+    }
+
+    /**
+     * Gets the reviews of several products in one call. Errors are logged and result in zero reviews.
+     *
+     * @param productIds the product ids
+     * @param limit      the maximum number of reviews per product, or null for all
+     * @return the reviews of all the products
+     */
+    @Override
+    public Flux<Review> getReviewsByProducts(List<Integer> productIds, Integer limit) {
+        return optional(callGetReviewsByProducts(productIds, limit), List.of(), reviewBatchMetrics)
+                .onErrorResume(ex -> {
+                    reviewBatchMetrics.errorFallback();
+                    LOG.warn("Got an exception while requesting reviews on product ids: {}, got zero reviews: {}", productIds, ex.getMessage());
+                    return Mono.just(List.of());
+                })
+                .flatMapIterable(Function.identity());
+    }
+
+    private Mono<List<Recommendation>> callGetRecommendationsByProducts(List<Integer> productIds, Integer limit) {
+        String recommendationUrl = recommendationBatchServiceUrl + joinIds(productIds) + (limit == null ? "" : "&limit=" + limit);
+        LOG.debug("Calling recommendations API on url: {}", recommendationUrl);
+
+        return recommendationBatchHedger.execute(() -> recommendationBatchMetrics.record(webClient.get().uri(recommendationUrl).retrieve()
+                .bodyToFlux(Recommendation.class)
+                .collectList()));
+    }
+
+    private Mono<List<Review>> callGetReviewsByProducts(List<Integer> productIds, Integer limit) {
+        String reviewUrl = reviewBatchServiceUrl + joinIds(productIds) + (limit == null ? "" : "&limit=" + limit);
+        LOG.debug("Calling review API with url: {}", reviewUrl);
+
+        return reviewBatchHedger.execute(() -> reviewBatchMetrics.record(webClient.get().uri(reviewUrl).retrieve()
+                .bodyToFlux(Review.class)
+                .collectList()));
+    }
+
+    /**
+     * Bounds a call the response can't do without by the deadline of the request, if it has one.
+     */
+    private static <T> Mono<T> required(Mono<T> call) {
+        return Mono.deferContextual(context -> Deadline.from(context)
+                .map(deadline -> deadline.isExpired()
+                        ? Mono.<T>error(new TimeoutException("Deadline exceeded"))
+                        : call.timeout(deadline.remaining()))
+                .orElse(call));
+    }
+
+    /**
+     * Bounds an optional enrichment by the deadline of the request, if it has one. The call isn't made at
+     * all if too little of the budget remains, and results in the fallback, an empty list, if the deadline
+     * passes. Both are counted as fallbacks.
+     */
+    private <T> Mono<T> optional(Mono<T> call, T fallback, DownstreamMetrics metrics) {
+        return Mono.deferContextual(context -> Deadline.from(context)
+                .map(deadline -> {
+                    if (deadline.remaining().compareTo(minOptionalBudget) < 0) {
+                        LOG.debug("Skipping optional call, only {} left of the request budget", deadline.remaining());
+                        metrics.skippedFallback();
+                        return Mono.just(fallback);
+                    }
+                    return call.timeout(deadline.remaining(), Mono.fromSupplier(() -> {
+                        metrics.deadlineFallback();
+                        return fallback;
+                    }));
+                })
+                .orElse(call));
+    }
+
+    /**
+     * Gets a value with its entity tag. With conditional requests enabled the value is kept, and the next call
+     * for the same product sends its tag in If-None-Match; a 304 answer returns the kept value.
+     *
+     * @param url        the url of the value
+     * @param productId  the product id the value is kept under
+     * @param validators the values kept, by product id
+     * @param toEntity   reads the response, only called for a 200 answer
+     * @param <T>        the type of the value
+     * @return the value with its entity tag
+     */
+    private <T> Mono<Versioned<T>> conditionalGet(String url, int productId, Cache<Integer, Versioned<T>> validators,
+                                                  Function<WebClient.ResponseSpec, Mono<ResponseEntity<T>>> toEntity) {
+        return Mono.defer(() -> {
+            Versioned<T> kept = conditionalRequestsEnabled ? validators.getIfPresent(productId) : null;
+            WebClient.RequestHeadersSpec<?> request = webClient.get().uri(url);
+            if (kept != null) {
+                request = request.header(HttpHeaders.IF_NONE_MATCH, kept.getEtag());
+            }
+            return toEntity.apply(request.retrieve()).map(response -> {
+                if (kept != null && response.getStatusCode().value() == HttpStatus.NOT_MODIFIED.value()) {
+                    return kept;
+                }
+                Versioned<T> fetched = new Versioned<>(response.getBody(), response.getHeaders().getETag());
+                if (conditionalRequestsEnabled && fetched.getEtag() != null) {
+                    validators.put(productId, fetched);
+                }
+                return fetched;
+            });
+        });
     }
 
-    private String getErrorMessage(HttpClientErrorException ex){
-        try{
-            return objectMapper.readValue(ex.getResponseBodyAsString(), HttpErrorInfo.class).getMessage();
-        }catch (IOException ioex){
-            return ex.getMessage();
+    /**
+     * The cursor of a page as a URI template variable, so that it is encoded instead of taken as part of the
+     * template, whatever the client sent.
+     */
+    private static Map<String, String> cursorVariable(String cursor) {
+        return cursor == null ? Map.of() : Map.of("cursor", cursor);
+    }
+
+    private static void setIfNoneMatch(HttpHeaders headers, String ifNoneMatch) {
+        if (ifNoneMatch != null) {
+            headers.set(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
         }
     }
+
+    private static <T> ResponseEntity<Flux<T>> toFluxEntity(ResponseEntity<List<T>> response) {
+        Flux<T> body = response.hasBody() ? Flux.fromIterable(response.getBody()) : Flux.empty();
+        return new ResponseEntity<>(body, response.getHeaders(), response.getStatusCode());
+    }
+
+    private static String joinIds(List<Integer> productIds) {
+        return productIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+    }
+
+    /**
+     * Logs an unexpected HTTP error. 404 and 422 answers never get here, the web client maps them to
+     * {@link NotFoundException} and {@link InvalidInputException}, see {@link DownstreamRejections}.
+     */
+    private Throwable handleException(WebClientResponseException ex) {
+        LOG.warn("Got an unexpected HTTP error: {}, will rethrow it", ex.getStatusCode());
+        LOG.warn("Error body: {}", ex.getResponseBodyAsString());
+        return ex;
+    }
 }
@@ -1,80 +1,273 @@
 package se.mathias.microservices.composite.product.services;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import se.mathias.api.composite.product.*;
+import se.mathias.api.core.PageCursor;
 import se.mathias.api.core.product.Product;
 import se.mathias.api.core.recommendation.Recommendation;
 import se.mathias.api.core.review.Review;
+import se.mathias.api.exceptions.InvalidInputException;
 import se.mathias.api.exceptions.NotFoundException;
+import se.mathias.util.http.Deadline;
+import se.mathias.util.http.EntityTags;
 import se.mathias.util.http.ServiceUtil;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
  * The type Product composite service.
+ * <p>
+ * Aggregates only hold the first page of recommendations and reviews. One more than a page is fetched, so
+ * that the aggregate can tell if there is a next page and hand out the cursor to it without an extra call.
+ * <p>
+ * Single aggregates are answered with an entity tag derived from those of their parts, see
+ * {@link TaggedAggregate}, and with a 304 if the client already has them.
+ * <p>
+ * Every handler that makes calls moves the deadline of a servlet request into the Reactor context, see
+ * {@link Deadline#captured}, so that the calls are bounded by it in the virtual-threads mode as well.
  */
 @RestController
 public class ProductCompositeServiceImpl implements ProductCompositeService {
 
-
     private final ServiceUtil serviceUtil;
     private ProductCompositeIntegration productCompositeIntegration;
+    private final ProductAggregateCache productAggregateCache;
+    private final int streamChunkSize;
+    private final int streamConcurrency;
+    private final int pageSize;
+    private final int maxPageSize;
 
     /**
      * Instantiates a new Product composite service.
      *
      * @param serviceUtil                 the service util
      * @param productCompositeIntegration the product composite integration
+     * @param productAggregateCache       the product aggregate cache
+     * @param streamChunkSize             the number of products fetched per batch call when streaming
+     * @param streamConcurrency           the max number of chunks in flight when streaming
+     * @param pageSize                    the number of recommendations and reviews per page
+     * @param maxPageSize                 the max page size a client can ask for
      */
     @Autowired
-    public ProductCompositeServiceImpl(ServiceUtil serviceUtil, ProductCompositeIntegration productCompositeIntegration) {
+    public ProductCompositeServiceImpl(
+            ServiceUtil serviceUtil,
+            ProductCompositeIntegration productCompositeIntegration,
+            ProductAggregateCache productAggregateCache,
+            @Value("${app.stream.chunk-size}") int streamChunkSize,
+            @Value("${app.stream.concurrency}") int streamConcurrency,
+            @Value("${app.aggregate.page-size}") int pageSize,
+            @Value("${app.aggregate.max-page-size}") int maxPageSize) {
         this.serviceUtil = serviceUtil;
         this.productCompositeIntegration = productCompositeIntegration;
+        this.productAggregateCache = productAggregateCache;
+        this.streamChunkSize = streamChunkSize;
+        this.streamConcurrency = streamConcurrency;
+        this.pageSize = pageSize;
+        this.maxPageSize = maxPageSize;
+    }
+
+    @Override
+    public Mono<ResponseEntity<ProductAggregate>> getProduct(int productId, List<String> fieldNames, String ifNoneMatch) {
+        return answerProduct(productId, AggregateField.parse(fieldNames), ifNoneMatch).contextWrite(Deadline::captured);
+    }
+
+    private Mono<ResponseEntity<ProductAggregate>> answerProduct(int productId, Set<AggregateField> fields, String ifNoneMatch) {
+        if (fields.equals(AggregateField.ALL)) {
+            return productAggregateCache.get(productId, id -> loadProductAggregate(id, AggregateField.ALL))
+                    .map(tagged -> EntityTags.response(tagged.etag(fields, pageSize), ifNoneMatch, tagged::getAggregate));
+        }
+
+        // A cached or already loading complete aggregate is cheaper than any call, else only the selected parts are fetched
+        Mono<TaggedAggregate> cached = productAggregateCache.getIfPresent(productId);
+        if (cached != null) {
+            return cached.map(tagged -> EntityTags.response(tagged.etag(fields, pageSize), ifNoneMatch,
+                    () -> project(tagged.getAggregate(), fields)));
+        }
+        return loadProductAggregate(productId, fields)
+                .map(tagged -> EntityTags.response(tagged.etag(fields, pageSize), ifNoneMatch, tagged::getAggregate));
+    }
+
+    private Mono<TaggedAggregate> loadProductAggregate(int productId, Set<AggregateField> fields) {
+
+        // The calls are subscribed to concurrently, so the latency is that of the slowest one. The product
+        // is always fetched, it decides if the product exists.
+        Mono<Versioned<Product>> product = productCompositeIntegration.getVersionedProduct(productId)
+                .switchIfEmpty(Mono.error(() -> new NotFoundException("No product found for productId: " + productId)));
+        Mono<Versioned<List<Recommendation>>> recommendations = fields.contains(AggregateField.RECOMMENDATIONS)
+                ? productCompositeIntegration.getRecommendationsFirstPage(productId)
+                : Mono.just(Versioned.untagged(List.of()));
+        Mono<Versioned<List<Review>>> reviews = fields.contains(AggregateField.REVIEWS)
+                ? productCompositeIntegration.getReviewsFirstPage(productId)
+                : Mono.just(Versioned.untagged(List.of()));
+
+        return Mono.zip(product, recommendations, reviews)
+                .map(t -> new TaggedAggregate(
+                        createProductAggregate(t.getT1().getValue(), t.getT2().getValue(), t.getT3().getValue(),
+                                serviceUtil.getServiceAddress(), fields),
+                        t.getT1().getEtag(), t.getT2().getEtag(), t.getT3().getEtag(),
+                        t.getT2().isFallback() || t.getT3().isFallback()));
+    }
+
+    @Override
+    public Flux<ProductAggregate> getProducts(List<Integer> productIds) {
+        if (productIds.isEmpty()) {
+            throw new InvalidInputException("No productIds given");
+        }
+        List<Integer> distinctIds = productIds.stream().distinct().collect(Collectors.toList());
+
+        // One call per core service for the whole batch, the result lists are matched up on productId
+        Mono<List<Product>> products = productCompositeIntegration.getProducts(distinctIds).collectList();
+        Mono<Map<Integer, List<Recommendation>>> recommendations = productCompositeIntegration.getRecommendationsByProducts(distinctIds, pageSize + 1)
+                .collect(Collectors.groupingBy(Recommendation::getProductId));
+        Mono<Map<Integer, List<Review>>> reviews = productCompositeIntegration.getReviewsByProducts(distinctIds, pageSize + 1)
+                .collect(Collectors.groupingBy(Review::getProductId));
+
+        String serviceAddress = serviceUtil.getServiceAddress();
+        return Mono.zip(products, recommendations, reviews)
+                .flatMapMany(t -> Flux.fromIterable(t.getT1())
+                        .map(product -> createProductAggregate(
+                                product,
+                                t.getT2().getOrDefault(product.getProductId(), List.of()),
+                                t.getT3().getOrDefault(product.getProductId(), List.of()),
+                                serviceAddress,
+                                AggregateField.ALL)))
+                .contextWrite(Deadline::captured);
+    }
+
+    @Override
+    public Mono<SummaryPage<RecommendationSummary>> getRecommendations(int productId, Integer limit, String cursor) {
+        int size = validatePage(productId, limit);
+        return productCompositeIntegration.getRecommendations(productId, size + 1, cursor)
+                .collectList()
+                .map(recommendations -> new SummaryPage<>(
+                        recommendationSummaries(recommendations, size),
+                        recommendationsCursor(recommendations, size)))
+                .contextWrite(Deadline::captured);
     }
 
     @Override
-    public ProductAggregate getProduct(int productId) {
+    public Mono<SummaryPage<ReviewSummary>> getReviews(int productId, Integer limit, String cursor) {
+        int size = validatePage(productId, limit);
+        return productCompositeIntegration.getReviews(productId, size + 1, cursor)
+                .collectList()
+                .map(reviews -> new SummaryPage<>(reviewSummaries(reviews, size), reviewsCursor(reviews, size)))
+                .contextWrite(Deadline::captured);
+    }
 
-        Product product = productCompositeIntegration.getProduct(productId);
-        if (product == null) {
-            throw new NotFoundException("No product found for productId: " + productId);
+    private int validatePage(int productId, Integer limit) {
+        if (productId < 1) {
+            throw new InvalidInputException("Invalid productId: " + productId);
+        }
+        if (limit == null) {
+            return pageSize;
+        }
+        if (limit < 1 || limit > maxPageSize) {
+            throw new InvalidInputException("Invalid limit: " + limit + ", must be between 1 and " + maxPageSize);
         }
+        return limit;
+    }
 
-        List<Recommendation> recommendationList = productCompositeIntegration.getRecommendations(productId);
-        List<Review> reviewList = productCompositeIntegration.getReviews(productId);
+    @Override
+    public Flux<ProductAggregate> getProductStream(int fromId, int toId) {
+        if (fromId < 1 || toId < fromId) {
+            throw new InvalidInputException("Invalid product id range: " + fromId + " - " + toId);
+        }
 
-        return createProductAggregate(product, recommendationList, reviewList, serviceUtil.getServiceAddress());
+        // Chunks are fetched ahead by at most the concurrency, and only as fast as the client reads, so the
+        // memory used doesn't depend on the size of the range. Results are emitted in id order.
+        return Flux.range(fromId, toId - fromId + 1)
+                .buffer(streamChunkSize)
+                .flatMapSequential(this::getProducts, streamConcurrency, 1)
+                // The stream as a whole outlives any request deadline, each call is still bounded by the client timeouts
+                .contextWrite(context -> context.delete(Deadline.class));
     }
 
-    private ProductAggregate createProductAggregate(
+    // Package private so that the benchmarks can measure it on its own
+    ProductAggregate createProductAggregate(
             Product product,
             List<Recommendation> recommendationList,
             List<Review> reviewList,
-            String serviceAddress) {
+            String serviceAddress,
+            Set<AggregateField> fields) {
 
         int productId = product.getProductId();
-        String name = product.getName();
-        int weight = product.getWeight();
+        String name = fields.contains(AggregateField.NAME) ? product.getName() : null;
+        Integer weight = fields.contains(AggregateField.WEIGHT) ? product.getWeight() : null;
 
+        boolean withRecommendations = recommendationList != null && fields.contains(AggregateField.RECOMMENDATIONS);
         List<RecommendationSummary> recommendationSummaries =
-                (recommendationList == null) ? null : recommendationList.stream()
-                        .map(r -> new RecommendationSummary(r.getRecommendationId(), r.getAuthor(), r.getRate()))
-                        .collect(Collectors.toList());
+                withRecommendations ? recommendationSummaries(recommendationList, pageSize) : null;
+        String recommendationsCursor = withRecommendations ? recommendationsCursor(recommendationList, pageSize) : null;
+
+        boolean withReviews = reviewList != null && fields.contains(AggregateField.REVIEWS);
+        List<ReviewSummary> reviewSummaries = withReviews ? reviewSummaries(reviewList, pageSize) : null;
+        String reviewsCursor = withReviews ? reviewsCursor(reviewList, pageSize) : null;
+
+        ServiceAddresses serviceAddresses = null;
+        if (fields.contains(AggregateField.SERVICE_ADDRESSES)) {
+            String productAddress = product.getServiceAddress();
+            String reviewAddress = (reviewList != null && reviewList.size() > 0) ? reviewList.get(0).getServiceAddress() : "";
+            String recommendationAddress = (recommendationList != null && recommendationList.size() > 0) ? recommendationList.get(0).getServiceAddress() : "";
+            serviceAddresses = new ServiceAddresses(serviceAddress, productAddress, reviewAddress, recommendationAddress);
+        }
+
+        return new ProductAggregate(productId, name, weight, recommendationSummaries, recommendationsCursor,
+                reviewSummaries, reviewsCursor, serviceAddresses);
+
+    }
 
-        List<ReviewSummary> reviewSummaries =
-                (reviewList == null) ? null : reviewList.stream()
-                        .map(r -> new ReviewSummary(r.getReviewId(), r.getAuthor(), r.getSubject()))
-                        .collect(Collectors.toList());
+    private static List<RecommendationSummary> recommendationSummaries(List<Recommendation> recommendations, int size) {
+        return recommendations.stream()
+                .limit(size)
+                .map(r -> new RecommendationSummary(r.getRecommendationId(), r.getAuthor(), r.getRate()))
+                .collect(Collectors.toList());
+    }
 
+    /**
+     * Returns the cursor to the next page if the recommendations, fetched one more than the page size, have one.
+     */
+    private static String recommendationsCursor(List<Recommendation> recommendations, int size) {
+        if (recommendations.size() <= size) {
+            return null;
+        }
+        Recommendation last = recommendations.get(size - 1);
+        return PageCursor.of(last.getRate(), last.getRecommendationId());
+    }
 
-        String productAddress = product.getServiceAddress();
-        String reviewAddress = (reviewList != null && reviewList.size() > 0) ? reviewList.get(0).getServiceAddress() : "";
-        String recommendationAddress = (recommendationList != null && recommendationList.size() > 0) ? recommendationList.get(0).getServiceAddress() : "";
-        ServiceAddresses serviceAddresses = new ServiceAddresses(serviceAddress, productAddress, reviewAddress, recommendationAddress);
+    private static List<ReviewSummary> reviewSummaries(List<Review> reviews, int size) {
+        return reviews.stream()
+                .limit(size)
+                .map(r -> new ReviewSummary(r.getReviewId(), r.getAuthor(), r.getSubject()))
+                .collect(Collectors.toList());
+    }
 
-        return new ProductAggregate(productId, name, weight, recommendationSummaries, reviewSummaries, serviceAddresses);
+    /**
+     * Returns the cursor to the next page if the reviews, fetched one more than the page size, have one.
+     */
+    private static String reviewsCursor(List<Review> reviews, int size) {
+        if (reviews.size() <= size) {
+            return null;
+        }
+        return PageCursor.of(reviews.get(size - 1).getReviewId());
+    }
 
+    private static ProductAggregate project(ProductAggregate aggregate, Set<AggregateField> fields) {
+        return new ProductAggregate(
+                aggregate.getProductId(),
+                fields.contains(AggregateField.NAME) ? aggregate.getName() : null,
+                fields.contains(AggregateField.WEIGHT) ? aggregate.getWeight() : null,
+                fields.contains(AggregateField.RECOMMENDATIONS) ? aggregate.getRecommendations() : null,
+                fields.contains(AggregateField.RECOMMENDATIONS) ? aggregate.getRecommendationsCursor() : null,
+                fields.contains(AggregateField.REVIEWS) ? aggregate.getReviews() : null,
+                fields.contains(AggregateField.REVIEWS) ? aggregate.getReviewsCursor() : null,
+                fields.contains(AggregateField.SERVICE_ADDRESSES) ? aggregate.getServiceAddresses() : null);
     }
 }
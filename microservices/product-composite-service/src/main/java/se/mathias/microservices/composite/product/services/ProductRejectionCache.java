@@ -0,0 +1,146 @@
+package se.mathias.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.mathias.api.exceptions.InvalidInputException;
+import se.mathias.api.exceptions.NotFoundException;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Size bounded, in-process cache of the product ids the product service answered with 404 or 422, so that
+ * repeated requests for products that don't exist are answered without a downstream call.
+ * <p>
+ * Entries live for a short, fixed time, and the entry of a product is also removed by any change event for
+ * it, e.g. when it is created, see {@link ChangeEventSubscriber}. Every hit gets a new exception with the
+ * message of the rejection, they are cheap since they have no stack trace. Only rejections are cached,
+ * timeouts and other errors are not.
+ * <p>
+ * A rejection that was answered before a change event, but arrives after it, must not be cached, or the
+ * product would be rejected for a time to live after it was created. Each product id maps to one of a fixed
+ * number of generations, which every invalidation bumps. A call remembers the generation when it starts,
+ * and its rejection is dropped again if the generation has changed since. Product ids that share a
+ * generation only lose a rejection they could have cached.
+ * <p>
+ * Hit ratio and evictions are published through Micrometer as the cache.* meters with the tag
+ * cache=productRejection.
+ */
+@Component
+public class ProductRejectionCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductRejectionCache.class);
+
+    private static final String CACHE_NAME = "productRejection";
+
+    private static final int GENERATIONS = 4096;
+
+    private final boolean enabled;
+
+    private final Cache<Integer, Rejection> cache;
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+    /**
+     * Instantiates a new Product rejection cache.
+     *
+     * @param meterRegistry the meter registry
+     * @param enabled       if the cache is enabled, if not all calls go to the product service
+     * @param maximumSize   the max number of entries
+     * @param timeToLive    the time to live of an entry
+     */
+    @Autowired
+    public ProductRejectionCache(
+            MeterRegistry meterRegistry,
+            @Value("${app.cache.product-rejection.enabled}") boolean enabled,
+            @Value("${app.cache.product-rejection.maximum-size}") long maximumSize,
+            @Value("${app.cache.product-rejection.time-to-live}") Duration timeToLive) {
+
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build();
+
+        new CaffeineCacheMetrics<>(cache, CACHE_NAME, Tags.empty()).bindTo(meterRegistry);
+
+        LOG.info("Product rejection cache enabled: {}, maximum size: {}, time to live: {}", enabled, maximumSize, timeToLive);
+    }
+
+    /**
+     * Fails with the cached rejection of a product id, or makes the call and caches its rejection, if any.
+     *
+     * @param productId the product id
+     * @param call      makes the call on a miss
+     * @param <T>       the type of the result
+     * @return the result of the call, or the cached rejection
+     */
+    public <T> Mono<T> guard(int productId, Supplier<Mono<T>> call) {
+        if (!enabled) {
+            return call.get();
+        }
+
+        return Mono.defer(() -> {
+            Rejection rejection = cache.getIfPresent(productId);
+            if (rejection != null) {
+                return Mono.error(rejection.toException());
+            }
+            int index = generationOf(productId);
+            long generation = generations.get(index);
+            return call.get().doOnError(ex -> {
+                if (ex instanceof NotFoundException || ex instanceof InvalidInputException) {
+                    // Invalidations bump the generation before they remove, so one that raced with the put
+                    // either is seen here or removes the rejection itself
+                    Rejection rejected = new Rejection(ex instanceof NotFoundException, ex.getMessage());
+                    cache.put(productId, rejected);
+                    if (generations.get(index) != generation) {
+                        cache.asMap().remove(productId, rejected);
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * Removes the rejection of a product id, so that the next call goes to the product service.
+     *
+     * @param productId the product id
+     */
+    public void invalidate(int productId) {
+        generations.incrementAndGet(generationOf(productId));
+        cache.invalidate(productId);
+    }
+
+    /**
+     * Removes all rejections.
+     */
+    public void invalidateAll() {
+        for (int i = 0; i < GENERATIONS; i++) {
+            generations.incrementAndGet(i);
+        }
+        cache.invalidateAll();
+    }
+
+    private static int generationOf(int productId) {
+        int h = productId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (GENERATIONS - 1);
+    }
+
+    private record Rejection(boolean notFound, String message) {
+
+        RuntimeException toException() {
+            return notFound ? new NotFoundException(message) : new InvalidInputException(message);
+        }
+    }
+}
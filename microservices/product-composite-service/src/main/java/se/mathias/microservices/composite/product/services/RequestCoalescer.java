@@ -0,0 +1,93 @@
+package se.mathias.microservices.composite.product.services;
+
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+import se.mathias.util.http.Deadline;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight execution of downstream calls.
+ * <p>
+ * Concurrent callers asking for the same key share one outstanding call and get its result or error.
+ * The key is released as soon as the call completes, so results are never served after that, i.e. this is
+ * not a cache. The shared call runs with the Reactor context of the caller that started it, but not with its
+ * deadline, see {@link Deadline#shared}; each caller bounds its own wait for the result.
+ * The in-flight calls are kept in a {@link ConcurrentHashMap}, which only locks the bin of
+ * the key on insert and doesn't lock at all on lookup, so unrelated keys don't contend with each other.
+ *
+ * @param <K> the type of the key
+ * @param <V> the type of the result
+ */
+final class RequestCoalescer<K, V> {
+
+    private final boolean enabled;
+
+    private final Duration sharedTimeout;
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new Request coalescer.
+     *
+     * @param enabled       if disabled every caller gets its own call
+     * @param sharedTimeout the budget of a shared call, zero for none
+     */
+    RequestCoalescer(boolean enabled, Duration sharedTimeout) {
+        this.enabled = enabled;
+        this.sharedTimeout = sharedTimeout;
+    }
+
+    /**
+     * Executes the call, unless a call for the same key is already in flight.
+     *
+     * @param key  the key that identifies identical calls
+     * @param call creates the call, only invoked if no call for the key is in flight
+     * @return the result of the shared call
+     */
+    Mono<V> execute(K key, Supplier<Mono<V>> call) {
+        if (!enabled) {
+            return Mono.defer(call);
+        }
+
+        return Mono.deferContextual(context -> {
+            CompletableFuture<V> created = new CompletableFuture<>();
+            CompletableFuture<V> shared = inFlight.putIfAbsent(key, created);
+            if (shared == null) {
+                shared = created;
+                start(key, created, call, context);
+            }
+            // A caller that cancels must not cancel the call the other callers are waiting for
+            return Mono.fromFuture(shared, true);
+        });
+    }
+
+    private void start(K key, CompletableFuture<V> future, Supplier<Mono<V>> call, ContextView context) {
+        Mono<V> mono;
+        try {
+            mono = call.get();
+        } catch (RuntimeException ex) {
+            complete(key, future, null, ex);
+            return;
+        }
+
+        mono.contextWrite(Deadline.shared(context, sharedTimeout)).subscribe(
+                value -> complete(key, future, value, null),
+                error -> complete(key, future, null, error),
+                () -> complete(key, future, null, null));
+    }
+
+    private void complete(K key, CompletableFuture<V> future, V value, Throwable error) {
+        // Release the key before completing, callers arriving after this point start a new call
+        inFlight.remove(key, future);
+        if (error != null) {
+            future.completeExceptionally(error);
+        } else {
+            future.complete(value);
+        }
+    }
+}
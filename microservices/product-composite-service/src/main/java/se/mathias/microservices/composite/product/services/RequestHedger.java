@@ -0,0 +1,252 @@
+package se.mathias.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Hedged execution of idempotent downstream calls, to cut the tail latency caused by an occasional slow instance.
+ * <p>
+ * If the first attempt hasn't answered within the hedge delay, a second attempt is sent and the first one to
+ * answer with a value wins, the other one is cancelled. An error only wins once both attempts have failed, so
+ * a hedge that fails fast can't turn a slow success into an error. The hedge delay is the configured percentile of the latency of
+ * recent first attempts, but never less than the min delay. A token bucket caps the extra load: every call
+ * deposits budget ratio tokens and every hedge costs one token, so at most budget ratio of the calls are
+ * hedged over time.
+ * <p>
+ * Publishes the composite.hedging.calls, composite.hedging.hedges and composite.hedging.wins counters and the
+ * composite.hedging.delay gauge, tagged with the service and the kind of call. The hedge rate is hedges/calls
+ * and the win rate is wins/hedges.
+ */
+final class RequestHedger {
+
+    private static final long TOKEN = 1000;
+
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    private final boolean enabled;
+
+    private final long minDelayNanos;
+
+    private final long tokensPerCall;
+
+    private final AtomicLong tokens = new AtomicLong(MAX_TOKENS);
+
+    private final LatencyWindow latencies;
+
+    private final Counter calls;
+
+    private final Counter hedges;
+
+    private final Counter wins;
+
+    /**
+     * Instantiates a new Request hedger.
+     *
+     * @param service       the name of the service that is called, used as metrics tag
+     * @param call          the kind of call, used as metrics tag
+     * @param enabled       if disabled calls are executed without hedging
+     * @param percentile    the latency percentile of first attempts used as hedge delay, e.g. 0.95
+     * @param minDelay      the min hedge delay
+     * @param budgetRatio   the max fraction of the calls that are hedged, e.g. 0.05
+     * @param meterRegistry the meter registry
+     */
+    RequestHedger(String service, String call, boolean enabled, double percentile, Duration minDelay, double budgetRatio, MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.minDelayNanos = minDelay.toNanos();
+        this.tokensPerCall = Math.round(budgetRatio * TOKEN);
+        this.latencies = new LatencyWindow(percentile);
+
+        this.calls = Counter.builder("composite.hedging.calls").tag("service", service).tag("call", call).register(meterRegistry);
+        this.hedges = Counter.builder("composite.hedging.hedges").tag("service", service).tag("call", call).register(meterRegistry);
+        this.wins = Counter.builder("composite.hedging.wins").tag("service", service).tag("call", call).register(meterRegistry);
+        Gauge.builder("composite.hedging.delay", this, h -> h.hedgeDelayNanos() / 1_000_000.0)
+                .tag("service", service).tag("call", call).baseUnit("milliseconds").register(meterRegistry);
+    }
+
+    /**
+     * Executes the call, hedging it if the first attempt is slow.
+     *
+     * @param attempt creates one attempt of the call, must be idempotent
+     * @param <T>     the type of the result
+     * @return the result of the attempt that answered first
+     */
+    <T> Mono<T> execute(Supplier<Mono<T>> attempt) {
+        if (!enabled) {
+            return Mono.defer(attempt);
+        }
+
+        return Mono.defer(() -> {
+            calls.increment();
+            deposit();
+
+            long start = System.nanoTime();
+            Mono<T> first = attempt.get()
+                    .doOnSuccess(result -> latencies.record(System.nanoTime() - start))
+                    // A first attempt that lost is at least as slow as the time it was given
+                    .doOnCancel(() -> latencies.record(System.nanoTime() - start));
+
+            Mono<T> second = Mono.delay(Duration.ofNanos(hedgeDelayNanos()))
+                    .flatMap(tick -> {
+                        if (!withdraw()) {
+                            // Leaves the first attempt on its own, its error is then the result
+                            return Mono.<T>empty();
+                        }
+                        hedges.increment();
+                        return attempt.get().doOnNext(result -> wins.increment());
+                    });
+
+            return Mono.firstWithValue(first, second).onErrorMap(RequestHedger::firstFailure);
+        });
+    }
+
+    /**
+     * Unwraps the error of the first attempt from the error that tells that no attempt had a value.
+     */
+    private static Throwable firstFailure(Throwable ex) {
+        if (ex instanceof NoSuchElementException && ex.getCause() != null) {
+            List<Throwable> failures = Exceptions.unwrapMultiple(ex.getCause());
+            if (!failures.isEmpty()) {
+                return failures.get(0);
+            }
+        }
+        return ex;
+    }
+
+    private long hedgeDelayNanos() {
+        return Math.max(minDelayNanos, latencies.percentileNanos());
+    }
+
+    private void deposit() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= MAX_TOKENS) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(MAX_TOKENS, current + tokensPerCall)));
+    }
+
+    private boolean withdraw() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    /**
+     * Histogram of the most recent latencies, without locks, so the event loops recording from several threads
+     * don't contend. Latencies are counted in log-linear buckets, 16 per power of two, i.e. the percentile is
+     * accurate to about 6%, which is plenty for a hedge delay.
+     * <p>
+     * The window is made of two halves of HALF records each. Records go to the current half, and each time one
+     * fills up the other one is cleared and becomes the current one, so the percentile always covers between
+     * HALF and two HALF of the most recent records. It is recomputed every RECOMPUTE_INTERVAL records, by the
+     * thread that recorded the last of them. A record racing with the clearing of its half may be lost, that
+     * doesn't matter for an estimate.
+     */
+    private static final class LatencyWindow {
+
+        private static final int SUB_BUCKET_BITS = 4;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private static final long HALF = 512;
+
+        private static final int RECOMPUTE_INTERVAL = 128;
+
+        private final AtomicLongArray[] halves = {new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS)};
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final double percentile;
+
+        private volatile long percentileNanos;
+
+        LatencyWindow(double percentile) {
+            this.percentile = percentile;
+        }
+
+        void record(long nanos) {
+            long n = count.getAndIncrement();
+            halves[(int) ((n / HALF) & 1)].incrementAndGet(bucketOf(Math.max(0, nanos)));
+            long recorded = n + 1;
+            if (recorded % HALF == 0) {
+                AtomicLongArray next = halves[(int) ((recorded / HALF) & 1)];
+                for (int i = 0; i < BUCKETS; i++) {
+                    next.set(i, 0);
+                }
+            }
+            if (recorded % RECOMPUTE_INTERVAL == 0) {
+                recompute();
+            }
+        }
+
+        long percentileNanos() {
+            return percentileNanos;
+        }
+
+        private void recompute() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (AtomicLongArray half : halves) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long c = half.get(i);
+                    counts[i] += c;
+                    total += c;
+                }
+            }
+            if (total == 0) {
+                return;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    percentileNanos = upperBoundOf(i);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Values below SUB_BUCKETS get a bucket each, larger ones the bucket of their highest bit and the
+         * SUB_BUCKET_BITS bits below it.
+         */
+        static int bucketOf(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            long upper = ((SUB_BUCKETS + sub + 1) << shift) - 1;
+            return upper < 0 ? Long.MAX_VALUE : upper;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package se.mathias.microservices.composite.product.services;
+
+import se.mathias.api.composite.product.ProductAggregate;
+import se.mathias.util.http.EntityTags;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A product aggregate with the entity tags of the product, recommendations and reviews it was made of.
+ * <p>
+ * The tag of the aggregate, or of any selection of its fields, is derived from the tags of the parts it
+ * shows, the selection and the page size, so a selection projected from a cached complete aggregate gets
+ * the same tag as one loaded on its own. The service addresses are diagnostics and don't take part, which
+ * is why the tag is weak: replicas serve the same aggregate with other addresses under the same tag. If a
+ * shown part has no tag, since it was answered with an empty list instead of an error, neither has the
+ * aggregate.
+ * <p>
+ * An aggregate with a part that is a fallback, see {@link Versioned#fallback}, is degraded. It is served,
+ * but only cached for a short while, see {@link ProductAggregateCache}.
+ * <p>
+ * The encoded response body of the complete aggregate is kept with it once it has been served, see
+ * {@link EncodedAggregateWebFilter}, so it lives exactly as long as the cache entry.
+ */
+public final class TaggedAggregate {
+
+    private final ProductAggregate aggregate;
+
+    private final String productTag;
+
+    private final String recommendationsTag;
+
+    private final String reviewsTag;
+
+    private final boolean degraded;
+
+    private volatile EncodedAggregate encoded;
+
+    /**
+     * Instantiates a new Tagged aggregate.
+     *
+     * @param aggregate          the product aggregate
+     * @param productTag         the entity tag of the product, or null
+     * @param recommendationsTag the entity tag of the first page of recommendations, or null
+     * @param reviewsTag         the entity tag of the first page of reviews, or null
+     * @param degraded           if a part is a fallback instead of what the core service has
+     */
+    public TaggedAggregate(ProductAggregate aggregate, String productTag, String recommendationsTag, String reviewsTag,
+                           boolean degraded) {
+        this.aggregate = aggregate;
+        this.productTag = productTag;
+        this.recommendationsTag = recommendationsTag;
+        this.reviewsTag = reviewsTag;
+        this.degraded = degraded;
+    }
+
+    public ProductAggregate getAggregate() {
+        return aggregate;
+    }
+
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    EncodedAggregate getEncoded() {
+        return encoded;
+    }
+
+    void setEncoded(EncodedAggregate encoded) {
+        this.encoded = encoded;
+    }
+
+    /**
+     * Derives the entity tag of a selection of the fields of the aggregate.
+     *
+     * @param fields   the selected fields
+     * @param pageSize the number of recommendations and reviews per page
+     * @return the weak entity tag, or null if a selected part has none
+     */
+    String etag(Set<AggregateField> fields, int pageSize) {
+        boolean withRecommendations = fields.contains(AggregateField.RECOMMENDATIONS);
+        boolean withReviews = fields.contains(AggregateField.REVIEWS);
+        if (productTag == null || withRecommendations && recommendationsTag == null || withReviews && reviewsTag == null) {
+            return null;
+        }
+
+        String selection = fields.stream().map(Enum::name).collect(Collectors.joining(","));
+        return EntityTags.combine(
+                selection,
+                String.valueOf(pageSize),
+                productTag,
+                withRecommendations ? recommendationsTag : "",
+                withReviews ? reviewsTag : "");
+    }
+}
@@ -0,0 +1,67 @@
+package se.mathias.microservices.composite.product.services;
+
+/**
+ * A value fetched from a core service together with its entity tag, so that the next fetch can be made
+ * conditional and the tag of an aggregate can be derived from the tags of its parts.
+ *
+ * @param <T> the type of the value
+ */
+public final class Versioned<T> {
+
+    private final T value;
+
+    private final String etag;
+
+    private final boolean fallback;
+
+    /**
+     * Instantiates a new Versioned value.
+     *
+     * @param value the value
+     * @param etag  the entity tag of the value, or null if it has none, e.g. since it is a fallback
+     */
+    public Versioned(T value, String etag) {
+        this(value, etag, false);
+    }
+
+    private Versioned(T value, String etag, boolean fallback) {
+        this.value = value;
+        this.etag = etag;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Wraps a value without an entity tag, it can't be revalidated and neither can what is made of it.
+     *
+     * @param value the value
+     * @param <T>   the type of the value
+     * @return the value without a tag
+     */
+    public static <T> Versioned<T> untagged(T value) {
+        return new Versioned<>(value, null);
+    }
+
+    /**
+     * Wraps a value that stands in for one that couldn't be fetched, e.g. an empty list after an error or a
+     * passed deadline. It has no tag, and what is made of it must not be kept for long.
+     *
+     * @param value the stand-in value
+     * @param <T>   the type of the value
+     * @return the stand-in value, marked as a fallback
+     */
+    public static <T> Versioned<T> fallback(T value) {
+        return new Versioned<>(value, null, true);
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public boolean isFallback() {
+        return fallback;
+    }
+}
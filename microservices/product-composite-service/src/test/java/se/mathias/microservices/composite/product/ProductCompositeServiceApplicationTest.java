@@ -1,51 +1,92 @@
 package se.mathias.microservices.composite.product;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.mathias.api.core.PageCursor;
 import se.mathias.api.core.product.Product;
 import se.mathias.api.core.recommendation.Recommendation;
 import se.mathias.api.core.review.Review;
 import se.mathias.api.exceptions.InvalidInputException;
+import se.mathias.api.event.ChangeEvent;
 import se.mathias.api.exceptions.NotFoundException;
 import se.mathias.microservices.composite.product.services.ProductCompositeIntegration;
+import se.mathias.microservices.composite.product.services.Versioned;
+import se.mathias.util.event.ChangeEventBroker;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.springframework.http.HttpHeaders.CONTENT_ENCODING;
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
 import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
 
-@SpringBootTest(webEnvironment = RANDOM_PORT)
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {
+        "app.events.transport=local",
+        "app.cache.product-aggregate.encoded.gzip-min-size=0"})
 class ProductCompositeServiceApplicationTest {
 
     private static final int PRODUCT_ID = 1;
     private static final int PRODUCT_ID_NOT_FOUND = 2;
     private static final int PRODUCT_ID_INVALID = 3;
+    private static final int PRODUCT_ID_CHANGED = 4;
 
     @Autowired
     private WebTestClient client;
 
+    @Autowired
+    private ChangeEventBroker changeEvents;
+
     @MockitoBean
     private ProductCompositeIntegration productCompositeIntegration;
 
     @BeforeEach
     void setup(){
-        when(productCompositeIntegration.getProduct(PRODUCT_ID))
-                .thenReturn(new Product(PRODUCT_ID, "name", 1, "mock-address"));
-        when(productCompositeIntegration.getRecommendations(PRODUCT_ID))
-                .thenReturn(singletonList(new Recommendation(PRODUCT_ID, 1, "Author", 5, "content", "mock-address")));
-        when(productCompositeIntegration.getReviews(PRODUCT_ID))
-                .thenReturn(singletonList(new Review(PRODUCT_ID, 1, "Author", "Subject", "content", "mock-address")));
+        when(productCompositeIntegration.getRecommendationsFirstPage(anyInt())).thenReturn(Mono.just(Versioned.untagged(List.of())));
+        when(productCompositeIntegration.getReviewsFirstPage(anyInt())).thenReturn(Mono.just(Versioned.untagged(List.of())));
+
+        when(productCompositeIntegration.getVersionedProduct(PRODUCT_ID))
+                .thenReturn(Mono.just(new Versioned<>(new Product(PRODUCT_ID, "name", 1, "mock-address"), "\"p1\"")));
+        when(productCompositeIntegration.getRecommendationsFirstPage(PRODUCT_ID))
+                .thenReturn(Mono.just(new Versioned<>(singletonList(new Recommendation(PRODUCT_ID, 1, "Author", 5, "content", "mock-address")), "\"r1\"")));
+        when(productCompositeIntegration.getReviewsFirstPage(PRODUCT_ID))
+                .thenReturn(Mono.just(new Versioned<>(singletonList(new Review(PRODUCT_ID, 1, "Author", "Subject", "content", "mock-address")), "\"v1\"")));
+
+        when(productCompositeIntegration.getVersionedProduct(PRODUCT_ID_NOT_FOUND))
+                .thenReturn(Mono.error(new NotFoundException("NOT FOUND: "+PRODUCT_ID_NOT_FOUND)));
+        when(productCompositeIntegration.getVersionedProduct(PRODUCT_ID_INVALID))
+                .thenReturn(Mono.error(new InvalidInputException("INVALID: "+PRODUCT_ID_INVALID)));
 
-        when(productCompositeIntegration.getProduct(PRODUCT_ID_NOT_FOUND))
-                .thenThrow(new NotFoundException("NOT FOUND: "+PRODUCT_ID_NOT_FOUND));
-        when(productCompositeIntegration.getProduct(PRODUCT_ID_INVALID))
-                .thenThrow(new InvalidInputException("INVALID: "+PRODUCT_ID_INVALID));
+        when(productCompositeIntegration.getProducts(anyList()))
+                .thenReturn(Flux.just(new Product(PRODUCT_ID, "name", 1, "mock-address")));
+        when(productCompositeIntegration.getRecommendationsByProducts(anyList(), anyInt()))
+                .thenReturn(Flux.just(new Recommendation(PRODUCT_ID, 1, "Author", 5, "content", "mock-address")));
+        when(productCompositeIntegration.getReviewsByProducts(anyList(), anyInt()))
+                .thenReturn(Flux.just(
+                        new Review(PRODUCT_ID, 1, "Author", "Subject", "content", "mock-address"),
+                        new Review(PRODUCT_ID, 2, "Author", "Subject", "content", "mock-address")));
     }
 
 
@@ -60,7 +101,155 @@ class ProductCompositeServiceApplicationTest {
                 .expectBody()
                 .jsonPath("$.productId").isEqualTo(PRODUCT_ID)
                 .jsonPath("$.recommendations.length()").isEqualTo(1)
-                .jsonPath("$.reviews.length()").isEqualTo(1);
+                .jsonPath("$.reviews.length()").isEqualTo(1)
+                .jsonPath("$.recommendationsCursor").doesNotExist()
+                .jsonPath("$.reviewsCursor").doesNotExist();
+    }
+
+    @Test
+    void getProductNotModified(){
+        String etag = client.get()
+                .uri("/product-composite/" + PRODUCT_ID)
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .returnResult()
+                .getResponseHeaders().getETag();
+        assertNotNull(etag);
+        // The service addresses in the aggregate aren't covered by the tag
+        assertTrue(etag.startsWith("W/"));
+
+        client.get()
+                .uri("/product-composite/" + PRODUCT_ID)
+                .accept(APPLICATION_JSON)
+                .header(IF_NONE_MATCH, etag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals("ETag", etag)
+                .expectBody().isEmpty();
+    }
+
+    @Test
+    void getCachedProductGzipped() throws IOException {
+        byte[] json = client.get()
+                .uri("/product-composite/" + PRODUCT_ID)
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(byte[].class)
+                .returnResult().getResponseBody();
+
+        // The aggregate is cached now, its encoded body is served without going through the controller
+        byte[] gzipped = client.get()
+                .uri("/product-composite/" + PRODUCT_ID)
+                .accept(APPLICATION_JSON)
+                .header(ACCEPT_ENCODING, "gzip")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(APPLICATION_JSON)
+                .expectHeader().valueEquals(CONTENT_ENCODING, "gzip")
+                .expectBody(byte[].class)
+                .returnResult().getResponseBody();
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.readTree(json), mapper.readTree(gunzip(gzipped)));
+    }
+
+    @Test
+    void getProductWithSelectedFields(){
+        client.get()
+                .uri("/product-composite/" + PRODUCT_ID + "?fields=name,reviews")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(APPLICATION_JSON)
+                .expectBody()
+                .jsonPath("$.productId").isEqualTo(PRODUCT_ID)
+                .jsonPath("$.name").isEqualTo("name")
+                .jsonPath("$.reviews.length()").isEqualTo(1)
+                .jsonPath("$.weight").doesNotExist()
+                .jsonPath("$.recommendations").doesNotExist()
+                .jsonPath("$.serviceAddresses").doesNotExist();
+
+        verify(productCompositeIntegration, never()).getRecommendationsFirstPage(PRODUCT_ID);
+    }
+
+    @Test
+    void getProductWithUnknownField(){
+        client.get()
+                .uri("/product-composite/" + PRODUCT_ID + "?fields=name,price")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(UNPROCESSABLE_ENTITY)
+                .expectBody()
+                .jsonPath("$.message").isEqualTo("Unknown field: price");
+    }
+
+    @Test
+    void getProductsByIds(){
+        client.get()
+                .uri("/product-composite?productIds=" + PRODUCT_ID + "," + PRODUCT_ID_NOT_FOUND)
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(APPLICATION_JSON)
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(1)
+                .jsonPath("$[0].productId").isEqualTo(PRODUCT_ID)
+                .jsonPath("$[0].recommendations.length()").isEqualTo(1)
+                .jsonPath("$[0].reviews.length()").isEqualTo(2);
+    }
+
+    @Test
+    void getReviewsPage(){
+        String cursor = PageCursor.of(1);
+        when(productCompositeIntegration.getReviews(PRODUCT_ID, 3, cursor))
+                .thenReturn(Flux.just(
+                        new Review(PRODUCT_ID, 2, "Author", "Subject", "content", "mock-address"),
+                        new Review(PRODUCT_ID, 3, "Author", "Subject", "content", "mock-address"),
+                        new Review(PRODUCT_ID, 4, "Author", "Subject", "content", "mock-address")));
+
+        client.get()
+                .uri("/product-composite/" + PRODUCT_ID + "/reviews?limit=2&cursor=" + cursor)
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(2)
+                .jsonPath("$.items[1].reviewId").isEqualTo(3)
+                .jsonPath("$.nextCursor").isEqualTo(PageCursor.of(3));
+    }
+
+    @Test
+    void getReviewsPageInvalidLimit(){
+        client.get()
+                .uri("/product-composite/" + PRODUCT_ID + "/reviews?limit=0")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(UNPROCESSABLE_ENTITY);
+    }
+
+    @Test
+    void getProductStream(){
+        client.get()
+                .uri("/product-composite/stream?fromId=" + PRODUCT_ID + "&toId=" + PRODUCT_ID_INVALID)
+                .accept(APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(APPLICATION_NDJSON)
+                .expectBody()
+                .jsonPath("$.productId").isEqualTo(PRODUCT_ID)
+                .jsonPath("$.reviews.length()").isEqualTo(2);
+    }
+
+    @Test
+    void getProductStreamInvalidRange(){
+        client.get()
+                .uri("/product-composite/stream?fromId=" + PRODUCT_ID_INVALID + "&toId=" + PRODUCT_ID)
+                .accept(APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isEqualTo(UNPROCESSABLE_ENTITY);
     }
 
     @Test
@@ -89,5 +278,33 @@ class ProductCompositeServiceApplicationTest {
                 .jsonPath("$.message").isEqualTo("INVALID: "+PRODUCT_ID_INVALID);
     }
 
+    @Test
+    void changeEventInvalidatesCachedAggregate(){
+        when(productCompositeIntegration.getVersionedProduct(PRODUCT_ID_CHANGED))
+                .thenReturn(Mono.just(Versioned.untagged(new Product(PRODUCT_ID_CHANGED, "name", 1, "mock-address"))));
+        getAndVerifyName(PRODUCT_ID_CHANGED, "name");
+
+        when(productCompositeIntegration.getVersionedProduct(PRODUCT_ID_CHANGED))
+                .thenReturn(Mono.just(Versioned.untagged(new Product(PRODUCT_ID_CHANGED, "new name", 1, "mock-address"))));
+        getAndVerifyName(PRODUCT_ID_CHANGED, "name");
+
+        changeEvents.publish(new ChangeEvent(ChangeEvent.Type.PRODUCT, ChangeEvent.Action.UPDATED, PRODUCT_ID_CHANGED, null));
+        getAndVerifyName(PRODUCT_ID_CHANGED, "new name");
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            return in.readAllBytes();
+        }
+    }
 
-}
\ No newline at end of file
+    private void getAndVerifyName(int productId, String expectedName){
+        client.get()
+                .uri("/product-composite/" + productId)
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.name").isEqualTo(expectedName);
+    }
+}
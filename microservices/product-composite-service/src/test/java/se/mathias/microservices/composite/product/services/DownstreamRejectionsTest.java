@@ -0,0 +1,127 @@
+package se.mathias.microservices.composite.product.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import se.mathias.api.exceptions.InvalidInputException;
+import se.mathias.api.exceptions.NotFoundException;
+
+import java.util.Map;
+
+class DownstreamRejectionsTest {
+
+    private static final String SMILE = "application/x-jackson-smile";
+
+    @Test
+    void notFoundWithJsonBody() {
+        ClientResponse response = ClientResponse.create(HttpStatus.NOT_FOUND)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body("{\"timestamp\":\"2024-01-01T00:00:00Z\",\"path\":\"/product/13\",\"status\":404,"
+                        + "\"error\":\"Not Found\",\"message\":\"No product found for productId: 13\"}")
+                .build();
+
+        StepVerifier.create(get(response))
+                .expectErrorMatches(ex -> ex instanceof NotFoundException
+                        && ex.getMessage().equals("No product found for productId: 13"))
+                .verify();
+    }
+
+    @Test
+    void unprocessableEntityWithJsonBody() {
+        ClientResponse response = ClientResponse.create(HttpStatus.UNPROCESSABLE_ENTITY)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body("{\"path\":\"/product/-1\",\"details\":{\"nested\":[1,2]},\"message\":\"Invalid productId: -1\"}")
+                .build();
+
+        StepVerifier.create(get(response))
+                .expectErrorMatches(ex -> ex instanceof InvalidInputException
+                        && ex.getMessage().equals("Invalid productId: -1"))
+                .verify();
+    }
+
+    @Test
+    void notFoundWithSmileBody() throws Exception {
+        byte[] body = new ObjectMapper(new SmileFactory())
+                .writeValueAsBytes(Map.of("status", 404, "message", "No product found for productId: 13"));
+        ClientResponse response = ClientResponse.create(HttpStatus.NOT_FOUND)
+                .header(HttpHeaders.CONTENT_TYPE, SMILE)
+                .body(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(body)))
+                .build();
+
+        StepVerifier.create(get(response))
+                .expectErrorMatches(ex -> ex instanceof NotFoundException
+                        && ex.getMessage().equals("No product found for productId: 13"))
+                .verify();
+    }
+
+    @Test
+    void unprocessableEntityWithSmileBody() throws Exception {
+        byte[] body = new ObjectMapper(new SmileFactory())
+                .writeValueAsBytes(Map.of("message", "Invalid productId: -1"));
+        ClientResponse response = ClientResponse.create(HttpStatus.UNPROCESSABLE_ENTITY)
+                .header(HttpHeaders.CONTENT_TYPE, SMILE)
+                .body(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(body)))
+                .build();
+
+        StepVerifier.create(get(response))
+                .expectErrorMatches(ex -> ex instanceof InvalidInputException
+                        && ex.getMessage().equals("Invalid productId: -1"))
+                .verify();
+    }
+
+    @Test
+    void rejectionWithoutMessageNamesTheStatus() {
+        ClientResponse response = ClientResponse.create(HttpStatus.NOT_FOUND).build();
+
+        StepVerifier.create(get(response))
+                .expectErrorMatches(ex -> ex instanceof NotFoundException && ex.getMessage().startsWith("404 from GET"))
+                .verify();
+    }
+
+    @Test
+    void rejectionWithUnreadableBodyNamesTheStatus() {
+        ClientResponse response = ClientResponse.create(HttpStatus.UNPROCESSABLE_ENTITY)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body("<html>Bad gateway</html>")
+                .build();
+
+        StepVerifier.create(get(response))
+                .expectErrorMatches(ex -> ex instanceof InvalidInputException && ex.getMessage().startsWith("422 from GET"))
+                .verify();
+    }
+
+    @Test
+    void otherErrorsAreNotMapped() {
+        ClientResponse response = ClientResponse.create(HttpStatus.INTERNAL_SERVER_ERROR)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body("{\"message\":\"failed\"}")
+                .build();
+
+        StepVerifier.create(get(response))
+                .expectError(WebClientResponseException.InternalServerError.class)
+                .verify();
+    }
+
+    /**
+     * Gets a product through a web client with the status handler of the application, answered by a stub.
+     */
+    private static Mono<String> get(ClientResponse response) {
+        return WebClient.builder()
+                .exchangeFunction(request -> Mono.just(response))
+                .defaultStatusHandler(DownstreamRejections::isRejection, DownstreamRejections::toException)
+                .build()
+                .get().uri("http://product/product/13")
+                .retrieve()
+                .bodyToMono(String.class);
+    }
+}
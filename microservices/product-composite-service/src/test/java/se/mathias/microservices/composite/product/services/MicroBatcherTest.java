@@ -0,0 +1,132 @@
+package se.mathias.microservices.composite.product.services;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MicroBatcherTest {
+
+    private final List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+
+    @Test
+    void splitsBatchesAtMaxSize() {
+        MicroBatcher<Integer, String> batcher = batcher(2, keys -> Mono.just(valuesOf(keys)));
+
+        StepVerifier.create(Mono.zip(batcher.load(1), batcher.load(2), batcher.load(3)))
+                .assertNext(values -> {
+                    assertEquals("value 1", values.getT1());
+                    assertEquals("value 2", values.getT2());
+                    assertEquals("value 3", values.getT3());
+                })
+                .verifyComplete();
+        assertEquals(List.of(List.of(1, 2), List.of(3)), batches);
+    }
+
+    @Test
+    void callersOfTheSameKeyShareItsValue() {
+        MicroBatcher<Integer, String> batcher = batcher(10, keys -> Mono.just(valuesOf(keys)));
+
+        StepVerifier.create(Mono.zip(batcher.load(1), batcher.load(1), batcher.load(2)))
+                .assertNext(values -> {
+                    assertEquals("value 1", values.getT1());
+                    assertEquals("value 1", values.getT2());
+                    assertEquals("value 2", values.getT3());
+                })
+                .verifyComplete();
+        assertEquals(List.of(List.of(1, 2)), batches);
+    }
+
+    @Test
+    void keysMissingInTheResultGetTheDefault() {
+        MicroBatcher<Integer, String> batcher = batcher(10, keys -> Mono.just(valuesOf(keys.subList(0, 1))));
+
+        StepVerifier.create(Mono.zip(batcher.load(1), batcher.load(2)))
+                .assertNext(values -> {
+                    assertEquals("value 1", values.getT1());
+                    assertEquals("none", values.getT2());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void emptyResultGivesAllTheDefault() {
+        MicroBatcher<Integer, String> batcher = batcher(10, keys -> Mono.empty());
+
+        StepVerifier.create(batcher.load(1))
+                .expectNext("none")
+                .verifyComplete();
+    }
+
+    @Test
+    void failedBatchFailsAllCallers() {
+        MicroBatcher<Integer, String> batcher = batcher(10, keys -> Mono.error(new IllegalStateException("failed")));
+
+        StepVerifier.create(Mono.zip(batcher.load(1).onErrorReturn("failed 1"), batcher.load(2).onErrorReturn("failed 2")))
+                .assertNext(values -> {
+                    assertEquals("failed 1", values.getT1());
+                    assertEquals("failed 2", values.getT2());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void cancelledCallerDoesNotCancelTheBatch() {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Sinks.One<Map<Integer, String>> result = Sinks.one();
+        MicroBatcher<Integer, String> batcher = batcher(2, keys -> result.asMono().doOnCancel(() -> cancelled.set(true)));
+
+        Disposable leaving = batcher.load(1).subscribe();
+        StepVerifier.create(batcher.load(2))
+                .then(leaving::dispose)
+                .then(() -> result.tryEmitValue(valuesOf(List.of(1, 2))))
+                .expectNext("value 2")
+                .verifyComplete();
+        assertFalse(cancelled.get());
+    }
+
+    @Test
+    void concurrentCallersAllGetTheirValue() {
+        MicroBatcher<Integer, String> batcher = batcher(50, keys -> Mono.just(valuesOf(keys)));
+
+        StepVerifier.create(Flux.range(0, 10_000)
+                        .parallel(8)
+                        .runOn(Schedulers.parallel())
+                        .flatMap(i -> batcher.load(i % 500).map(value -> value.equals("value " + (i % 500))))
+                        .sequential()
+                        .all(correct -> correct))
+                .expectNext(true)
+                .verifyComplete();
+        for (List<Integer> batch : batches) {
+            assertTrue(batch.size() <= 50);
+            assertEquals(batch.size(), new HashSet<>(batch).size());
+        }
+    }
+
+    private MicroBatcher<Integer, String> batcher(int maxSize, Function<List<Integer>, Mono<Map<Integer, String>>> call) {
+        return new MicroBatcher<>(keys -> {
+            batches.add(keys);
+            return call.apply(keys);
+        }, "none", maxSize, Duration.ofMillis(10), Schedulers.parallel(), Duration.ZERO);
+    }
+
+    private static Map<Integer, String> valuesOf(List<Integer> keys) {
+        return keys.stream().collect(Collectors.toMap(key -> key, key -> "value " + key));
+    }
+}
@@ -0,0 +1,42 @@
+package se.mathias.microservices.composite.product.services;
+
+import org.junit.jupiter.api.Test;
+import se.mathias.api.core.recommendation.Recommendation;
+import se.mathias.api.core.review.Review;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageTagsTest {
+
+    @Test
+    void samePageFromAnyReplicaHasTheSameTag() {
+        String tag = PageTags.ofRecommendations(List.of(
+                new Recommendation(1, 1, "author", 5, "content", "recommendation-1"),
+                new Recommendation(1, 2, "author", 3, "content", "recommendation-1")));
+
+        assertTrue(tag.startsWith("W/\""));
+        assertEquals(tag, PageTags.ofRecommendations(List.of(
+                new Recommendation(1, 1, "author", 5, "content", "recommendation-2"),
+                new Recommendation(1, 2, "author", 3, "content", "recommendation-2"))));
+    }
+
+    @Test
+    void changedEntryChangesTheTag() {
+        String tag = PageTags.ofReviews(List.of(
+                new Review(1, 1, "author", "subject", "content", "review"),
+                new Review(1, 2, "author", "subject", "content", "review")));
+
+        assertNotEquals(tag, PageTags.ofReviews(List.of(
+                new Review(1, 1, "author", "subject", "content", "review"),
+                new Review(1, 2, "author", "subject", "changed", "review"))));
+        assertNotEquals(tag, PageTags.ofReviews(List.of(
+                new Review(1, 1, "author", "subject", "content", "review"))));
+        assertNotEquals(tag, PageTags.ofReviews(List.of(
+                new Review(1, 1, "author", "subject", "content", "review"),
+                new Review(1, 2, "author", "subject content", "", "review"))));
+    }
+}
@@ -0,0 +1,137 @@
+package se.mathias.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import se.mathias.api.event.ChangeEvent;
+import se.mathias.api.exceptions.InvalidInputException;
+import se.mathias.api.exceptions.NotFoundException;
+import se.mathias.util.event.LocalChangeEventBroker;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProductRejectionCacheTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ProductRejectionCache rejections = new ProductRejectionCache(meterRegistry, true, 100, Duration.ofMinutes(1));
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void notFoundIsCached() {
+        for (int i = 0; i < 2; i++) {
+            StepVerifier.create(rejections.guard(13, () -> notFound(13)))
+                    .expectErrorMatches(ex -> ex instanceof NotFoundException
+                            && ex.getMessage().equals("No product found for productId: 13"))
+                    .verify();
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void invalidInputIsCached() {
+        for (int i = 0; i < 2; i++) {
+            StepVerifier.create(rejections.guard(-1, () -> call(Mono.<String>error(new InvalidInputException("Invalid productId: -1")))))
+                    .expectErrorMatches(ex -> ex instanceof InvalidInputException && ex.getMessage().equals("Invalid productId: -1"))
+                    .verify();
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void otherErrorsAndValuesAreNotCached() {
+        StepVerifier.create(rejections.guard(1, () -> call(Mono.<String>error(new IllegalStateException("timeout")))))
+                .expectError(IllegalStateException.class)
+                .verify();
+        StepVerifier.create(rejections.guard(1, () -> call(Mono.just("product"))))
+                .expectNext("product")
+                .verifyComplete();
+        StepVerifier.create(rejections.guard(1, () -> call(Mono.just("product"))))
+                .expectNext("product")
+                .verifyComplete();
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void createdEventClearsTheRejection() {
+        LocalChangeEventBroker broker = new LocalChangeEventBroker(100);
+        ProductAggregateCache aggregates = new ProductAggregateCache(meterRegistry, true, 100, Duration.ofMinutes(1), 0.0,
+                Duration.ofSeconds(1), Duration.ZERO);
+        ChangeEventSubscriber subscriber = new ChangeEventSubscriber(null, broker, aggregates, rejections, "local",
+                "product", 80, "recommendation", 80, "review", 80, Duration.ofSeconds(1), Duration.ofSeconds(1));
+        subscriber.start();
+
+        StepVerifier.create(rejections.guard(13, () -> notFound(13)))
+                .expectError(NotFoundException.class)
+                .verify();
+        StepVerifier.create(rejections.guard(13, () -> call(Mono.just("product 13"))))
+                .expectError(NotFoundException.class)
+                .verify();
+
+        broker.publish(new ChangeEvent(ChangeEvent.Type.PRODUCT, ChangeEvent.Action.CREATED, 13, null));
+
+        StepVerifier.create(rejections.guard(13, () -> call(Mono.just("product 13"))))
+                .expectNext("product 13")
+                .verifyComplete();
+        assertEquals(2, calls.get());
+        subscriber.stop();
+    }
+
+    @Test
+    void rejectionAnsweredBeforeAnInvalidationIsNotCached() {
+        Sinks.One<String> answer = Sinks.one();
+
+        StepVerifier.create(rejections.guard(13, () -> call(answer.asMono())))
+                .then(() -> rejections.invalidate(13))
+                .then(() -> answer.tryEmitError(new NotFoundException("No product found for productId: 13")))
+                .expectError(NotFoundException.class)
+                .verify();
+        StepVerifier.create(rejections.guard(13, () -> call(Mono.just("product 13"))))
+                .expectNext("product 13")
+                .verifyComplete();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void rejectionAnsweredBeforeInvalidatingAllIsNotCached() {
+        Sinks.One<String> answer = Sinks.one();
+
+        StepVerifier.create(rejections.guard(13, () -> call(answer.asMono())))
+                .then(rejections::invalidateAll)
+                .then(() -> answer.tryEmitError(new NotFoundException("No product found for productId: 13")))
+                .expectError(NotFoundException.class)
+                .verify();
+        StepVerifier.create(rejections.guard(13, () -> call(Mono.just("product 13"))))
+                .expectNext("product 13")
+                .verifyComplete();
+    }
+
+    @Test
+    void disabledCacheCallsEveryTime() {
+        ProductRejectionCache disabled = new ProductRejectionCache(new SimpleMeterRegistry(), false, 100, Duration.ofMinutes(1));
+
+        for (int i = 0; i < 2; i++) {
+            StepVerifier.create(disabled.guard(13, () -> notFound(13)))
+                    .expectError(NotFoundException.class)
+                    .verify();
+        }
+        assertEquals(2, calls.get());
+    }
+
+    private Mono<String> notFound(int productId) {
+        return call(Mono.error(new NotFoundException("No product found for productId: " + productId)));
+    }
+
+    private Mono<String> call(Mono<String> result) {
+        return Mono.defer(() -> {
+            calls.incrementAndGet();
+            return result;
+        });
+    }
+}
@@ -0,0 +1,112 @@
+package se.mathias.microservices.composite.product.services;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class RequestCoalescerTest {
+
+    private final RequestCoalescer<Integer, String> coalescer = new RequestCoalescer<>(true, Duration.ZERO);
+
+    @Test
+    void concurrentCallersShareOneCall() {
+        AtomicInteger calls = new AtomicInteger();
+        Sinks.One<String> result = Sinks.one();
+
+        Mono<String> first = coalescer.execute(1, () -> {
+            calls.incrementAndGet();
+            return result.asMono();
+        });
+        Mono<String> second = coalescer.execute(1, () -> {
+            calls.incrementAndGet();
+            return Mono.just("second");
+        });
+
+        StepVerifier.create(Mono.zip(first, second))
+                .then(() -> result.tryEmitValue("shared"))
+                .assertNext(values -> {
+                    assertEquals("shared", values.getT1());
+                    assertEquals("shared", values.getT2());
+                })
+                .verifyComplete();
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void keyIsReleasedOnceTheCallCompletes() {
+        AtomicInteger calls = new AtomicInteger();
+
+        StepVerifier.create(coalescer.execute(1, () -> Mono.just("call " + calls.incrementAndGet())))
+                .expectNext("call 1")
+                .verifyComplete();
+        StepVerifier.create(coalescer.execute(1, () -> Mono.just("call " + calls.incrementAndGet())))
+                .expectNext("call 2")
+                .verifyComplete();
+    }
+
+    @Test
+    void differentKeysDontShare() {
+        StepVerifier.create(Mono.zip(
+                        coalescer.execute(1, () -> Mono.delay(Duration.ofMillis(50)).thenReturn("one")),
+                        coalescer.execute(2, () -> Mono.delay(Duration.ofMillis(50)).thenReturn("two"))))
+                .assertNext(values -> {
+                    assertEquals("one", values.getT1());
+                    assertEquals("two", values.getT2());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void cancelledCallerDoesNotCancelTheSharedCall() {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Sinks.One<String> result = Sinks.one();
+
+        Disposable leaving = coalescer.execute(1, () -> result.asMono().doOnCancel(() -> cancelled.set(true)))
+                .subscribe();
+        Mono<String> staying = coalescer.execute(1, () -> Mono.just("not shared"));
+
+        StepVerifier.create(staying)
+                .then(leaving::dispose)
+                .then(() -> result.tryEmitValue("shared"))
+                .expectNext("shared")
+                .verifyComplete();
+        assertFalse(cancelled.get());
+    }
+
+    @Test
+    void failureReachesAllCallers() {
+        Sinks.One<String> result = Sinks.one();
+
+        Mono<String> first = coalescer.execute(1, result::asMono);
+        Mono<String> second = coalescer.execute(1, () -> Mono.just("not shared"));
+
+        StepVerifier.create(Mono.zip(first.onErrorReturn("first failed"), second.onErrorReturn("second failed")))
+                .then(() -> result.tryEmitError(new IllegalStateException("failed")))
+                .assertNext(values -> {
+                    assertEquals("first failed", values.getT1());
+                    assertEquals("second failed", values.getT2());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void disabledCoalescerCallsForEveryCaller() {
+        RequestCoalescer<Integer, String> disabled = new RequestCoalescer<>(false, Duration.ZERO);
+        AtomicInteger calls = new AtomicInteger();
+
+        StepVerifier.create(Mono.zip(
+                        disabled.execute(1, () -> Mono.delay(Duration.ofMillis(50)).thenReturn("call " + calls.incrementAndGet())),
+                        disabled.execute(1, () -> Mono.delay(Duration.ofMillis(50)).thenReturn("call " + calls.incrementAndGet()))))
+                .assertNext(values -> assertEquals(2, calls.get()))
+                .verifyComplete();
+    }
+}
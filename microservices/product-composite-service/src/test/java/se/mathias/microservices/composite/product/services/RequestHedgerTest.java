@@ -0,0 +1,59 @@
+package se.mathias.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RequestHedgerTest {
+
+    private final RequestHedger hedger = new RequestHedger("test", "single", true, 0.95, Duration.ofMillis(10), 1.0,
+            new SimpleMeterRegistry());
+
+    @Test
+    void fastFailingHedgeDoesNotWinOverSlowSuccess() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        StepVerifier.create(hedger.execute(() -> attempts.incrementAndGet() == 1
+                        ? Mono.delay(Duration.ofMillis(200)).thenReturn("slow")
+                        : Mono.<String>error(new IllegalStateException("hedge failed"))))
+                .expectNext("slow")
+                .verifyComplete();
+
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void fastHedgeWinsOverSlowFirstAttempt() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        StepVerifier.create(hedger.execute(() -> attempts.incrementAndGet() == 1
+                        ? Mono.delay(Duration.ofSeconds(5)).thenReturn("slow")
+                        : Mono.just("hedge")))
+                .expectNext("hedge")
+                .verifyComplete();
+    }
+
+    @Test
+    void errorOfFirstAttemptOnlyWhenBothFail() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        StepVerifier.create(hedger.execute(() -> attempts.incrementAndGet() == 1
+                        ? Mono.delay(Duration.ofMillis(100)).then(Mono.<String>error(new IllegalStateException("first failed")))
+                        : Mono.<String>error(new IllegalArgumentException("hedge failed"))))
+                .expectErrorMatches(ex -> ex instanceof IllegalStateException && ex.getMessage().equals("first failed"))
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void errorWithoutHedgeIsPassedOn() {
+        StepVerifier.create(hedger.execute(() -> Mono.<String>error(new IllegalStateException("failed"))))
+                .expectErrorMatches(ex -> ex instanceof IllegalStateException && ex.getMessage().equals("failed"))
+                .verify(Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,43 @@
+package se.mathias.microservices.core.product.persistence;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Fills an empty {@link ProductStore} with app.store.demo-products products, named "name-" + productId.
+ * productId 13 is left out so that there is a known product that doesn't exist.
+ */
+@Component
+class DemoProductLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DemoProductLoader.class);
+
+    private static final int MISSING_PRODUCT_ID = 13;
+
+    private final ProductStore store;
+    private final int demoProducts;
+
+    @Autowired
+    DemoProductLoader(ProductStore store, @Value("${app.store.demo-products:0}") int demoProducts) {
+        this.store = store;
+        this.demoProducts = demoProducts;
+    }
+
+    @PostConstruct
+    void load() {
+        if (demoProducts <= 0 || store.size() > 0) {
+            return;
+        }
+
+        for (int productId = 1; productId <= demoProducts; productId++) {
+            if (productId != MISSING_PRODUCT_ID) {
+                store.insert(productId, "name-" + productId, 123);
+            }
+        }
+        LOG.info("Loaded {} demo products", store.size());
+    }
+}
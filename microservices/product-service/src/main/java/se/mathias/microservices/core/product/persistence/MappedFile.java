@@ -0,0 +1,145 @@
+package se.mathias.microservices.core.product.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A file mapped into memory in fixed size segments, addressed with long positions.
+ * <p>
+ * A single {@link MappedByteBuffer} can't address more than 2 GB, so larger files are mapped as a number of
+ * segments. Callers make sure that a value never straddles two segments, which holds as long as the segment
+ * size is a multiple of the size of the records stored in the file.
+ * <p>
+ * Only as much of the file is mapped as is needed, rounded up to whole pages, so a small file such as the
+ * index of a few products takes a few pages and not a whole segment. When it grows, the file at least
+ * doubles, by at most a segment at a time, and the last segment is mapped again with its new length.
+ * <p>
+ * Reads may run concurrently with each other and with {@link #ensureCapacity(long)}; writes must be
+ * serialized by the caller.
+ */
+final class MappedFile implements Closeable {
+
+    static final int SEGMENT_SHIFT = 26;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = (int) SEGMENT_SIZE - 1;
+    private static final long PAGE_SIZE = 4096;
+
+    private final FileChannel channel;
+
+    private volatile MappedByteBuffer[] segments;
+    private volatile long capacity;
+
+    MappedFile(Path path, long minSize) {
+        try {
+            this.channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.segments = new MappedByteBuffer[0];
+            ensureCapacity(Math.max(minSize, channel.size()));
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to map " + path, ex);
+        }
+    }
+
+    /**
+     * Maps enough of the file to address {@code size} bytes, growing the file if needed. Readers that still
+     * hold the previous mapping of the last segment see the same pages through it.
+     */
+    void ensureCapacity(long size) {
+        long current = capacity;
+        if (size <= current) {
+            return;
+        }
+
+        long grown = Math.max(size, current + Math.min(current, SEGMENT_SIZE));
+        grown = (grown + PAGE_SIZE - 1) & -PAGE_SIZE;
+        MappedByteBuffer[] mapped = segments;
+        int needed = (int) ((grown + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] remapped = Arrays.copyOf(mapped, needed);
+        try {
+            for (int i = Math.max(mapped.length - 1, 0); i < needed; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long length = Math.min(SEGMENT_SIZE, grown - start);
+                if (i >= mapped.length || mapped[i].capacity() != length) {
+                    remapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to grow mapped file", ex);
+        }
+        segments = remapped;
+        capacity = grown;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    byte getByte(long position) {
+        return segment(position).get(offset(position));
+    }
+
+    int getInt(long position) {
+        return segment(position).getInt(offset(position));
+    }
+
+    long getLong(long position) {
+        return segment(position).getLong(offset(position));
+    }
+
+    short getShort(long position) {
+        return segment(position).getShort(offset(position));
+    }
+
+    void getBytes(long position, byte[] target, int length) {
+        segment(position).get(offset(position), target, 0, length);
+    }
+
+    void putByte(long position, byte value) {
+        segment(position).put(offset(position), value);
+    }
+
+    void putInt(long position, int value) {
+        segment(position).putInt(offset(position), value);
+    }
+
+    void putLong(long position, long value) {
+        segment(position).putLong(offset(position), value);
+    }
+
+    void putShort(long position, short value) {
+        segment(position).putShort(offset(position), value);
+    }
+
+    void putBytes(long position, byte[] source, int length) {
+        segment(position).put(offset(position), source, 0, length);
+    }
+
+    /**
+     * Writes all modified pages back to the file.
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private MappedByteBuffer segment(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long position) {
+        return (int) position & SEGMENT_MASK;
+    }
+}
@@ -0,0 +1,38 @@
+package se.mathias.microservices.core.product.persistence;
+
+/**
+ * A product as stored in the {@link ProductStore}.
+ */
+public final class ProductEntity {
+
+    private final int productId;
+    private final String name;
+    private final int weight;
+    private final long version;
+
+    ProductEntity(int productId, String name, int weight, long version) {
+        this.productId = productId;
+        this.name = name;
+        this.weight = weight;
+        this.version = version;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Changes on every write of the product, also when a deleted product is created again.
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,200 @@
+package se.mathias.microservices.core.product.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Off-heap hash index from productId to record slot, kept in a memory mapped file.
+ * <p>
+ * Open addressing with linear probing over 8 byte entries of productId and slot. productId 0 marks a free
+ * entry and -1 a removed one, neither is a valid productId. The index is sized so that at most half of the
+ * entries are in use; {@link ProductStore} rebuilds it with twice the capacity when it fills up.
+ * <p>
+ * The header holds a dirty flag that is set before the first change and cleared on a clean close. An index
+ * that is still dirty when it is opened may have missed changes and is rebuilt from the records.
+ */
+final class ProductIndex {
+
+    static final int NO_SLOT = -1;
+
+    private static final int MAGIC = 0x50494458;
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 8;
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private static final long MAGIC_OFFSET = 0;
+    private static final long CAPACITY_OFFSET = 4;
+    private static final long SIZE_OFFSET = 8;
+    private static final long DIRTY_OFFSET = 12;
+    private static final long REMOVED_OFFSET = 16;
+
+    private final MappedFile file;
+    private final int capacity;
+    private final int mask;
+
+    private int size;
+    private int removed;
+    private boolean dirty;
+
+    private ProductIndex(MappedFile file, int capacity, int size, int removed) {
+        this.file = file;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.size = size;
+        this.removed = removed;
+    }
+
+    /**
+     * Opens an existing index, or returns null if there is none that can be trusted.
+     */
+    static ProductIndex open(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        MappedFile file = new MappedFile(path, HEADER_SIZE);
+        int capacity = file.getInt(CAPACITY_OFFSET);
+        boolean valid = file.getInt(MAGIC_OFFSET) == MAGIC
+                && file.getInt(DIRTY_OFFSET) == 0
+                && capacity > 0 && Integer.bitCount(capacity) == 1
+                && file.capacity() >= HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+        if (!valid) {
+            closeQuietly(file);
+            return null;
+        }
+        return new ProductIndex(file, capacity, file.getInt(SIZE_OFFSET), file.getInt(REMOVED_OFFSET));
+    }
+
+    /**
+     * Creates a new empty index, replacing any existing file.
+     */
+    static ProductIndex create(Path path, int capacity) throws IOException {
+        Files.deleteIfExists(path);
+        MappedFile file = new MappedFile(path, HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+        file.putInt(MAGIC_OFFSET, MAGIC);
+        file.putInt(CAPACITY_OFFSET, capacity);
+        file.putInt(SIZE_OFFSET, 0);
+        file.putInt(DIRTY_OFFSET, 0);
+        file.putInt(REMOVED_OFFSET, 0);
+        return new ProductIndex(file, capacity, 0, 0);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the slot of the product, or {@link #NO_SLOT}. Safe to call while the index is being changed, the
+     * result is then garbage but the call terminates.
+     */
+    int get(int productId) {
+        int index = hash(productId) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            long position = position(index);
+            int key = file.getInt(position);
+            if (key == productId) {
+                return file.getInt(position + 4);
+            }
+            if (key == EMPTY) {
+                return NO_SLOT;
+            }
+            index = (index + 1) & mask;
+        }
+        return NO_SLOT;
+    }
+
+    void put(int productId, int slot) {
+        markDirty();
+        int index = hash(productId) & mask;
+        long reusable = -1;
+        while (true) {
+            long position = position(index);
+            int key = file.getInt(position);
+            if (key == productId) {
+                file.putInt(position + 4, slot);
+                return;
+            }
+            if (key == REMOVED && reusable < 0) {
+                reusable = position;
+            }
+            if (key == EMPTY) {
+                long target = reusable >= 0 ? reusable : position;
+                if (reusable >= 0) {
+                    file.putInt(REMOVED_OFFSET, --removed);
+                }
+                file.putInt(target + 4, slot);
+                file.putInt(target, productId);
+                file.putInt(SIZE_OFFSET, ++size);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    void remove(int productId) {
+        int index = hash(productId) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            long position = position(index);
+            int key = file.getInt(position);
+            if (key == productId) {
+                markDirty();
+                file.putInt(position, REMOVED);
+                file.putInt(SIZE_OFFSET, --size);
+                file.putInt(REMOVED_OFFSET, ++removed);
+                return;
+            }
+            if (key == EMPTY) {
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * True when the next insert would take the index above half full, counting removed entries since they
+     * lengthen probe sequences just as live ones do.
+     */
+    boolean isFull() {
+        return (long) (size + removed + 1) * 2 > capacity;
+    }
+
+    /**
+     * Writes the index back to disk and marks it clean.
+     */
+    void close() throws IOException {
+        file.force();
+        file.putInt(DIRTY_OFFSET, 0);
+        file.close();
+    }
+
+    private void markDirty() {
+        if (!dirty) {
+            file.putInt(DIRTY_OFFSET, 1);
+            file.force();
+            dirty = true;
+        }
+    }
+
+    private static long position(int index) {
+        return HEADER_SIZE + (long) index * ENTRY_SIZE;
+    }
+
+    private static int hash(int productId) {
+        int h = productId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static void closeQuietly(MappedFile file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+            // Nothing was written to it
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package se.mathias.microservices.core.product.persistence;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.StampedLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The product catalog, stored as fixed size records in a memory mapped file with an off-heap
+ * {@link ProductIndex} from productId to record.
+ * <p>
+ * Every record takes {@value #RECORD_SIZE} bytes: a flags byte, the productId, a version, the weight and the
+ * name as at most {@value #MAX_NAME_BYTES} bytes of UTF-8. Record slot 0 holds the file header. Slots of
+ * deleted products are chained into a free list and reused. Both files are mapped, not read, so opening a
+ * store of any size only costs the page faults of the records that are actually looked up.
+ * <p>
+ * Lookups are lock free in the common case: they read optimistically and only retry under the read lock if
+ * a write got in between. Writes are serialized and are not forced to disk unless app.store.sync-writes is
+ * set; the operating system writes the pages back, so a crash of the service loses nothing but a crash of
+ * the host can lose the latest writes.
+ * <p>
+ * The pages are written back in any order, so after an unclean shutdown, which the dirty flag of the index
+ * tells, the header can't be trusted either: the next slot, the version and the free list are recovered from
+ * the record slots before the index is rebuilt.
+ */
+@Component
+public class ProductStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductStore.class);
+
+    public static final int MAX_NAME_BYTES = 106;
+
+    static final int RECORD_SIZE = 128;
+
+    private static final String RECORD_FILE = "products.dat";
+    private static final String INDEX_FILE = "products.idx";
+
+    private static final int MAGIC = 0x50524F44;
+
+    // Header, stored in slot 0
+    private static final long MAGIC_OFFSET = 0;
+    private static final long RECORD_SIZE_OFFSET = 4;
+    private static final long NEXT_SLOT_OFFSET = 8;
+    private static final long FREE_HEAD_OFFSET = 12;
+    private static final long LIVE_COUNT_OFFSET = 16;
+    private static final long VERSION_OFFSET = 24;
+
+    // Record
+    private static final int FLAGS = 0;
+    private static final int PRODUCT_ID = 4;
+    private static final int VERSION = 8;
+    private static final int WEIGHT = 16;
+    private static final int NEXT_FREE = 16;
+    private static final int NAME_LENGTH = 20;
+    private static final int NAME = 22;
+
+    private static final byte FREE = 0;
+    private static final byte LIVE = 1;
+
+    private final StampedLock lock = new StampedLock();
+
+    private final Path directory;
+    private final int initialIndexCapacity;
+    private final boolean syncWrites;
+
+    private final MappedFile records;
+
+    private volatile ProductIndex index;
+    private volatile int nextSlot;
+    private int freeHead;
+    private int liveCount;
+    private long version;
+
+    @Autowired
+    public ProductStore(
+        @Value("${app.store.directory}") Path directory,
+        @Value("${app.store.initial-index-capacity}") int initialIndexCapacity,
+        @Value("${app.store.sync-writes}") boolean syncWrites) throws IOException {
+
+        this.directory = directory;
+        this.initialIndexCapacity = Integer.highestOneBit(Math.max(initialIndexCapacity, 16) - 1) << 1;
+        this.syncWrites = syncWrites;
+
+        Files.createDirectories(directory);
+        this.records = new MappedFile(directory.resolve(RECORD_FILE), RECORD_SIZE);
+        openHeader();
+
+        ProductIndex existing = ProductIndex.open(directory.resolve(INDEX_FILE));
+        if (existing != null && existing.size() == liveCount) {
+            this.index = existing;
+        } else {
+            if (existing != null) {
+                existing.close();
+            }
+            recoverHeader();
+            LOG.info("Rebuilding the product index from {} record slots", nextSlot - 1);
+            this.index = buildIndex(capacityFor(liveCount));
+            rebuildFreeList();
+        }
+        LOG.info("Opened product store in {} with {} products", directory, liveCount);
+    }
+
+    /**
+     * Looks up a product.
+     *
+     * @param productId the product id
+     * @return the product, or null if there is none with this id
+     */
+    public ProductEntity find(int productId) {
+        long stamp = lock.tryOptimisticRead();
+        ProductEntity product = read(productId);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                product = read(productId);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Stores a new product.
+     *
+     * @return the stored product, or null if there already is a product with this id
+     */
+    public ProductEntity insert(int productId, String name, int weight) {
+        byte[] nameBytes = encode(name);
+        long stamp = lock.writeLock();
+        try {
+            if (index.get(productId) != ProductIndex.NO_SLOT) {
+                return null;
+            }
+            if (index.isFull()) {
+                growIndex();
+            }
+
+            int slot = allocateSlot();
+            long position = position(slot);
+            long newVersion = nextVersion();
+            records.putInt(position + PRODUCT_ID, productId);
+            writeFields(position, nameBytes, weight, newVersion);
+            records.putByte(position + FLAGS, LIVE);
+            index.put(productId, slot);
+            records.putInt(LIVE_COUNT_OFFSET, ++liveCount);
+            sync();
+
+            return new ProductEntity(productId, name, weight, newVersion);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces the name and weight of a product.
+     *
+     * @return the updated product, or null if there is no product with this id
+     */
+    public ProductEntity update(int productId, String name, int weight) {
+        byte[] nameBytes = encode(name);
+        long stamp = lock.writeLock();
+        try {
+            int slot = index.get(productId);
+            if (slot == ProductIndex.NO_SLOT) {
+                return null;
+            }
+
+            long newVersion = nextVersion();
+            writeFields(position(slot), nameBytes, weight, newVersion);
+            sync();
+
+            return new ProductEntity(productId, name, weight, newVersion);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Deletes a product.
+     *
+     * @return true if there was a product with this id
+     */
+    public boolean delete(int productId) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = index.get(productId);
+            if (slot == ProductIndex.NO_SLOT) {
+                return false;
+            }
+
+            long position = position(slot);
+            records.putByte(position + FLAGS, FREE);
+            index.remove(productId);
+            records.putInt(position + NEXT_FREE, freeHead);
+            freeHead = slot;
+            records.putInt(FREE_HEAD_OFFSET, freeHead);
+            records.putInt(LIVE_COUNT_OFFSET, --liveCount);
+            sync();
+
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the number of stored products.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return liveCount;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Closes the store. The records are forced first, so that an index that is marked clean always comes
+     * with a header that matches the record slots.
+     */
+    @PreDestroy
+    void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            records.close();
+            index.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reads a product without any locking. Racing with a write can give a wrong result but never an
+     * exception, the caller validates the read and retries it.
+     */
+    private ProductEntity read(int productId) {
+        int slot = index.get(productId);
+        if (slot <= 0 || slot >= nextSlot) {
+            return null;
+        }
+
+        long position = position(slot);
+        if (records.getByte(position + FLAGS) != LIVE || records.getInt(position + PRODUCT_ID) != productId) {
+            return null;
+        }
+        int nameLength = records.getShort(position + NAME_LENGTH);
+        if (nameLength < 0 || nameLength > MAX_NAME_BYTES) {
+            return null;
+        }
+
+        byte[] name = new byte[nameLength];
+        records.getBytes(position + NAME, name, nameLength);
+        return new ProductEntity(productId, new String(name, UTF_8), records.getInt(position + WEIGHT),
+                records.getLong(position + VERSION));
+    }
+
+    private void writeFields(long position, byte[] name, int weight, long newVersion) {
+        records.putLong(position + VERSION, newVersion);
+        records.putInt(position + WEIGHT, weight);
+        records.putShort(position + NAME_LENGTH, (short) name.length);
+        records.putBytes(position + NAME, name, name.length);
+    }
+
+    private int allocateSlot() {
+        if (freeHead != 0) {
+            int slot = freeHead;
+            freeHead = records.getInt(position(slot) + NEXT_FREE);
+            records.putInt(FREE_HEAD_OFFSET, freeHead);
+            return slot;
+        }
+
+        int slot = nextSlot;
+        records.ensureCapacity(position(slot + 1));
+        records.putInt(NEXT_SLOT_OFFSET, slot + 1);
+        nextSlot = slot + 1;
+        return slot;
+    }
+
+    private long nextVersion() {
+        records.putLong(VERSION_OFFSET, ++version);
+        return version;
+    }
+
+    private void sync() {
+        if (syncWrites) {
+            records.force();
+        }
+    }
+
+    private void openHeader() {
+        int magic = records.getInt(MAGIC_OFFSET);
+        if (magic == 0) {
+            records.putInt(MAGIC_OFFSET, MAGIC);
+            records.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+            records.putInt(NEXT_SLOT_OFFSET, 1);
+            records.force();
+        } else if (magic != MAGIC || records.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+            throw new IllegalStateException("Not a product store: " + directory.resolve(RECORD_FILE));
+        }
+
+        nextSlot = records.getInt(NEXT_SLOT_OFFSET);
+        freeHead = records.getInt(FREE_HEAD_OFFSET);
+        liveCount = records.getInt(LIVE_COUNT_OFFSET);
+        version = records.getLong(VERSION_OFFSET);
+    }
+
+    /**
+     * Recovers the header from the record slots after an unclean shutdown. Slots past the next slot of the
+     * header may be in use, and records may have a higher version than the header, which would otherwise be
+     * handed out again.
+     */
+    private void recoverHeader() {
+        long slots = records.capacity() / RECORD_SIZE;
+        int next = Math.max(nextSlot, 1);
+        int live = 0;
+        for (int slot = 1; slot < slots; slot++) {
+            long position = position(slot);
+            if (records.getByte(position + FLAGS) == LIVE) {
+                next = Math.max(next, slot + 1);
+                version = Math.max(version, records.getLong(position + VERSION));
+                live++;
+            }
+        }
+        nextSlot = next;
+        liveCount = live;
+        records.putInt(NEXT_SLOT_OFFSET, next);
+        records.putLong(VERSION_OFFSET, version);
+    }
+
+    /**
+     * Chains all slots that are not in use into a new free list, in slot order. The header's list may have
+     * lost slots that were freed, or still hold a slot that was taken again and would be handed out twice.
+     */
+    private void rebuildFreeList() {
+        int head = 0;
+        for (int slot = nextSlot - 1; slot > 0; slot--) {
+            long position = position(slot);
+            if (records.getByte(position + FLAGS) != LIVE) {
+                records.putInt(position + NEXT_FREE, head);
+                head = slot;
+            }
+        }
+        freeHead = head;
+        records.putInt(FREE_HEAD_OFFSET, head);
+        records.force();
+    }
+
+    /**
+     * Rebuilds the index once it is half full. Removed entries count as used, so after a lot of deletes this
+     * may just clear them out instead of growing the index.
+     */
+    private void growIndex() {
+        int capacity = capacityFor(liveCount + 1);
+        LOG.info("Rebuilding the product index with {} entries", capacity);
+        try {
+            index.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        index = buildIndex(capacity);
+    }
+
+    /**
+     * Builds a new index from the live records next to the current one and atomically replaces it. Also
+     * recounts the live records, the header count can be behind after a crash. A crash can also leave a
+     * deleted product live next to the record it was inserted again with; the record with the highest version
+     * is kept and the other one freed.
+     */
+    private ProductIndex buildIndex(int capacity) {
+        Path target = directory.resolve(INDEX_FILE);
+        Path building = directory.resolve(INDEX_FILE + ".tmp");
+        try {
+            ProductIndex built = ProductIndex.create(building, capacity);
+            int live = 0;
+            for (int slot = 1; slot < nextSlot; slot++) {
+                long position = position(slot);
+                if (records.getByte(position + FLAGS) != LIVE) {
+                    continue;
+                }
+                int productId = records.getInt(position + PRODUCT_ID);
+                int other = built.get(productId);
+                if (other == ProductIndex.NO_SLOT) {
+                    built.put(productId, slot);
+                    live++;
+                } else if (records.getLong(position + VERSION) > records.getLong(position(other) + VERSION)) {
+                    records.putByte(position(other) + FLAGS, FREE);
+                    built.put(productId, slot);
+                } else {
+                    records.putByte(position + FLAGS, FREE);
+                }
+            }
+            built.close();
+            Files.move(building, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            liveCount = live;
+            records.putInt(LIVE_COUNT_OFFSET, live);
+            return ProductIndex.open(target);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to build the product index", ex);
+        }
+    }
+
+    /**
+     * Sizes a new index to be at most a quarter full, so that it doesn't need rebuilding again soon.
+     */
+    private int capacityFor(int products) {
+        int capacity = initialIndexCapacity;
+        while ((long) products * 4 > capacity) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private static byte[] encode(String name) {
+        byte[] bytes = name.getBytes(UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_BYTES + " bytes: " + name);
+        }
+        return bytes;
+    }
+
+    private static long position(int slot) {
+        return (long) slot * RECORD_SIZE;
+    }
+}
@@ -3,16 +3,36 @@ package se.mathias.microservices.core.product.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import se.mathias.api.core.product.Product;
 import se.mathias.api.core.product.ProductService;
+import se.mathias.api.event.ChangeEvent;
 import se.mathias.api.exceptions.InvalidInputException;
 import se.mathias.api.exceptions.NotFoundException;
+import se.mathias.microservices.core.product.persistence.ProductEntity;
+import se.mathias.microservices.core.product.persistence.ProductStore;
+import se.mathias.util.event.ChangeEventBroker;
+import se.mathias.util.http.EntityTags;
 import se.mathias.util.http.ServiceUtil;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
 
 /**
  * The type Product service.
+ * <p>
+ * Products are kept in the {@link ProductStore}. Lookups are served directly from its memory mapped files,
+ * writes are moved off the event loop since they may have to wait for the store's write lock or for a sync
+ * to disk. Every write is published as a {@link ChangeEvent} once it is done.
+ * <p>
+ * The ETag of a product is made from a hash of its fields, so every replica gives the same product the same
+ * tag, and a conditional get that matches doesn't even convert the record.
  */
 @RestController
 public class ProductServiceImpl implements ProductService {
@@ -21,28 +41,132 @@ public class ProductServiceImpl implements ProductService {
 
     private final ServiceUtil serviceUtil;
 
+    private final ProductStore store;
+
+    private final ChangeEventBroker events;
+
     /**
      * Instantiates a new Product service.
      *
      * @param serviceUtil the service util
+     * @param store       the product store
+     * @param events      the broker that changes are published to
      */
     @Autowired
-    public ProductServiceImpl(ServiceUtil serviceUtil) {
+    public ProductServiceImpl(ServiceUtil serviceUtil, ProductStore store, ChangeEventBroker events) {
         this.serviceUtil = serviceUtil;
+        this.store = store;
+        this.events = events;
     }
 
     @Override
-    public Product getProduct(int productId) {
+    public Mono<ResponseEntity<Product>> getProduct(int productId, String ifNoneMatch) {
         LOG.debug("/product return the found product for productId={}", productId);
 
         if (productId < 1) {
-            throw new InvalidInputException("Invalid productId: " + productId);
+            return Mono.error(new InvalidInputException("Invalid productId: " + productId));
         }
 
-        if (productId == 13) {
-            throw new NotFoundException("No product found for productId: " + productId);
+        ProductEntity entity = store.find(productId);
+        if (entity == null) {
+            return Mono.error(new NotFoundException("No product found for productId: " + productId));
         }
 
-        return new Product(productId, "name-" + productId, 123, serviceUtil.getServiceAddress());
+        return Mono.just(EntityTags.response(EntityTags.of(contentHash(entity)), ifNoneMatch,
+                () -> toApi(entity, serviceUtil.getServiceAddress())));
+    }
+
+    @Override
+    public Flux<Product> getProducts(List<Integer> productIds) {
+        LOG.debug("/product return the found products for productIds={}", productIds);
+
+        if (productIds.isEmpty()) {
+            return Flux.error(new InvalidInputException("No productIds given"));
+        }
+
+        // Validate all ids up front, an error can't be reported once the first products are written
+        for (int productId : productIds) {
+            if (productId < 1) {
+                return Flux.error(new InvalidInputException("Invalid productId: " + productId));
+            }
+        }
+
+        String serviceAddress = serviceUtil.getServiceAddress();
+        return Flux.fromIterable(productIds)
+                .mapNotNull(store::find)
+                .map(entity -> toApi(entity, serviceAddress));
+    }
+
+    @Override
+    public Mono<Product> createProduct(Product body) {
+        LOG.debug("/product create a product with productId={}", body.getProductId());
+
+        return Mono.fromCallable(() -> {
+                    validate(body.getProductId(), body);
+                    return store.insert(body.getProductId(), body.getName(), body.getWeight());
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .switchIfEmpty(Mono.error(() -> new InvalidInputException("Duplicate key, productId: " + body.getProductId())))
+                .doOnNext(entity -> publish(ChangeEvent.Action.CREATED, entity.getProductId()))
+                .map(entity -> toApi(entity, serviceUtil.getServiceAddress()));
+    }
+
+    @Override
+    public Mono<Product> updateProduct(int productId, Product body) {
+        LOG.debug("/product update the product with productId={}", productId);
+
+        return Mono.fromCallable(() -> {
+                    validate(productId, body);
+                    return store.update(productId, body.getName(), body.getWeight());
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .switchIfEmpty(Mono.error(() -> new NotFoundException("No product found for productId: " + productId)))
+                .doOnNext(entity -> publish(ChangeEvent.Action.UPDATED, productId))
+                .map(entity -> toApi(entity, serviceUtil.getServiceAddress()));
+    }
+
+    @Override
+    public Mono<Void> deleteProduct(int productId) {
+        LOG.debug("/product delete the product with productId={}", productId);
+
+        if (productId < 1) {
+            return Mono.error(new InvalidInputException("Invalid productId: " + productId));
+        }
+
+        return Mono.fromRunnable(() -> {
+                    store.delete(productId);
+                    publish(ChangeEvent.Action.DELETED, productId);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+
+    private void publish(ChangeEvent.Action action, int productId) {
+        events.publish(new ChangeEvent(ChangeEvent.Type.PRODUCT, action, productId, null));
+    }
+
+    private static void validate(int productId, Product body) {
+        if (productId < 1) {
+            throw new InvalidInputException("Invalid productId: " + productId);
+        }
+        if (body.getProductId() != productId) {
+            throw new InvalidInputException("productId in the body doesn't match: " + body.getProductId());
+        }
+        if (Objects.requireNonNullElse(body.getName(), "").isBlank()) {
+            throw new InvalidInputException("Missing name of productId: " + productId);
+        }
+        if (body.getName().getBytes(StandardCharsets.UTF_8).length > ProductStore.MAX_NAME_BYTES) {
+            throw new InvalidInputException("Name longer than " + ProductStore.MAX_NAME_BYTES + " bytes");
+        }
+    }
+
+    private static long contentHash(ProductEntity entity) {
+        long hash = EntityTags.hash(EntityTags.NO_CONTENT, entity.getProductId());
+        hash = EntityTags.hash(hash, entity.getName());
+        return EntityTags.hash(hash, entity.getWeight());
+    }
+
+    private static Product toApi(ProductEntity entity, String serviceAddress) {
+        return new Product(entity.getProductId(), entity.getName(), entity.getWeight(), serviceAddress);
     }
 }
@@ -0,0 +1,152 @@
+package se.mathias.microservices.core.product.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProductStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void insertsUpdatesAndDeletes() throws IOException {
+        ProductStore store = open();
+
+        ProductEntity inserted = store.insert(1, "name", 10);
+        assertEquals(1, inserted.getVersion());
+        assertNull(store.insert(1, "other", 20));
+
+        ProductEntity updated = store.update(1, "updated", 11);
+        assertEquals(2, updated.getVersion());
+        assertNull(store.update(2, "missing", 1));
+
+        ProductEntity found = store.find(1);
+        assertEquals("updated", found.getName());
+        assertEquals(11, found.getWeight());
+        assertEquals(2, found.getVersion());
+        assertEquals(1, store.size());
+
+        assertTrue(store.delete(1));
+        assertFalse(store.delete(1));
+        assertNull(store.find(1));
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    void reusesSlotsOfDeletedProducts() throws IOException {
+        ProductStore store = open();
+        for (int productId = 1; productId <= 100; productId++) {
+            store.insert(productId, "product " + productId, productId);
+        }
+        long recordsSize = Files.size(directory.resolve("products.dat"));
+
+        for (int productId = 1; productId <= 100; productId += 2) {
+            store.delete(productId);
+        }
+        for (int productId = 101; productId <= 150; productId++) {
+            store.insert(productId, "product " + productId, productId);
+        }
+
+        assertEquals(recordsSize, Files.size(directory.resolve("products.dat")));
+        assertEquals(100, store.size());
+        for (int productId = 2; productId <= 150; productId += productId < 100 ? 2 : 1) {
+            assertEquals("product " + productId, store.find(productId).getName());
+        }
+        store.close();
+    }
+
+    @Test
+    void mapsOnlyWhatTheFilesNeed() throws IOException {
+        ProductStore store = open();
+        store.insert(1, "name", 10);
+        store.close();
+
+        assertTrue(Files.size(directory.resolve("products.idx")) <= 16 * 1024);
+        assertTrue(Files.size(directory.resolve("products.dat")) <= 16 * 1024);
+    }
+
+    @Test
+    void reopensAfterCleanShutdown() throws IOException {
+        ProductStore store = open();
+        for (int productId = 1; productId <= 1000; productId++) {
+            store.insert(productId, "product " + productId, productId);
+        }
+        store.delete(500);
+        store.close();
+
+        store = open();
+        assertEquals(999, store.size());
+        assertNull(store.find(500));
+        assertEquals("product 1000", store.find(1000).getName());
+        assertEquals(1001, store.insert(500, "again", 1).getVersion());
+        store.close();
+    }
+
+    @Test
+    void recoversAfterUncleanShutdown() throws IOException {
+        ProductStore store = open();
+        for (int productId = 1; productId <= 20; productId++) {
+            store.insert(productId, "product " + productId, productId);
+        }
+        for (int productId = 1; productId <= 5; productId++) {
+            store.delete(productId);
+        }
+        ByteBuffer header = readHeader();
+
+        // Reuses the five freed slots, then takes new ones
+        for (int productId = 21; productId <= 60; productId++) {
+            store.insert(productId, "product " + productId, productId);
+        }
+        store.update(30, "updated", 30);
+        long lastVersion = store.find(30).getVersion();
+
+        // The header page was not written back, the index was never closed
+        writeHeader(header);
+        store = open();
+
+        assertEquals(55, store.size());
+        for (int productId = 6; productId <= 60; productId++) {
+            assertNotNull(store.find(productId));
+        }
+        for (int productId = 61; productId <= 100; productId++) {
+            assertTrue(store.insert(productId, "product " + productId, productId).getVersion() > lastVersion);
+        }
+        for (int productId = 6; productId <= 100; productId++) {
+            ProductEntity product = store.find(productId);
+            assertEquals(productId == 30 ? "updated" : "product " + productId, product.getName());
+        }
+        assertEquals(95, store.size());
+        store.close();
+    }
+
+    private ProductStore open() throws IOException {
+        return new ProductStore(directory, 16, false);
+    }
+
+    private ByteBuffer readHeader() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("products.dat"), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(ProductStore.RECORD_SIZE);
+            channel.read(header, 0);
+            return header.flip();
+        }
+    }
+
+    private void writeHeader(ByteBuffer header) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("products.dat"), StandardOpenOption.WRITE)) {
+            channel.write(header, 0);
+        }
+    }
+}
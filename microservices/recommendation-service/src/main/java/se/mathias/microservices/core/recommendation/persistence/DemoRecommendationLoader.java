@@ -0,0 +1,49 @@
+package se.mathias.microservices.core.recommendation.persistence;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Fills the {@link RecommendationIndex} with three recommendations for each of the first
+ * app.recommendations.demo-products products. productId 113 gets no recommendations, so that there is a
+ * known product without recommendations.
+ */
+@Component
+class DemoRecommendationLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DemoRecommendationLoader.class);
+
+    private static final int PRODUCT_ID_WITHOUT_RECOMMENDATIONS = 113;
+
+    private final RecommendationIndex index;
+    private final int demoProducts;
+
+    @Autowired
+    DemoRecommendationLoader(RecommendationIndex index,
+                             @Value("${app.recommendations.demo-products:0}") int demoProducts) {
+        this.index = index;
+        this.demoProducts = demoProducts;
+    }
+
+    @PostConstruct
+    void load() {
+        if (demoProducts <= 0 || index.products() > 0) {
+            return;
+        }
+
+        for (int productId = 1; productId <= demoProducts; productId++) {
+            if (productId == PRODUCT_ID_WITHOUT_RECOMMENDATIONS) {
+                continue;
+            }
+            for (int recommendationId = 1; recommendationId <= 3; recommendationId++) {
+                index.insert(productId, recommendationId, "Author " + recommendationId, recommendationId,
+                        "Content " + recommendationId);
+            }
+        }
+        LOG.info("Loaded demo recommendations for {} products", index.products());
+    }
+}
@@ -0,0 +1,137 @@
+package se.mathias.microservices.core.recommendation.persistence;
+
+import java.util.Arrays;
+import se.mathias.util.http.EntityTags;
+
+/**
+ * The recommendations of one product, sorted by rate, highest first, and by recommendationId for equal
+ * rates. Immutable; changes create a new instance, so readers never see a half applied update.
+ * <p>
+ * Rate and recommendationId are packed into one long per recommendation, such that ascending order of the
+ * longs is the order above: the negated rate in the high bits and the recommendationId, which is positive,
+ * in the low 31 bits. The top N are the first N entries.
+ * <p>
+ * The content hash is the sum of the hashes of the recommendations, see {@link EntityTags}, kept up to date by
+ * every change, so it is the same for the same recommendations whatever the order they were written in.
+ */
+public final class ProductRecommendations {
+
+    static final ProductRecommendations EMPTY = new ProductRecommendations(new long[0], new String[0], new String[0], 0);
+
+    private static final long ID_MASK = 0x7FFFFFFFL;
+
+    private final long[] keys;
+    private final String[] authors;
+    private final String[] contents;
+    private final long contentHash;
+
+    private ProductRecommendations(long[] keys, String[] authors, String[] contents, long contentHash) {
+        this.keys = keys;
+        this.authors = authors;
+        this.contents = contents;
+        this.contentHash = contentHash;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public int recommendationIdAt(int index) {
+        return (int) (keys[index] & ID_MASK);
+    }
+
+    public int rateAt(int index) {
+        return (int) -(keys[index] >> 31);
+    }
+
+    public String authorAt(int index) {
+        return authors[index];
+    }
+
+    public String contentAt(int index) {
+        return contents[index];
+    }
+
+    /**
+     * Returns the hash of the recommendations of the product, for their entity tag.
+     */
+    public long contentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Returns the index of the first recommendation that sorts after the given one, which doesn't need to
+     * exist anymore. This is where the page after a recommendation starts.
+     */
+    public int indexAfter(int rate, int recommendationId) {
+        int index = Arrays.binarySearch(keys, key(rate, recommendationId));
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    int indexOf(int recommendationId) {
+        for (int i = 0; i < keys.length; i++) {
+            if ((keys[i] & ID_MASK) == recommendationId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy with the recommendation added, or replaced if there already is one with the same id.
+     */
+    ProductRecommendations with(int recommendationId, String author, int rate, String content) {
+        ProductRecommendations base = without(recommendationId);
+        long key = key(rate, recommendationId);
+        int index = -Arrays.binarySearch(base.keys, key) - 1;
+        int size = base.keys.length;
+
+        long[] newKeys = new long[size + 1];
+        String[] newAuthors = new String[size + 1];
+        String[] newContents = new String[size + 1];
+        System.arraycopy(base.keys, 0, newKeys, 0, index);
+        System.arraycopy(base.authors, 0, newAuthors, 0, index);
+        System.arraycopy(base.contents, 0, newContents, 0, index);
+        System.arraycopy(base.keys, index, newKeys, index + 1, size - index);
+        System.arraycopy(base.authors, index, newAuthors, index + 1, size - index);
+        System.arraycopy(base.contents, index, newContents, index + 1, size - index);
+        newKeys[index] = key;
+        newAuthors[index] = author;
+        newContents[index] = content;
+        return new ProductRecommendations(newKeys, newAuthors, newContents,
+                base.contentHash + hash(recommendationId, author, rate, content));
+    }
+
+    /**
+     * Returns a copy without the recommendation, or this instance if there is none with the id.
+     */
+    ProductRecommendations without(int recommendationId) {
+        int index = indexOf(recommendationId);
+        if (index < 0) {
+            return this;
+        }
+        int size = keys.length;
+        long[] newKeys = new long[size - 1];
+        String[] newAuthors = new String[size - 1];
+        String[] newContents = new String[size - 1];
+        System.arraycopy(keys, 0, newKeys, 0, index);
+        System.arraycopy(authors, 0, newAuthors, 0, index);
+        System.arraycopy(contents, 0, newContents, 0, index);
+        System.arraycopy(keys, index + 1, newKeys, index, size - index - 1);
+        System.arraycopy(authors, index + 1, newAuthors, index, size - index - 1);
+        System.arraycopy(contents, index + 1, newContents, index, size - index - 1);
+        return new ProductRecommendations(newKeys, newAuthors, newContents,
+                contentHash - hash(recommendationId, authors[index], rateAt(index), contents[index]));
+    }
+
+    private static long hash(int recommendationId, String author, int rate, String content) {
+        long hash = EntityTags.hash(EntityTags.NO_CONTENT, recommendationId);
+        hash = EntityTags.hash(hash, author);
+        hash = EntityTags.hash(hash, rate);
+        return EntityTags.hash(hash, content);
+    }
+
+    private static long key(int rate, int recommendationId) {
+        return (-(long) rate << 31) | (recommendationId & ID_MASK);
+    }
+}
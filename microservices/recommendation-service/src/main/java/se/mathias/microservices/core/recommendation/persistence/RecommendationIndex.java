@@ -0,0 +1,204 @@
+package se.mathias.microservices.core.recommendation.persistence;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import org.springframework.stereotype.Component;
+
+/**
+ * The recommendations of all products, keyed by productId, ready to be served without sorting or boxing.
+ * <p>
+ * The index is an open addressing hash table over a primitive int array of productIds and an array of
+ * {@link ProductRecommendations}, which hold primitive arrays sorted by rate. A top N request is a lookup
+ * and a slice of the first N entries.
+ * <p>
+ * Readers never block. There is one writer at a time, and it never changes the recommendations of a product
+ * in place: it publishes a new {@link ProductRecommendations} with a release store, and a new table through
+ * a volatile field when the table grows. A slot that has been given a productId keeps it until the table is
+ * rebuilt, so a reader probing concurrently with an insert can't skip over its product.
+ * <p>
+ * Heap usage, with compressed oops: 16 bytes per recommendation in the arrays (the packed rate and id, and
+ * references to author and content), plus the author and content strings themselves, about 40 bytes plus
+ * one byte per Latin-1 character each. That is 16 MB per million recommendations for the index structure,
+ * and around 200 MB per million with 10 character authors and 100 character contents. Each product adds
+ * about 100 bytes for its arrays and 16 to 32 bytes of table.
+ */
+@Component
+public class RecommendationIndex {
+
+    private static final VarHandle PRODUCT_IDS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(ProductRecommendations[].class);
+
+    private static final int EMPTY = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    private int products;
+
+    /**
+     * Returns the recommendations of a product, or null if it has none.
+     */
+    public ProductRecommendations get(int productId) {
+        Table current = table;
+        int index = hash(productId) & current.mask;
+        for (int probes = 0; probes <= current.mask; probes++) {
+            int key = (int) PRODUCT_IDS.getAcquire(current.productIds, index);
+            if (key == productId) {
+                return (ProductRecommendations) VALUES.getAcquire(current.values, index);
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & current.mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a recommendation.
+     *
+     * @return false if the product already has a recommendation with this id
+     */
+    public synchronized boolean insert(int productId, int recommendationId, String author, int rate, String content) {
+        ProductRecommendations current = getOrEmpty(productId);
+        if (current.indexOf(recommendationId) >= 0) {
+            return false;
+        }
+        publish(productId, current.with(recommendationId, author, rate, content));
+        return true;
+    }
+
+    /**
+     * Replaces a recommendation, moving it to its new place in rate order.
+     *
+     * @return false if there is no such recommendation
+     */
+    public synchronized boolean update(int productId, int recommendationId, String author, int rate, String content) {
+        ProductRecommendations current = getOrEmpty(productId);
+        if (current.indexOf(recommendationId) < 0) {
+            return false;
+        }
+        publish(productId, current.with(recommendationId, author, rate, content));
+        return true;
+    }
+
+    /**
+     * Removes a recommendation.
+     *
+     * @return false if there was no such recommendation
+     */
+    public synchronized boolean delete(int productId, int recommendationId) {
+        ProductRecommendations current = getOrEmpty(productId);
+        if (current.indexOf(recommendationId) < 0) {
+            return false;
+        }
+        ProductRecommendations updated = current.without(recommendationId);
+        publish(productId, updated.size() == 0 ? null : updated);
+        return true;
+    }
+
+    /**
+     * Removes all recommendations of a product.
+     *
+     * @return the number of removed recommendations
+     */
+    public synchronized int deleteAll(int productId) {
+        ProductRecommendations current = getOrEmpty(productId);
+        if (current.size() > 0) {
+            publish(productId, null);
+        }
+        return current.size();
+    }
+
+    /**
+     * Returns the number of products with recommendations.
+     */
+    public synchronized int products() {
+        return products;
+    }
+
+    private ProductRecommendations getOrEmpty(int productId) {
+        ProductRecommendations current = get(productId);
+        return current == null ? ProductRecommendations.EMPTY : current;
+    }
+
+    /**
+     * Stores the recommendations of a product, null removes them. The value is stored before the productId,
+     * both with release semantics, so a reader that finds the productId also sees the value.
+     */
+    private void publish(int productId, ProductRecommendations value) {
+        Table current = table;
+        int index = hash(productId) & current.mask;
+        while (true) {
+            int key = current.productIds[index];
+            if (key == productId) {
+                ProductRecommendations previous = current.values[index];
+                VALUES.setRelease(current.values, index, value);
+                products += (value != null ? 1 : 0) - (previous != null ? 1 : 0);
+                return;
+            }
+            if (key == EMPTY) {
+                break;
+            }
+            index = (index + 1) & current.mask;
+        }
+
+        if (value == null) {
+            return;
+        }
+        if ((current.used + 1) * 2 > current.mask + 1) {
+            table = rebuild(current);
+            publish(productId, value);
+            return;
+        }
+        VALUES.setRelease(current.values, index, value);
+        PRODUCT_IDS.setRelease(current.productIds, index, productId);
+        current.used++;
+        products++;
+    }
+
+    /**
+     * Copies the products that still have recommendations into a new table that is at most a quarter full,
+     * dropping the slots of products whose recommendations were all deleted.
+     */
+    private Table rebuild(Table current) {
+        int capacity = INITIAL_CAPACITY;
+        while ((long) (products + 1) * 4 > capacity) {
+            capacity *= 2;
+        }
+
+        Table rebuilt = new Table(capacity);
+        for (int i = 0; i <= current.mask; i++) {
+            ProductRecommendations value = current.values[i];
+            if (value != null) {
+                int index = hash(current.productIds[i]) & rebuilt.mask;
+                while (rebuilt.productIds[index] != EMPTY) {
+                    index = (index + 1) & rebuilt.mask;
+                }
+                rebuilt.productIds[index] = current.productIds[i];
+                rebuilt.values[index] = value;
+                rebuilt.used++;
+            }
+        }
+        return rebuilt;
+    }
+
+    private static int hash(int productId) {
+        int h = productId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table {
+
+        final int[] productIds;
+        final ProductRecommendations[] values;
+        final int mask;
+        int used;
+
+        Table(int capacity) {
+            this.productIds = new int[capacity];
+            this.values = new ProductRecommendations[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+}
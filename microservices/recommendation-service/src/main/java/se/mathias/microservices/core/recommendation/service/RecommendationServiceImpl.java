@@ -3,17 +3,35 @@ package se.mathias.microservices.core.recommendation.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.mathias.api.core.PageCursor;
 import se.mathias.api.core.recommendation.Recommendation;
 import se.mathias.api.core.recommendation.RecommendationService;
+import se.mathias.api.event.ChangeEvent;
 import se.mathias.api.exceptions.InvalidInputException;
+import se.mathias.api.exceptions.NotFoundException;
+import se.mathias.microservices.core.recommendation.persistence.ProductRecommendations;
+import se.mathias.microservices.core.recommendation.persistence.RecommendationIndex;
+import se.mathias.util.event.ChangeEventBroker;
+import se.mathias.util.http.EntityTags;
 import se.mathias.util.http.ServiceUtil;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * The type Recommendation service.
+ * <p>
+ * Recommendations are served from the {@link RecommendationIndex}, where they are already sorted by rate,
+ * so a request with a limit only converts that many of them, and the page after a cursor is found with a
+ * binary search. The index is in memory and never blocks readers, so all calls run on the event loop.
+ * Every write is published as a {@link ChangeEvent}.
+ * <p>
+ * The ETag of a page is made from the content hash of the snapshot of the product's recommendations that the
+ * page is converted from, so a conditional get that matches converts nothing, and every replica with the same
+ * recommendations gives the same tag.
  */
 @RestController
 public class RecommendationServiceImpl implements RecommendationService {
@@ -23,34 +41,162 @@ public class RecommendationServiceImpl implements RecommendationService {
 
     private final ServiceUtil serviceUtil;
 
+    private final RecommendationIndex index;
+
+    private final ChangeEventBroker events;
+
     /**
      * Instantiates a new Recommendation service.
      *
      * @param serviceUtil the service util
+     * @param index       the recommendation index
+     * @param events      the broker that changes are published to
      */
     @Autowired
-    public RecommendationServiceImpl(ServiceUtil serviceUtil) {
+    public RecommendationServiceImpl(ServiceUtil serviceUtil, RecommendationIndex index, ChangeEventBroker events) {
         this.serviceUtil = serviceUtil;
+        this.index = index;
+        this.events = events;
     }
 
     @Override
-    public List<Recommendation> getRecommendations(int productId) {
+    public Mono<ResponseEntity<Flux<Recommendation>>> getRecommendations(int productId, Integer limit, String cursor,
+                                                                         String ifNoneMatch) {
         if (productId < 1) {
-            throw new InvalidInputException("Invalid productId: " + productId);
+            return Mono.error(new InvalidInputException("Invalid productId: " + productId));
+        }
+        if (limit != null && limit < 1) {
+            return Mono.error(new InvalidInputException("Invalid limit: " + limit));
+        }
+
+        int[] after;
+        try {
+            after = cursor == null ? null : PageCursor.parse(cursor, 2);
+        } catch (InvalidInputException ex) {
+            return Mono.error(ex);
+        }
+
+        // Tag and page come from the same snapshot, a concurrent write can't slip in between
+        ProductRecommendations recommendations = index.get(productId);
+        String tag = EntityTags.of(recommendations == null ? 0 : recommendations.contentHash());
+        return Mono.just(EntityTags.response(tag, ifNoneMatch,
+                () -> recommendationsOf(productId, recommendations, after, limit == null ? Integer.MAX_VALUE : limit)));
+    }
+
+    @Override
+    public Flux<Recommendation> getRecommendationsByProducts(List<Integer> productIds, Integer limit) {
+        if (productIds.isEmpty()) {
+            return Flux.error(new InvalidInputException("No productIds given"));
+        }
+        if (limit != null && limit < 1) {
+            return Flux.error(new InvalidInputException("Invalid limit: " + limit));
         }
 
-        if (productId == 113) {
+        // Validate all ids up front, an error can't be reported once the first recommendations are written
+        for (int productId : productIds) {
+            if (productId < 1) {
+                return Flux.error(new InvalidInputException("Invalid productId: " + productId));
+            }
+        }
+
+        int perProduct = limit == null ? Integer.MAX_VALUE : limit;
+        return Flux.fromIterable(productIds)
+                .concatMap(productId -> recommendationsOf(productId, index.get(productId), null, perProduct));
+    }
+
+    @Override
+    public Mono<Recommendation> createRecommendation(Recommendation body) {
+        LOG.debug("/recommendation create a recommendation with productId={}, recommendationId={}",
+                body.getProductId(), body.getRecommendationId());
+
+        InvalidInputException invalid = validate(body);
+        if (invalid != null) {
+            return Mono.error(invalid);
+        }
+        if (!index.insert(body.getProductId(), body.getRecommendationId(), body.getAuthor(), body.getRate(), body.getContent())) {
+            return Mono.error(new InvalidInputException("Duplicate key, productId: " + body.getProductId()
+                    + ", recommendationId: " + body.getRecommendationId()));
+        }
+        publish(ChangeEvent.Action.CREATED, body.getProductId(), body.getRecommendationId());
+        return Mono.just(withServiceAddress(body));
+    }
+
+    @Override
+    public Mono<Recommendation> updateRecommendation(Recommendation body) {
+        LOG.debug("/recommendation update the recommendation with productId={}, recommendationId={}",
+                body.getProductId(), body.getRecommendationId());
+
+        InvalidInputException invalid = validate(body);
+        if (invalid != null) {
+            return Mono.error(invalid);
+        }
+        if (!index.update(body.getProductId(), body.getRecommendationId(), body.getAuthor(), body.getRate(), body.getContent())) {
+            return Mono.error(new NotFoundException("No recommendation found for productId: " + body.getProductId()
+                    + ", recommendationId: " + body.getRecommendationId()));
+        }
+        publish(ChangeEvent.Action.UPDATED, body.getProductId(), body.getRecommendationId());
+        return Mono.just(withServiceAddress(body));
+    }
+
+    @Override
+    public Mono<Void> deleteRecommendations(int productId, Integer recommendationId) {
+        LOG.debug("/recommendation delete the recommendations with productId={}, recommendationId={}",
+                productId, recommendationId);
+
+        if (productId < 1) {
+            return Mono.error(new InvalidInputException("Invalid productId: " + productId));
+        }
+
+        if (recommendationId == null) {
+            index.deleteAll(productId);
+        } else {
+            index.delete(productId, recommendationId);
+        }
+        publish(ChangeEvent.Action.DELETED, productId, recommendationId);
+        return Mono.empty();
+    }
+
+    private void publish(ChangeEvent.Action action, int productId, Integer recommendationId) {
+        events.publish(new ChangeEvent(ChangeEvent.Type.RECOMMENDATION, action, productId, recommendationId));
+    }
+
+    /**
+     * Converts a page of the recommendations of a product.
+     *
+     * @param recommendations the recommendations of the product, or null if it has none
+     * @param after the rate and recommendationId to start after, or null to start with the first one
+     */
+    private Flux<Recommendation> recommendationsOf(int productId, ProductRecommendations recommendations, int[] after,
+                                                   int limit) {
+        if (recommendations == null) {
             LOG.debug("No recommendations found for productId: {}", productId);
-            return new ArrayList<>();
+            return Flux.empty();
         }
 
-        List<Recommendation> list = new ArrayList<>();
-        list.add(new Recommendation(productId, 1, "Author 1", 1, "Content 1", serviceUtil.getServiceAddress()));
-        list.add(new Recommendation(productId, 2, "Author 2", 2, "Content 2", serviceUtil.getServiceAddress()));
-        list.add(new Recommendation(productId, 3, "Author 3", 3, "Content 3", serviceUtil.getServiceAddress()));
+        String serviceAddress = serviceUtil.getServiceAddress();
+        int from = after == null ? 0 : recommendations.indexAfter(after[0], after[1]);
+        Recommendation[] page = new Recommendation[Math.min(limit, recommendations.size() - from)];
+        for (int i = 0; i < page.length; i++) {
+            int index = from + i;
+            page[i] = new Recommendation(productId, recommendations.recommendationIdAt(index),
+                    recommendations.authorAt(index), recommendations.rateAt(index), recommendations.contentAt(index),
+                    serviceAddress);
+        }
+        return Flux.fromArray(page);
+    }
 
-        LOG.debug("/recommendation response size: {}", list.size());
+    private static InvalidInputException validate(Recommendation body) {
+        if (body.getProductId() < 1) {
+            return new InvalidInputException("Invalid productId: " + body.getProductId());
+        }
+        if (body.getRecommendationId() < 1) {
+            return new InvalidInputException("Invalid recommendationId: " + body.getRecommendationId());
+        }
+        return null;
+    }
 
-        return list;
+    private Recommendation withServiceAddress(Recommendation body) {
+        return new Recommendation(body.getProductId(), body.getRecommendationId(), body.getAuthor(), body.getRate(),
+                body.getContent(), serviceUtil.getServiceAddress());
     }
 }
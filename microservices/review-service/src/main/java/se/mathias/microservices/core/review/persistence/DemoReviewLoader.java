@@ -0,0 +1,46 @@
+package se.mathias.microservices.core.review.persistence;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Fills an empty {@link ReviewLog} with three reviews for each of the first app.reviews.demo-products
+ * products. productId 213 gets no reviews, so that there is a known product without reviews.
+ */
+@Component
+class DemoReviewLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DemoReviewLoader.class);
+
+    private static final int PRODUCT_ID_WITHOUT_REVIEWS = 213;
+
+    private final ReviewLog log;
+    private final int demoProducts;
+
+    @Autowired
+    DemoReviewLoader(ReviewLog log, @Value("${app.reviews.demo-products:0}") int demoProducts) {
+        this.log = log;
+        this.demoProducts = demoProducts;
+    }
+
+    @PostConstruct
+    void load() {
+        if (demoProducts <= 0 || !log.isEmpty()) {
+            return;
+        }
+
+        for (int productId = 1; productId <= demoProducts; productId++) {
+            if (productId == PRODUCT_ID_WITHOUT_REVIEWS) {
+                continue;
+            }
+            for (int reviewId = 1; reviewId <= 3; reviewId++) {
+                log.insert(productId, reviewId, "Author " + reviewId, "Subject " + reviewId, "Content " + reviewId);
+            }
+        }
+        LOG.info("Loaded demo reviews for {} products", demoProducts);
+    }
+}
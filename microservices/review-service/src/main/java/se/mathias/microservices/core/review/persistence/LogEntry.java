@@ -0,0 +1,174 @@
+package se.mathias.microservices.core.review.persistence;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import se.mathias.util.http.EntityTags;
+
+/**
+ * Encoding of the entries of the review log, and of their locations.
+ * <p>
+ * An entry is the total length of the entry, a CRC32C of everything after it, the sequence number, the
+ * type, the productId and the reviewId. Review entries then hold the author, subject and content, each as a
+ * length and UTF-8 bytes; a length of -1 means null. Delete entries end after the reviewId.
+ * <p>
+ * A location packs the segment id, the offset in the segment and the length of an entry into one long, so
+ * that the locations of all reviews of a product fit in one array and sort in log order.
+ */
+final class LogEntry {
+
+    static final byte REVIEW = 1;
+    static final byte DELETE = 2;
+
+    static final int HEADER_SIZE = 25;
+    static final int MAX_SIZE = 0xFFFF;
+
+    static final int MAX_SEGMENT_ID = (1 << 21) - 1;
+    static final int MAX_SEGMENT_SIZE = 1 << 26;
+
+    private static final int LENGTH = 0;
+    private static final int CRC = 4;
+    private static final int SEQUENCE = 8;
+    private static final int TYPE = 16;
+    private static final int PRODUCT_ID = 17;
+    private static final int REVIEW_ID = 21;
+
+    private LogEntry() {
+    }
+
+    static ByteBuffer review(long sequence, int productId, int reviewId, String author, String subject, String content) {
+        byte[] authorBytes = bytes(author);
+        byte[] subjectBytes = bytes(subject);
+        byte[] contentBytes = bytes(content);
+        int length = HEADER_SIZE + size(authorBytes) + size(subjectBytes) + size(contentBytes);
+        if (length > MAX_SIZE) {
+            throw new IllegalArgumentException("Review too large, " + length + " bytes, at most " + MAX_SIZE + " allowed");
+        }
+
+        ByteBuffer entry = header(length, sequence, REVIEW, productId, reviewId);
+        putString(entry, authorBytes);
+        putString(entry, subjectBytes);
+        putString(entry, contentBytes);
+        return seal(entry);
+    }
+
+    static ByteBuffer delete(long sequence, int productId, int reviewId) {
+        return seal(header(HEADER_SIZE, sequence, DELETE, productId, reviewId));
+    }
+
+    /**
+     * Returns the length of the valid entry at the position of the buffer, or -1 if there is no complete entry
+     * with a matching checksum there.
+     */
+    static int validLength(ByteBuffer buffer, int position) {
+        if (buffer.limit() - position < HEADER_SIZE) {
+            return -1;
+        }
+        int length = buffer.getInt(position + LENGTH);
+        if (length < HEADER_SIZE || length > MAX_SIZE || length > buffer.limit() - position) {
+            return -1;
+        }
+        return buffer.getInt(position + CRC) == crc(buffer, position, length) ? length : -1;
+    }
+
+    static long sequence(ByteBuffer buffer, int position) {
+        return buffer.getLong(position + SEQUENCE);
+    }
+
+    static byte type(ByteBuffer buffer, int position) {
+        return buffer.get(position + TYPE);
+    }
+
+    static int productId(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + PRODUCT_ID);
+    }
+
+    static int reviewId(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + REVIEW_ID);
+    }
+
+    /**
+     * Returns the content hash of the review entry at the position of the buffer, see {@link EntityTags}: the
+     * hash of its reviewId and fields, but not of its sequence number, so that the same review hashes the same
+     * in every log.
+     */
+    static long contentHash(ByteBuffer buffer, int position) {
+        int end = position + buffer.getInt(position + LENGTH);
+        ByteBuffer fields = buffer.duplicate().position(position + HEADER_SIZE).limit(end);
+        return EntityTags.hash(EntityTags.hash(EntityTags.NO_CONTENT, reviewId(buffer, position)), fields);
+    }
+
+    static ReviewEntity decode(ByteBuffer buffer, int position) {
+        ByteBuffer fields = buffer.duplicate().position(position + HEADER_SIZE);
+        String author = getString(fields);
+        String subject = getString(fields);
+        String content = getString(fields);
+        return new ReviewEntity(productId(buffer, position), reviewId(buffer, position), author, subject, content,
+                sequence(buffer, position));
+    }
+
+    static long location(int segmentId, int offset, int length) {
+        return ((long) segmentId << 42) | ((long) offset << 16) | length;
+    }
+
+    static int segmentId(long location) {
+        return (int) (location >>> 42);
+    }
+
+    static int offset(long location) {
+        return (int) (location >>> 16) & (MAX_SEGMENT_SIZE - 1);
+    }
+
+    static int length(long location) {
+        return (int) location & 0xFFFF;
+    }
+
+    private static ByteBuffer header(int length, long sequence, byte type, int productId, int reviewId) {
+        return ByteBuffer.allocate(length)
+                .putInt(length)
+                .putInt(0)
+                .putLong(sequence)
+                .put(type)
+                .putInt(productId)
+                .putInt(reviewId);
+    }
+
+    private static ByteBuffer seal(ByteBuffer entry) {
+        entry.flip();
+        entry.putInt(CRC, crc(entry, 0, entry.limit()));
+        return entry;
+    }
+
+    private static int crc(ByteBuffer buffer, int position, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(position + SEQUENCE).limit(position + length));
+        return (int) crc.getValue();
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(UTF_8);
+    }
+
+    private static int size(byte[] value) {
+        return Short.BYTES + (value == null ? 0 : value.length);
+    }
+
+    private static void putString(ByteBuffer entry, byte[] value) {
+        if (value == null) {
+            entry.putShort((short) -1);
+        } else {
+            entry.putShort((short) value.length).put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer fields) {
+        int length = Short.toUnsignedInt(fields.getShort());
+        if (length == 0xFFFF) {
+            return null;
+        }
+        String value = new String(fields.array(), fields.arrayOffset() + fields.position(), length, UTF_8);
+        fields.position(fields.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,51 @@
+package se.mathias.microservices.core.review.persistence;
+
+/**
+ * A review as stored in the {@link ReviewLog}.
+ */
+public final class ReviewEntity {
+
+    private final int productId;
+    private final int reviewId;
+    private final String author;
+    private final String subject;
+    private final String content;
+    private final long sequence;
+
+    ReviewEntity(int productId, int reviewId, String author, String subject, String content, long sequence) {
+        this.productId = productId;
+        this.reviewId = reviewId;
+        this.author = author;
+        this.subject = subject;
+        this.content = content;
+        this.sequence = sequence;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public int getReviewId() {
+        return reviewId;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Sequence number of the write that stored this version of the review, increases with every write to
+     * the log.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
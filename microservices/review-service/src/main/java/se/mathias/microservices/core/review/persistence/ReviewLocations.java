@@ -0,0 +1,134 @@
+package se.mathias.microservices.core.review.persistence;
+
+import java.util.Arrays;
+
+/**
+ * Where the reviews of one product are in the log: parallel arrays of reviewId, {@link LogEntry location},
+ * sequence number and {@link LogEntry#contentHash content hash}, sorted by reviewId. Reviews are mostly added
+ * with increasing ids, which appends to the arrays. The content hash of the reviews is the sum of theirs.
+ * <p>
+ * Not thread safe, {@link ReviewLog} guards it with its lock.
+ */
+final class ReviewLocations {
+
+    static final long NONE = -1;
+
+    private int[] reviewIds = new int[4];
+    private long[] locations = new long[4];
+    private long[] sequences = new long[4];
+    private long[] hashes = new long[4];
+    private int size;
+    private long contentHash;
+
+    int size() {
+        return size;
+    }
+
+    long contentHash() {
+        return contentHash;
+    }
+
+    int reviewIdAt(int index) {
+        return reviewIds[index];
+    }
+
+    long locationAt(int index) {
+        return locations[index];
+    }
+
+    long sequenceAt(int index) {
+        return sequences[index];
+    }
+
+    long location(int reviewId) {
+        int index = Arrays.binarySearch(reviewIds, 0, size, reviewId);
+        return index >= 0 ? locations[index] : NONE;
+    }
+
+    long sequence(int reviewId) {
+        int index = Arrays.binarySearch(reviewIds, 0, size, reviewId);
+        return index >= 0 ? sequences[index] : NONE;
+    }
+
+    /**
+     * Adds or replaces the location of a review.
+     *
+     * @param hash the content hash of the review
+     * @return the previous location, or {@link #NONE}
+     */
+    long put(int reviewId, long location, long sequence, long hash) {
+        contentHash += hash;
+        int index = Arrays.binarySearch(reviewIds, 0, size, reviewId);
+        if (index >= 0) {
+            long previous = locations[index];
+            contentHash -= hashes[index];
+            locations[index] = location;
+            sequences[index] = sequence;
+            hashes[index] = hash;
+            return previous;
+        }
+
+        index = -index - 1;
+        if (size == reviewIds.length) {
+            int capacity = size * 2;
+            reviewIds = Arrays.copyOf(reviewIds, capacity);
+            locations = Arrays.copyOf(locations, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        System.arraycopy(reviewIds, index, reviewIds, index + 1, size - index);
+        System.arraycopy(locations, index, locations, index + 1, size - index);
+        System.arraycopy(sequences, index, sequences, index + 1, size - index);
+        System.arraycopy(hashes, index, hashes, index + 1, size - index);
+        reviewIds[index] = reviewId;
+        locations[index] = location;
+        sequences[index] = sequence;
+        hashes[index] = hash;
+        size++;
+        return NONE;
+    }
+
+    /**
+     * Moves a review to a new location, unless it was written again since the move started.
+     */
+    boolean replace(int reviewId, long expected, long location) {
+        int index = Arrays.binarySearch(reviewIds, 0, size, reviewId);
+        if (index < 0 || locations[index] != expected) {
+            return false;
+        }
+        locations[index] = location;
+        return true;
+    }
+
+    /**
+     * Removes a review.
+     *
+     * @return its location, or {@link #NONE}
+     */
+    long remove(int reviewId) {
+        int index = Arrays.binarySearch(reviewIds, 0, size, reviewId);
+        if (index < 0) {
+            return NONE;
+        }
+        long previous = locations[index];
+        contentHash -= hashes[index];
+        System.arraycopy(reviewIds, index + 1, reviewIds, index, size - index - 1);
+        System.arraycopy(locations, index + 1, locations, index, size - index - 1);
+        System.arraycopy(sequences, index + 1, sequences, index, size - index - 1);
+        System.arraycopy(hashes, index + 1, hashes, index, size - index - 1);
+        size--;
+        return previous;
+    }
+
+    /**
+     * Returns the locations of the reviews with an id above {@code reviewId}, in reviewId order.
+     *
+     * @param limit the maximum number of locations to return
+     */
+    long[] locationsAfter(int reviewId, int limit) {
+        int index = Arrays.binarySearch(reviewIds, 0, size, reviewId);
+        int from = index >= 0 ? index + 1 : -index - 1;
+        int to = from + Math.min(limit, size - from);
+        return Arrays.copyOfRange(locations, from, to);
+    }
+}
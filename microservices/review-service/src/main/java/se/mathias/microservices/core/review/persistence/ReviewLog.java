@@ -0,0 +1,645 @@
+package se.mathias.microservices.core.review.persistence;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * The reviews, stored in an append-only log split into segment files, with an in-memory index from productId
+ * to the locations of the reviews of the product.
+ * <p>
+ * Every write appends a {@link LogEntry}: creating or updating a review appends the review, deleting it
+ * appends a delete entry. Entries carry a sequence number and a checksum. On start the index is recovered by
+ * reading all segments; the entry with the highest sequence number wins, and a torn or corrupt tail of a
+ * segment is cut off. New writes go to a new segment.
+ * <p>
+ * A background compaction merges all sealed segments into new ones, keeping only the entries the index
+ * still points at, ordered by productId and reviewId. It runs once enough of the sealed data is garbage, or
+ * once there are enough sealed segments that the reviews of a product are spread over too many of them.
+ * After compaction the reviews of a product are adjacent and in reviewId order, so
+ * {@link #find(int, int, int)} reads a page of them with a single read, and it merges reads of nearby entries
+ * otherwise.
+ */
+@Component
+public class ReviewLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReviewLog.class);
+
+    private static final String PREFIX = "reviews-";
+    private static final String SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".log.compacting";
+
+    private static final int MAX_READ_GAP = 16 * 1024;
+    private static final int MAX_READ_SIZE = 1024 * 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean syncWrites;
+    private final double compactionMinGarbageRatio;
+    private final int compactionMaxSegments;
+
+    private final Map<Integer, ReviewLocations> byProduct = new HashMap<>();
+    private final AtomicInteger nextSegmentId = new AtomicInteger(1);
+    private final ScheduledExecutorService compactor;
+
+    private volatile Map<Integer, Segment> segments = Map.of();
+    private Segment active;
+    private long nextSequence = 1;
+
+    @Autowired
+    public ReviewLog(
+        @Value("${app.reviews.directory}") Path directory,
+        @Value("${app.reviews.segment-size}") DataSize segmentSize,
+        @Value("${app.reviews.sync-writes}") boolean syncWrites,
+        @Value("${app.reviews.compaction.interval}") Duration compactionInterval,
+        @Value("${app.reviews.compaction.min-garbage-ratio}") double compactionMinGarbageRatio,
+        @Value("${app.reviews.compaction.max-segments}") int compactionMaxSegments) throws IOException {
+
+        this.directory = directory;
+        this.segmentSize = (int) Math.min(segmentSize.toBytes(), LogEntry.MAX_SEGMENT_SIZE);
+        this.syncWrites = syncWrites;
+        this.compactionMinGarbageRatio = compactionMinGarbageRatio;
+        this.compactionMaxSegments = compactionMaxSegments;
+
+        Files.createDirectories(directory);
+        recover();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "review-log-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = compactionInterval.toMillis();
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a page of the reviews of a product in reviewId order. The reviews are read lazily, in as few
+     * reads as possible, while iterating. The segments of the page stay open until the reader is closed or
+     * has read the last review, even if compaction replaces them meanwhile, so close a reader that isn't
+     * read to the end.
+     *
+     * @param afterReviewId only reviews with a higher id are returned, 0 to start with the first one
+     * @param limit the maximum number of reviews to return
+     */
+    public ReviewReader find(int productId, int afterReviewId, int limit) {
+        long[] locations;
+        List<Segment> held = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ReviewLocations reviews = byProduct.get(productId);
+            locations = reviews == null ? new long[0] : reviews.locationsAfter(afterReviewId, limit);
+            for (int segmentId : Arrays.stream(locations).mapToInt(LogEntry::segmentId).distinct().toArray()) {
+                Segment segment = segments.get(segmentId);
+                segment.retain();
+                held.add(segment);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ReviewReader(locations, held);
+    }
+
+    /**
+     * Returns the content hash of the reviews of a product, which only depends on the reviews, not on when
+     * they were written, so it is the same after a restart and in every log with the same reviews. Read it
+     * before the reviews, so that it never claims a newer state than the one that was read.
+     *
+     * @return the sum of the content hashes of the reviews, or 0 if the product has no reviews
+     */
+    public long contentHash(int productId) {
+        lock.readLock().lock();
+        try {
+            ReviewLocations reviews = byProduct.get(productId);
+            return reviews == null ? 0 : reviews.contentHash();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a new review.
+     *
+     * @return the stored review, or null if the product already has a review with this id
+     */
+    public ReviewEntity insert(int productId, int reviewId, String author, String subject, String content) {
+        return write(productId, reviewId, author, subject, content, false);
+    }
+
+    /**
+     * Replaces the author, subject and content of a review.
+     *
+     * @return the updated review, or null if there is no such review
+     */
+    public ReviewEntity update(int productId, int reviewId, String author, String subject, String content) {
+        return write(productId, reviewId, author, subject, content, true);
+    }
+
+    /**
+     * Deletes a review.
+     *
+     * @return true if there was such a review
+     */
+    public boolean delete(int productId, int reviewId) {
+        lock.writeLock().lock();
+        try {
+            ReviewLocations reviews = byProduct.get(productId);
+            if (reviews == null || reviews.location(reviewId) == ReviewLocations.NONE) {
+                return false;
+            }
+            appendDelete(productId, reviewId, reviews);
+            return true;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to delete review", ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes all reviews of a product.
+     *
+     * @return the number of deleted reviews
+     */
+    public int deleteAll(int productId) {
+        lock.writeLock().lock();
+        try {
+            ReviewLocations reviews = byProduct.get(productId);
+            if (reviews == null) {
+                return 0;
+            }
+            int count = reviews.size();
+            while (reviews.size() > 0) {
+                appendDelete(productId, reviews.reviewIdAt(reviews.size() - 1), reviews);
+            }
+            return count;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to delete reviews", ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return byProduct.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        compactor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            active.force();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ReviewEntity write(int productId, int reviewId, String author, String subject, String content,
+                               boolean mustExist) {
+        lock.writeLock().lock();
+        try {
+            ReviewLocations reviews = byProduct.get(productId);
+            boolean exists = reviews != null && reviews.location(reviewId) != ReviewLocations.NONE;
+            if (exists != mustExist) {
+                return null;
+            }
+
+            long sequence = nextSequence;
+            ByteBuffer entry = LogEntry.review(sequence, productId, reviewId, author, subject, content);
+            long hash = LogEntry.contentHash(entry, 0);
+            long location = append(entry);
+            nextSequence++;
+            if (reviews == null) {
+                reviews = new ReviewLocations();
+                byProduct.put(productId, reviews);
+            }
+            track(reviews.put(reviewId, location, sequence, hash), location);
+            return new ReviewEntity(productId, reviewId, author, subject, content, sequence);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to write review", ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendDelete(int productId, int reviewId, ReviewLocations reviews) throws IOException {
+        long sequence = nextSequence;
+        append(LogEntry.delete(sequence, productId, reviewId));
+        nextSequence++;
+        track(reviews.remove(reviewId), ReviewLocations.NONE);
+        if (reviews.size() == 0) {
+            byProduct.remove(productId);
+        }
+    }
+
+    private long append(ByteBuffer entry) throws IOException {
+        int length = entry.remaining();
+        if (active.size() + length > segmentSize) {
+            roll();
+        }
+        int offset = active.append(entry);
+        if (syncWrites) {
+            active.force();
+        }
+        return LogEntry.location(active.id(), offset, length);
+    }
+
+    /**
+     * Keeps the live byte counts of the segments up to date when a review moves from one location to another.
+     */
+    private void track(long previous, long location) {
+        if (previous != ReviewLocations.NONE) {
+            segments.get(LogEntry.segmentId(previous)).addLive(-LogEntry.length(previous));
+        }
+        if (location != ReviewLocations.NONE) {
+            segments.get(LogEntry.segmentId(location)).addLive(LogEntry.length(location));
+        }
+    }
+
+    private void roll() throws IOException {
+        active.force();
+        int id = allocateSegmentId();
+        active = Segment.open(id, segmentPath(id, SUFFIX));
+        withSegments(List.of(active), List.of());
+    }
+
+    private void recover() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(COMPACTING_SUFFIX)) {
+                    LOG.info("Removing unfinished compaction output {}", file);
+                    Files.delete(file);
+                } else if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    int id = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                    found.add(Segment.open(id, file));
+                }
+            }
+        }
+        found.sort((a, b) -> Integer.compare(a.id(), b.id()));
+
+        Map<Long, Long> deletedAt = new HashMap<>();
+        for (Segment segment : found) {
+            replay(segment, deletedAt);
+            nextSegmentId.set(Math.max(nextSegmentId.get(), segment.id() + 1));
+        }
+
+        Map<Integer, Segment> recovered = new HashMap<>();
+        for (Segment segment : found) {
+            recovered.put(segment.id(), segment);
+        }
+        for (ReviewLocations reviews : byProduct.values()) {
+            for (int i = 0; i < reviews.size(); i++) {
+                long location = reviews.locationAt(i);
+                recovered.get(LogEntry.segmentId(location)).addLive(LogEntry.length(location));
+            }
+        }
+        byProduct.values().removeIf(reviews -> reviews.size() == 0);
+
+        int id = allocateSegmentId();
+        active = Segment.open(id, segmentPath(id, SUFFIX));
+        recovered.put(active.id(), active);
+        segments = Map.copyOf(recovered);
+        LOG.info("Recovered review log in {} with {} segments, reviews for {} products", directory, found.size(),
+                byProduct.size());
+    }
+
+    /**
+     * Applies the entries of a segment to the index. Segments may be replayed in any order, since compaction
+     * writes old entries to new segments: a review is only replaced by an entry with a higher sequence number,
+     * and deletes are remembered so that an older copy of the review read later doesn't bring it back.
+     */
+    private void replay(Segment segment, Map<Long, Long> deletedAt) throws IOException {
+        ByteBuffer buffer = map(segment);
+        int position = 0;
+        int length;
+        while ((length = LogEntry.validLength(buffer, position)) > 0) {
+            long sequence = LogEntry.sequence(buffer, position);
+            int productId = LogEntry.productId(buffer, position);
+            int reviewId = LogEntry.reviewId(buffer, position);
+            long key = ((long) productId << 32) | (reviewId & 0xFFFFFFFFL);
+            ReviewLocations reviews = byProduct.computeIfAbsent(productId, id -> new ReviewLocations());
+
+            if (LogEntry.type(buffer, position) == LogEntry.DELETE) {
+                deletedAt.merge(key, sequence, Math::max);
+                if (reviews.sequence(reviewId) < sequence) {
+                    reviews.remove(reviewId);
+                }
+            } else if (deletedAt.getOrDefault(key, 0L) < sequence && reviews.sequence(reviewId) < sequence) {
+                reviews.put(reviewId, LogEntry.location(segment.id(), position, length), sequence,
+                        LogEntry.contentHash(buffer, position));
+            }
+
+            segment.recovered(sequence);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            position += length;
+        }
+
+        if (position < segment.size()) {
+            LOG.warn("Cutting off {} bytes of torn or corrupt entries at the end of {}", segment.size() - position,
+                    segment.path());
+            segment.truncate(position);
+        }
+    }
+
+    private void compactIfNeeded() {
+        try {
+            compact();
+        } catch (Exception ex) {
+            LOG.warn("Compaction of the review log failed, will retry: {}", ex.toString());
+        }
+    }
+
+    /**
+     * Merges all sealed segments into new segments holding only live reviews, ordered by productId and
+     * reviewId. Writes continue meanwhile; a review that is written again while it is being copied keeps its
+     * new location.
+     * <p>
+     * A crash may stop compaction at any point, recovery then finds the outputs next to some of the sealed
+     * segments. The outputs are synced and renamed, and the directory is synced, before the sealed segments
+     * are unlinked, so that a live review is never only in a file that may be lost. Delete entries are not
+     * copied, so the sealed segments are unlinked oldest first, by their last sequence number, and the
+     * directory is synced again: a delete is then never unlinked while a segment with an older copy of the
+     * review is left behind, which would bring the review back. Segment ids don't give that order, since the
+     * outputs get higher ids than the active segment that keeps taking deletes during compaction.
+     */
+    void compact() throws IOException {
+        List<Segment> sealed;
+        Map<Integer, Segment> sources;
+        int count = 0;
+        int[] productIds = new int[1024];
+        int[] reviewIds = new int[1024];
+        long[] locations = new long[1024];
+
+        lock.readLock().lock();
+        try {
+            sources = segments;
+            sealed = sources.values().stream().filter(segment -> segment != active).toList();
+            if (!needsCompaction(sealed)) {
+                return;
+            }
+
+            int[] products = byProduct.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            for (int productId : products) {
+                ReviewLocations reviews = byProduct.get(productId);
+                for (int i = 0; i < reviews.size(); i++) {
+                    long location = reviews.locationAt(i);
+                    if (sources.get(LogEntry.segmentId(location)) == active) {
+                        continue;
+                    }
+                    if (count == locations.length) {
+                        productIds = Arrays.copyOf(productIds, count * 2);
+                        reviewIds = Arrays.copyOf(reviewIds, count * 2);
+                        locations = Arrays.copyOf(locations, count * 2);
+                    }
+                    productIds[count] = productId;
+                    reviewIds[count] = reviews.reviewIdAt(i);
+                    locations[count] = location;
+                    count++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        LOG.info("Compacting {} review log segments with {} live reviews", sealed.size(), count);
+        List<Segment> outputs = new ArrayList<>();
+        long[] moved = new long[count];
+        Segment output = null;
+        for (int i = 0; i < count; i++) {
+            long location = locations[i];
+            int length = LogEntry.length(location);
+            ByteBuffer entry = sources.get(LogEntry.segmentId(location)).read(LogEntry.offset(location), length);
+            if (output == null || output.size() + length > segmentSize) {
+                int id = allocateSegmentId();
+                output = Segment.open(id, segmentPath(id, COMPACTING_SUFFIX));
+                outputs.add(output);
+            }
+            moved[i] = LogEntry.location(output.id(), output.append(entry), length);
+        }
+        for (Segment segment : outputs) {
+            segment.force();
+            Path target = segmentPath(segment.id(), SUFFIX);
+            Files.move(segment.path(), target, StandardCopyOption.ATOMIC_MOVE);
+            segment.movedTo(target);
+        }
+        syncDirectory();
+
+        lock.writeLock().lock();
+        try {
+            Map<Integer, Segment> byId = new HashMap<>();
+            for (Segment segment : outputs) {
+                byId.put(segment.id(), segment);
+            }
+            for (int i = 0; i < count; i++) {
+                ReviewLocations reviews = byProduct.get(productIds[i]);
+                if (reviews != null && reviews.replace(reviewIds[i], locations[i], moved[i])) {
+                    byId.get(LogEntry.segmentId(moved[i])).addLive(LogEntry.length(moved[i]));
+                }
+            }
+            withSegments(outputs, sealed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // Readers that started before the swap may still read the sealed segments, so their files are
+        // unlinked now but only closed once the last of those readers is done
+        List<Segment> oldestFirst = sealed.stream()
+                .sorted(Comparator.comparingLong(Segment::lastSequence).thenComparingInt(Segment::id))
+                .toList();
+        for (Segment segment : oldestFirst) {
+            Files.deleteIfExists(segment.path());
+        }
+        syncDirectory();
+        releaseAll(sealed);
+        LOG.info("Compacted the review log into {} segments", outputs.size());
+    }
+
+    private boolean needsCompaction(List<Segment> sealed) {
+        if (sealed.isEmpty()) {
+            return false;
+        }
+        long size = 0;
+        long live = 0;
+        for (Segment segment : sealed) {
+            size += segment.size();
+            live += segment.liveBytes();
+        }
+        return sealed.size() >= compactionMaxSegments
+                || (size > 0 && size - live >= compactionMinGarbageRatio * size);
+    }
+
+    private void withSegments(List<Segment> added, List<Segment> removed) {
+        Map<Integer, Segment> updated = new HashMap<>(segments);
+        for (Segment segment : removed) {
+            updated.remove(segment.id());
+        }
+        for (Segment segment : added) {
+            updated.put(segment.id(), segment);
+        }
+        segments = Map.copyOf(updated);
+    }
+
+    private int allocateSegmentId() {
+        int id = nextSegmentId.getAndIncrement();
+        if (id > LogEntry.MAX_SEGMENT_ID) {
+            throw new IllegalStateException("Out of review log segment ids");
+        }
+        return id;
+    }
+
+    private Path segmentPath(int id, String suffix) {
+        return directory.resolve(String.format("%s%010d%s", PREFIX, id, suffix));
+    }
+
+    /**
+     * Makes renames and unlinks in the directory durable. Not every platform can open a directory, there the
+     * file system is trusted to do so on its own.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            LOG.debug("Failed to sync {}: {}", directory, ex.toString());
+        }
+    }
+
+    private static ByteBuffer map(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+        }
+    }
+
+    private static void releaseAll(List<Segment> segments) {
+        for (Segment segment : segments) {
+            try {
+                segment.release();
+            } catch (IOException ex) {
+                LOG.debug("Failed to close {}: {}", segment.path(), ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Reads the reviews at a list of locations, in list order. Consecutive entries that follow each other
+     * closely in the same segment are read with a single read, and decoded from that buffer.
+     * <p>
+     * Holds a reference to each segment it reads from, given up once the last run is read or it is closed.
+     */
+    public static final class ReviewReader implements Iterator<ReviewEntity>, AutoCloseable {
+
+        private final long[] locations;
+        private final Map<Integer, Segment> segments = new HashMap<>();
+        private final ArrayDeque<ReviewEntity> buffered = new ArrayDeque<>();
+        private int next;
+        // A cancelled response closes the reader from another thread than the one reading it
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ReviewReader(long[] locations, List<Segment> held) {
+            this.locations = locations;
+            for (Segment segment : held) {
+                segments.put(segment.id(), segment);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !buffered.isEmpty() || next < locations.length;
+        }
+
+        @Override
+        public ReviewEntity next() {
+            if (buffered.isEmpty()) {
+                if (next == locations.length) {
+                    throw new NoSuchElementException();
+                }
+                readRun();
+            }
+            return buffered.poll();
+        }
+
+        private void readRun() {
+            int first = next;
+            int segmentId = LogEntry.segmentId(locations[first]);
+            int start = LogEntry.offset(locations[first]);
+            int end = start + LogEntry.length(locations[first]);
+            int last = first + 1;
+            while (last < locations.length) {
+                long location = locations[last];
+                int offset = LogEntry.offset(location);
+                int entryEnd = offset + LogEntry.length(location);
+                if (LogEntry.segmentId(location) != segmentId || offset < end || offset - end > MAX_READ_GAP
+                        || entryEnd - start > MAX_READ_SIZE) {
+                    break;
+                }
+                end = entryEnd;
+                last++;
+            }
+
+            try {
+                ByteBuffer run = segments.get(segmentId).read(start, end - start);
+                for (int i = first; i < last; i++) {
+                    buffered.add(LogEntry.decode(run, LogEntry.offset(locations[i]) - start));
+                }
+            } catch (IOException ex) {
+                close();
+                throw new UncheckedIOException("Failed to read reviews", ex);
+            }
+            next = last;
+            if (next == locations.length) {
+                close();
+            }
+        }
+
+        /**
+         * Gives up the segments, a reader that isn't read to the end must be closed.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                releaseAll(List.copyOf(segments.values()));
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package se.mathias.microservices.core.review.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One file of the review log. Only the active segment is appended to, all others are sealed and only read
+ * until compaction replaces them.
+ * <p>
+ * Reads use positional reads on the channel and may run concurrently with each other and with appends;
+ * appends and the byte counts are guarded by the lock of the {@link ReviewLog}.
+ * <p>
+ * The channel is reference counted: the log holds one reference while the segment is part of it, and every
+ * reader that may still read it holds another, so a segment that compaction replaced stays readable until
+ * the last reader that started before is done.
+ */
+final class Segment {
+
+    private final int id;
+    private Path path;
+    private final FileChannel channel;
+
+    private long size;
+    private long liveBytes;
+    private long lastSequence;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Segment(int id, Path path, FileChannel channel, long size) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    static Segment open(int id, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel, channel.size());
+    }
+
+    int id() {
+        return id;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    /**
+     * Records that compaction renamed the file, the open channel is not affected.
+     */
+    void movedTo(Path target) {
+        path = target;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long liveBytes() {
+        return liveBytes;
+    }
+
+    void addLive(int bytes) {
+        liveBytes += bytes;
+    }
+
+    /**
+     * Returns the highest sequence number of the entries in the segment, 0 if it has none.
+     */
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Records the sequence number of an entry that recovery found in the segment.
+     */
+    void recovered(long sequence) {
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
+    /**
+     * Appends an entry and returns its offset.
+     */
+    int append(ByteBuffer entry) throws IOException {
+        lastSequence = Math.max(lastSequence, LogEntry.sequence(entry, entry.position()));
+        int offset = (int) size;
+        long position = size;
+        while (entry.hasRemaining()) {
+            position += channel.write(entry, position);
+        }
+        size = position;
+        return offset;
+    }
+
+    /**
+     * Reads {@code length} bytes from {@code offset}.
+     */
+    ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + path + " at " + position);
+            }
+            position += read;
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Cuts off a torn or corrupt tail found during recovery.
+     */
+    void truncate(long validSize) throws IOException {
+        channel.truncate(validSize);
+        size = validSize;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Takes a reference for a reader. Only call it while the log still holds its own, under the lock of the
+     * log for a segment that is part of it.
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Gives up a reference, the channel is closed with the last one.
+     */
+    void release() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            channel.close();
+        }
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -3,18 +3,34 @@ package se.mathias.microservices.core.review.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import se.mathias.api.core.PageCursor;
 import se.mathias.api.core.review.Review;
 import se.mathias.api.core.review.ReviewService;
+import se.mathias.api.event.ChangeEvent;
 import se.mathias.api.exceptions.InvalidInputException;
 import se.mathias.api.exceptions.NotFoundException;
+import se.mathias.microservices.core.review.persistence.ReviewEntity;
+import se.mathias.microservices.core.review.persistence.ReviewLog;
+import se.mathias.util.event.ChangeEventBroker;
+import se.mathias.util.http.EntityTags;
 import se.mathias.util.http.ServiceUtil;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * The type Review service.
+ * <p>
+ * Reviews are kept in the {@link ReviewLog}. Reading and writing it is file I/O, so it is done on the bounded
+ * elastic scheduler. Pages are found by seeking to the reviewId in the cursor, so a late page costs the same
+ * as the first one. Every write is published as a {@link ChangeEvent} once it is in the log.
+ * <p>
+ * The ETag of a page is made from the content hash of the reviews of the product in the log, so a conditional
+ * get that matches doesn't read the log at all, and every replica with the same reviews gives the same tag.
  */
 @RestController
 public class ReviewServiceImpl implements ReviewService {
@@ -23,34 +39,144 @@ public class ReviewServiceImpl implements ReviewService {
 
     private final ServiceUtil serviceUtil;
 
+    private final ReviewLog log;
+
+    private final ChangeEventBroker events;
+
     /**
      * Instantiates a new Review service.
      *
      * @param serviceUtil the service util
+     * @param log         the review log
+     * @param events      the broker that changes are published to
      */
     @Autowired
-    public ReviewServiceImpl(ServiceUtil serviceUtil) {
+    public ReviewServiceImpl(ServiceUtil serviceUtil, ReviewLog log, ChangeEventBroker events) {
         this.serviceUtil = serviceUtil;
+        this.log = log;
+        this.events = events;
     }
 
     @Override
-    public List<Review> getReviews(int productId) {
+    public Mono<ResponseEntity<Flux<Review>>> getReviews(int productId, Integer limit, String cursor, String ifNoneMatch) {
 
         if(productId < 1){
             LOG.warn("Invalid input exception");
-            throw new InvalidInputException("Invalid Input Exception {}" + productId);
-        }if(productId == 213){
-            LOG.debug("No reviews found for productId: {}", productId);
-            return new ArrayList<>();
+            return Mono.error(new InvalidInputException("Invalid productId: " + productId));
+        }
+        if (limit != null && limit < 1) {
+            return Mono.error(new InvalidInputException("Invalid limit: " + limit));
+        }
+
+        int afterReviewId;
+        try {
+            afterReviewId = cursor == null ? 0 : PageCursor.parse(cursor, 1)[0];
+        } catch (InvalidInputException ex) {
+            return Mono.error(ex);
+        }
+
+        // The hash is read under the lock of the log, which a write may hold while it syncs to disk
+        return Mono.fromCallable(() -> EntityTags.response(EntityTags.of(log.contentHash(productId)), ifNoneMatch,
+                        () -> reviewsOf(productId, afterReviewId, limit == null ? Integer.MAX_VALUE : limit)))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public Flux<Review> getReviewsByProducts(List<Integer> productIds, Integer limit) {
+        if (productIds.isEmpty()) {
+            return Flux.error(new InvalidInputException("No productIds given"));
+        }
+        if (limit != null && limit < 1) {
+            return Flux.error(new InvalidInputException("Invalid limit: " + limit));
         }
 
-        List<Review> reviews = new ArrayList<>();
-        reviews.add(new Review(productId, 1, "Author 1", "Subject 1", "Content 1", serviceUtil.getServiceAddress()));
-        reviews.add(new Review(productId, 2, "Author 2", "Subject 2", "Content 2", serviceUtil.getServiceAddress()));
-        reviews.add(new Review(productId, 2, "Author 3", "Subject 3", "Content 3", serviceUtil.getServiceAddress()));
+        // Validate all ids up front, an error can't be reported once the first reviews are written
+        for (int productId : productIds) {
+            if (productId < 1) {
+                return Flux.error(new InvalidInputException("Invalid productId: " + productId));
+            }
+        }
+
+        int perProduct = limit == null ? Integer.MAX_VALUE : limit;
+        return Flux.fromIterable(productIds).concatMap(productId -> reviewsOf(productId, 0, perProduct));
+    }
+
+    @Override
+    public Mono<Review> createReview(Review body) {
+        LOG.debug("/review create a review with productId={}, reviewId={}", body.getProductId(), body.getReviewId());
+
+        return Mono.fromCallable(() -> {
+                    validate(body);
+                    return log.insert(body.getProductId(), body.getReviewId(), body.getAuthor(), body.getSubject(), body.getContent());
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorMap(IllegalArgumentException.class, ex -> new InvalidInputException(ex.getMessage()))
+                .switchIfEmpty(Mono.error(() -> new InvalidInputException(
+                        "Duplicate key, productId: " + body.getProductId() + ", reviewId: " + body.getReviewId())))
+                .doOnNext(entity -> publish(ChangeEvent.Action.CREATED, body.getProductId(), body.getReviewId()))
+                .map(entity -> toApi(entity, serviceUtil.getServiceAddress()));
+    }
 
-        LOG.debug("reviews response size: {}", reviews.size());
+    @Override
+    public Mono<Review> updateReview(Review body) {
+        LOG.debug("/review update the review with productId={}, reviewId={}", body.getProductId(), body.getReviewId());
+
+        return Mono.fromCallable(() -> {
+                    validate(body);
+                    return log.update(body.getProductId(), body.getReviewId(), body.getAuthor(), body.getSubject(), body.getContent());
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorMap(IllegalArgumentException.class, ex -> new InvalidInputException(ex.getMessage()))
+                .switchIfEmpty(Mono.error(() -> new NotFoundException(
+                        "No review found for productId: " + body.getProductId() + ", reviewId: " + body.getReviewId())))
+                .doOnNext(entity -> publish(ChangeEvent.Action.UPDATED, body.getProductId(), body.getReviewId()))
+                .map(entity -> toApi(entity, serviceUtil.getServiceAddress()));
+    }
+
+    @Override
+    public Mono<Void> deleteReviews(int productId, Integer reviewId) {
+        LOG.debug("/review delete the reviews with productId={}, reviewId={}", productId, reviewId);
+
+        if (productId < 1) {
+            return Mono.error(new InvalidInputException("Invalid productId: " + productId));
+        }
+
+        return Mono.fromRunnable(() -> {
+                    if (reviewId == null) {
+                        log.deleteAll(productId);
+                    } else {
+                        log.delete(productId, reviewId);
+                    }
+                    publish(ChangeEvent.Action.DELETED, productId, reviewId);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+
+    private void publish(ChangeEvent.Action action, int productId, Integer reviewId) {
+        events.publish(new ChangeEvent(ChangeEvent.Type.REVIEW, action, productId, reviewId));
+    }
+
+    private Flux<Review> reviewsOf(int productId, int afterReviewId, int limit) {
+        String serviceAddress = serviceUtil.getServiceAddress();
+        // The reader keeps the segments of the page open, also when the client stops reading halfway
+        return Flux.using(() -> log.find(productId, afterReviewId, limit), reader -> Flux.fromIterable(() -> reader),
+                        ReviewLog.ReviewReader::close)
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(entity -> toApi(entity, serviceAddress));
+    }
+
+    private static void validate(Review body) {
+        if (body.getProductId() < 1) {
+            throw new InvalidInputException("Invalid productId: " + body.getProductId());
+        }
+        if (body.getReviewId() < 1) {
+            throw new InvalidInputException("Invalid reviewId: " + body.getReviewId());
+        }
+    }
 
-        return reviews;
+    private static Review toApi(ReviewEntity entity, String serviceAddress) {
+        return new Review(entity.getProductId(), entity.getReviewId(), entity.getAuthor(), entity.getSubject(),
+                entity.getContent(), serviceAddress);
     }
 }
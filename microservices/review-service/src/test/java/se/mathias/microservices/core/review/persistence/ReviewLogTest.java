@@ -0,0 +1,329 @@
+package se.mathias.microservices.core.review.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+class ReviewLogTest {
+
+    private static final DataSize SEGMENT_SIZE = DataSize.ofBytes(512);
+
+    @TempDir
+    Path directory;
+
+    @TempDir
+    Path backup;
+
+    @Test
+    void replaysAllSegments() throws IOException {
+        ReviewLog log = open();
+        for (int productId = 1; productId <= 5; productId++) {
+            for (int reviewId = 1; reviewId <= 10; reviewId++) {
+                log.insert(productId, reviewId, "author", "subject " + reviewId, content(productId, reviewId));
+            }
+        }
+        log.update(2, 3, "author", "updated", "updated content");
+        log.delete(3, 4);
+        log.deleteAll(4);
+        long contentHash = log.contentHash(2);
+        log.close();
+        assertTrue(segmentFiles().size() > 1);
+
+        log = open();
+        assertEquals(10, subjects(log, 1).size());
+        assertEquals("updated", subjects(log, 2).get(3));
+        assertFalse(subjects(log, 3).containsKey(4));
+        assertEquals(9, subjects(log, 3).size());
+        assertTrue(subjects(log, 4).isEmpty());
+        assertEquals(contentHash, log.contentHash(2));
+        assertEquals(content(5, 7), log.find(5, 6, 1).next().getContent());
+        log.close();
+    }
+
+    @Test
+    void cutsOffTornTail() throws IOException {
+        ReviewLog log = open();
+        for (int reviewId = 1; reviewId <= 3; reviewId++) {
+            log.insert(1, reviewId, "author", "subject " + reviewId, "content");
+        }
+        log.close();
+
+        List<Path> files = segmentFiles();
+        Path last = files.get(files.size() - 1);
+        long validSize = Files.size(last);
+        Files.write(last, new byte[] {40, 0, 0, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        log = open();
+        assertEquals(3, subjects(log, 1).size());
+        assertEquals(validSize, Files.size(last));
+        log.insert(1, 4, "author", "subject 4", "content");
+        log.close();
+
+        log = open();
+        assertEquals(4, subjects(log, 1).size());
+        log.close();
+    }
+
+    @Test
+    void keepsWritesMadeDuringCompaction() throws Exception {
+        ReviewLog log = open();
+        for (int productId = 1; productId <= 4; productId++) {
+            for (int reviewId = 1; reviewId <= 20; reviewId++) {
+                log.insert(productId, reviewId, "author", "initial", content(productId, reviewId));
+            }
+        }
+
+        Map<Integer, Map<Integer, String>> expected = new ConcurrentHashMap<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        List<Future<?>> done = new ArrayList<>();
+        for (int writer = 1; writer <= 4; writer++) {
+            int productId = writer;
+            done.add(writers.submit(() -> {
+                Map<Integer, String> subjects = new TreeMap<>();
+                for (int reviewId = 1; reviewId <= 20; reviewId++) {
+                    subjects.put(reviewId, "initial");
+                }
+                for (int round = 0; writing.get() || round < 100; round++) {
+                    int reviewId = 1 + round % 20;
+                    if (round % 7 == 3) {
+                        log.delete(productId, reviewId);
+                        subjects.remove(reviewId);
+                    } else if (subjects.containsKey(reviewId)) {
+                        log.update(productId, reviewId, "author", "round " + round, content(productId, reviewId));
+                        subjects.put(reviewId, "round " + round);
+                    } else {
+                        log.insert(productId, reviewId, "author", "round " + round, content(productId, reviewId));
+                        subjects.put(reviewId, "round " + round);
+                    }
+                }
+                expected.put(productId, subjects);
+                return null;
+            }));
+        }
+        for (int i = 0; i < 20; i++) {
+            log.compact();
+        }
+        writing.set(false);
+        for (Future<?> writer : done) {
+            writer.get();
+        }
+        writers.shutdown();
+
+        for (int productId = 1; productId <= 4; productId++) {
+            assertEquals(expected.get(productId), subjects(log, productId));
+        }
+        log.close();
+
+        ReviewLog reopened = open();
+        for (int productId = 1; productId <= 4; productId++) {
+            assertEquals(expected.get(productId), subjects(reopened, productId));
+        }
+        reopened.close();
+    }
+
+    @Test
+    void recoversFromCrashBetweenRenameAndUnlink() throws IOException {
+        ReviewLog log = open();
+        for (int reviewId = 1; reviewId <= 10; reviewId++) {
+            log.insert(1, reviewId, "author", "initial", content(1, reviewId));
+        }
+        log.update(1, 2, "author", "updated", "updated content");
+        log.delete(1, 5);
+        Map<Integer, String> expected = subjects(log, 1);
+        long contentHash = log.contentHash(1);
+
+        copyTo(backup);
+        log.compact();
+        log.close();
+
+        // The outputs were renamed but none of the sealed segments was unlinked
+        List<Path> unlinked = unlinkedBy(backup);
+        assertFalse(unlinked.isEmpty());
+        restore(unlinked);
+
+        log = open();
+        assertEquals(expected, subjects(log, 1));
+        assertEquals(contentHash, log.contentHash(1));
+        log.compact();
+        log.close();
+
+        log = open();
+        assertEquals(expected, subjects(log, 1));
+        log.close();
+    }
+
+    @Test
+    void keepsDeletesWhenCrashingBetweenUnlinks() throws IOException {
+        ReviewLog log = open();
+        for (int reviewId = 1; reviewId <= 10; reviewId++) {
+            log.insert(1, reviewId, "author", "initial", content(1, reviewId));
+        }
+        log.compact();
+
+        // The delete goes to the active segment, which has a lower id than the compacted copy of the review
+        Map<Path, Long> sizes = sizes();
+        log.delete(1, 1);
+        Path withDelete = segmentFiles().stream()
+                .filter(file -> !sizes.containsKey(file) || size(file) != sizes.get(file))
+                .findFirst()
+                .orElseThrow();
+        for (int reviewId = 11; reviewId <= 20; reviewId++) {
+            log.insert(1, reviewId, "author", "initial", content(1, reviewId));
+        }
+        Map<Integer, String> expected = subjects(log, 1);
+
+        copyTo(backup);
+        log.compact();
+        log.close();
+
+        List<Path> unlinked = unlinkedBy(backup);
+        assertTrue(unlinked.contains(withDelete));
+        assertTrue(unlinked.stream().anyMatch(file -> file.compareTo(withDelete) > 0));
+
+        // The segment with the delete is the newest of them, so it is the one left by a crash
+        restore(List.of(withDelete));
+
+        log = open();
+        assertFalse(subjects(log, 1).containsKey(1));
+        assertEquals(expected, subjects(log, 1));
+        log.close();
+    }
+
+    @Test
+    void sameReviewsHashTheSameInEveryLog() throws IOException {
+        ReviewLog log = open();
+        for (int reviewId = 1; reviewId <= 5; reviewId++) {
+            log.insert(1, reviewId, "author", "subject", content(1, reviewId));
+        }
+        log.update(1, 2, "author", "updated", "updated content");
+        long contentHash = log.contentHash(1);
+        log.close();
+
+        ReviewLog other = new ReviewLog(backup, SEGMENT_SIZE, false, Duration.ofHours(1), 0.5, 1);
+        for (int reviewId = 5; reviewId >= 1; reviewId--) {
+            other.insert(1, reviewId, "author", reviewId == 2 ? "updated" : "subject",
+                    reviewId == 2 ? "updated content" : content(1, reviewId));
+        }
+        assertEquals(contentHash, other.contentHash(1));
+
+        other.update(1, 3, "author", "changed", content(1, 3));
+        assertNotEquals(contentHash, other.contentHash(1));
+        other.update(1, 3, "author", "subject", content(1, 3));
+        assertEquals(contentHash, other.contentHash(1));
+        other.delete(1, 1);
+        other.insert(1, 1, "author", "subject", content(1, 1));
+        assertEquals(contentHash, other.contentHash(1));
+        other.close();
+    }
+
+    @Test
+    void readerOutlivesCompactionsOfItsSegments() throws IOException {
+        ReviewLog log = open();
+        for (int reviewId = 1; reviewId <= 20; reviewId++) {
+            log.insert(1, reviewId, "author", "subject " + reviewId, content(1, reviewId));
+        }
+        List<Path> before = segmentFiles();
+
+        ReviewLog.ReviewReader reader = log.find(1, 0, Integer.MAX_VALUE);
+        assertEquals(1, reader.next().getReviewId());
+        log.compact();
+        log.insert(2, 1, "author", "subject", content(2, 1));
+        log.compact();
+        assertTrue(segmentFiles().stream().noneMatch(before::contains));
+
+        for (int reviewId = 2; reviewId <= 20; reviewId++) {
+            assertEquals("subject " + reviewId, reader.next().getSubject());
+        }
+        assertFalse(reader.hasNext());
+        reader.close();
+        log.close();
+    }
+
+    private ReviewLog open() throws IOException {
+        return new ReviewLog(directory, SEGMENT_SIZE, false, Duration.ofHours(1), 0.5, 1);
+    }
+
+    private static String content(int productId, int reviewId) {
+        return "Review " + reviewId + " of product " + productId + ", long enough to fill segments quickly";
+    }
+
+    private static Map<Integer, String> subjects(ReviewLog log, int productId) {
+        Map<Integer, String> subjects = new TreeMap<>();
+        Iterator<ReviewEntity> reviews = log.find(productId, 0, Integer.MAX_VALUE);
+        while (reviews.hasNext()) {
+            ReviewEntity review = reviews.next();
+            assertEquals(productId, review.getProductId());
+            subjects.put(review.getReviewId(), review.getSubject());
+        }
+        return subjects;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private Map<Path, Long> sizes() throws IOException {
+        Map<Path, Long> sizes = new TreeMap<>();
+        for (Path file : segmentFiles()) {
+            sizes.put(file, size(file));
+        }
+        return sizes;
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void copyTo(Path target) throws IOException {
+        for (Path file : segmentFiles()) {
+            Files.copy(file, target.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns the segment files that were copied to a backup and are gone now.
+     */
+    private List<Path> unlinkedBy(Path copies) throws IOException {
+        try (Stream<Path> files = Files.list(copies)) {
+            return files.map(file -> directory.resolve(file.getFileName()))
+                    .filter(file -> !Files.exists(file))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private void restore(List<Path> files) throws IOException {
+        for (Path file : files) {
+            Files.copy(backup.resolve(file.getFileName()), file);
+        }
+    }
+}
@@ -61,6 +61,14 @@ assertEqual $PROD_ID_REVS_RECS $(echo $RESPONSE | jq .productId)
 assertEqual 3 $(echo $RESPONSE | jq ".recommendations | length")
 assertEqual 3 $(echo $RESPONSE | jq ".reviews | length")
 
+# Verify that the product is answered with an ETag, and with a 304 (Not Modified) when the client already has it
+ETAG=$(curl -s -o /dev/null -D - http://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS | grep -i '^etag:' | cut -d' ' -f2 | tr -d '\r')
+assertCurl 304 "curl -H 'If-None-Match: $ETAG' http://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS -s"
+
+# Verify that a selection of the fields is tagged as well
+ETAG=$(curl -s -o /dev/null -D - "http://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS?fields=name,weight" | grep -i '^etag:' | cut -d' ' -f2 | tr -d '\r')
+assertCurl 304 "curl -H 'If-None-Match: $ETAG' 'http://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS?fields=name,weight' -s"
+
 # Verify that a 404 (Not Found) error is returned for a non-existing productId ($PROD_ID_NOT_FOUND)
 assertCurl 404 "curl http://$HOST:$PORT/product-composite/$PROD_ID_NOT_FOUND -s"
 assertEqual "No product found for productId: $PROD_ID_NOT_FOUND" "$(echo $RESPONSE | jq -r .message)"
@@ -81,6 +89,25 @@ assertEqual 0 $(echo $RESPONSE | jq ".reviews | length")
 assertCurl 422 "curl http://$HOST:$PORT/product-composite/-1 -s"
 assertEqual "\"Invalid productId: -1\"" "$(echo $RESPONSE | jq .message)"
 
+# Verify that a batch request returns the products that exist, in request order
+assertCurl 200 "curl \"http://$HOST:$PORT/product-composite?productIds=$PROD_ID_REVS_RECS,$PROD_ID_NOT_FOUND,$PROD_ID_NO_RECS\" -s"
+assertEqual 2 $(echo $RESPONSE | jq "length")
+assertEqual $PROD_ID_REVS_RECS $(echo $RESPONSE | jq ".[0].productId")
+assertEqual 3 $(echo $RESPONSE | jq ".[0].reviews | length")
+assertEqual 0 $(echo $RESPONSE | jq ".[1].recommendations | length")
+
+# Verify that the reviews can be paged through with the cursor of the previous page
+assertCurl 200 "curl \"http://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS/reviews?limit=2\" -s"
+assertEqual 2 $(echo $RESPONSE | jq ".items | length")
+CURSOR=$(echo $RESPONSE | jq -r ".nextCursor")
+assertCurl 200 "curl \"http://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS/reviews?limit=2&cursor=$CURSOR\" -s"
+assertEqual 1 $(echo $RESPONSE | jq ".items | length")
+assertEqual null $(echo $RESPONSE | jq ".nextCursor")
+
+# Verify that the downstream calls are published in Prometheus format, including the 404 from the product service
+assertCurl 200 "curl http://$HOST:$PORT/actuator/prometheus -s"
+assertEqual 1 $(echo "$RESPONSE" | grep -c '^composite_downstream_rejections_total{.*service="product".*status="404"')
+
 # Verify that a 400 (Bad Request) error error is returned for a productId that is not a number, i.e. invalid format
 assertCurl 400 "curl http://$HOST:$PORT/product-composite/invalidProductId -s"
 assertEqual "\"Type mismatch.\"" "$(echo $RESPONSE | jq .message)"
@@ -0,0 +1,29 @@
+package se.mathias.util.event;
+
+import reactor.core.publisher.Flux;
+import se.mathias.api.event.ChangeEvent;
+
+/**
+ * The transport of change events between services.
+ * <p>
+ * The default is {@link LocalChangeEventBroker}, which delivers events within the JVM. Core services expose
+ * its events over HTTP with {@link ChangeEventController}. A message broker can be plugged in by setting
+ * app.events.broker to something else than local and providing another implementation as a bean.
+ */
+public interface ChangeEventBroker {
+
+  /**
+   * Publishes an event to the current subscribers. Never blocks.
+   *
+   * @param event the event
+   */
+  void publish(ChangeEvent event);
+
+  /**
+   * Subscribes to the events published from now on. A subscriber that falls too far behind gets an error
+   * instead of silently missing events.
+   *
+   * @return the events
+   */
+  Flux<ChangeEvent> subscribe();
+}
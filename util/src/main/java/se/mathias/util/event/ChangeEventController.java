@@ -0,0 +1,47 @@
+package se.mathias.util.event;
+
+import java.time.Duration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import se.mathias.api.event.ChangeEvent;
+import se.mathias.api.event.ChangeEventService;
+
+/**
+ * Streams the change events of a core service to remote subscribers as server-sent events.
+ * <p>
+ * The first heartbeat is sent right after the subscription to the broker, so a client that has received it
+ * knows that no later change will be missed. The following heartbeats let clients tell an idle stream from a
+ * dead connection. Enabled with app.events.endpoint.enabled.
+ */
+@RestController
+@ConditionalOnProperty(name = "app.events.endpoint.enabled", havingValue = "true")
+public class ChangeEventController implements ChangeEventService {
+
+  private final ChangeEventBroker broker;
+
+  private final Duration heartbeatInterval;
+
+  @Autowired
+  public ChangeEventController(
+    ChangeEventBroker broker,
+    @Value("${app.events.heartbeat-interval:30s}") Duration heartbeatInterval) {
+
+    this.broker = broker;
+    this.heartbeatInterval = heartbeatInterval;
+  }
+
+  @Override
+  public Flux<ServerSentEvent<ChangeEvent>> getChangeEvents() {
+    Flux<ServerSentEvent<ChangeEvent>> events = broker.subscribe()
+      .map(event -> ServerSentEvent.builder(event).event("change").build());
+    Flux<ServerSentEvent<ChangeEvent>> heartbeats = Flux.interval(Duration.ZERO, heartbeatInterval)
+      .map(tick -> ServerSentEvent.<ChangeEvent>builder().comment("heartbeat").build());
+
+    // Flux.merge subscribes in order, i.e. to the broker before the first heartbeat is sent
+    return Flux.merge(events, heartbeats);
+  }
+}
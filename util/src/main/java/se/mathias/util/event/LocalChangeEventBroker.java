@@ -0,0 +1,49 @@
+package se.mathias.util.event;
+
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import se.mathias.api.event.ChangeEvent;
+
+/**
+ * Delivers change events to subscribers in the same JVM.
+ * <p>
+ * Every subscriber gets its own bounded buffer, so a slow subscriber can't hold up the publisher or the
+ * other subscribers. When its buffer overflows the subscriber gets an error, and has to assume that it missed
+ * events.
+ */
+@Component
+@ConditionalOnProperty(name = "app.events.broker", havingValue = "local", matchIfMissing = true)
+public class LocalChangeEventBroker implements ChangeEventBroker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalChangeEventBroker.class);
+
+  // Publishers on different threads may race, the loser spins until the winner is done
+  private static final Sinks.EmitFailureHandler RETRY_ON_RACE = Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100));
+
+  private final Sinks.Many<ChangeEvent> sink = Sinks.many().multicast().directBestEffort();
+
+  private final int subscriberBufferSize;
+
+  @Autowired
+  public LocalChangeEventBroker(@Value("${app.events.subscriber-buffer-size:10000}") int subscriberBufferSize) {
+    this.subscriberBufferSize = subscriberBufferSize;
+  }
+
+  @Override
+  public void publish(ChangeEvent event) {
+    LOG.debug("Publishing change event: {}", event);
+    sink.emitNext(event, RETRY_ON_RACE);
+  }
+
+  @Override
+  public Flux<ChangeEvent> subscribe() {
+    return sink.asFlux().onBackpressureBuffer(subscriberBufferSize);
+  }
+}
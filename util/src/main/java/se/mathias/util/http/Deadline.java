@@ -0,0 +1,97 @@
+package se.mathias.util.http;
+
+import java.time.Duration;
+import java.util.Optional;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+/**
+ * The point in time a request must be answered by.
+ * <p>
+ * The deadline travels between services as the remaining budget in milliseconds in the
+ * {@value #TIMEOUT_HEADER} header, not as an absolute time, so clock skew between hosts doesn't matter.
+ * Within a service it travels in the Reactor context of the request. On the servlet stack a filter can't
+ * write that context, the handler's publisher is only subscribed to once the handler has returned; the
+ * deadline is bound to the request thread instead, and handlers that make calls move it into the context
+ * with {@link #captured}.
+ * <p>
+ * A call that is shared by several requests, like a coalesced, batched or cached load, must not be bound by
+ * the deadline of the request that happened to start it, see {@link #shared}. Each request only bounds its
+ * own wait for the shared result.
+ */
+public final class Deadline {
+
+  public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+  // The deadline of the servlet request the thread is handling, see DeadlineServletFilter
+  private static final ThreadLocal<Deadline> SERVLET_REQUEST = new ThreadLocal<>();
+
+  private final long deadlineNanos;
+
+  private Deadline(long deadlineNanos) {
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  public static Deadline after(Duration timeout) {
+    return new Deadline(System.nanoTime() + timeout.toNanos());
+  }
+
+  public static Optional<Deadline> from(ContextView context) {
+    return context.getOrEmpty(Deadline.class);
+  }
+
+  /**
+   * Puts the deadline of the servlet request the current thread is handling into a Reactor context, unless
+   * the context already has one. Use it as {@code contextWrite(Deadline::captured)} on the publisher a
+   * handler returns: the servlet stack subscribes to it on the request thread. On WebFlux the deadline is
+   * already in the context and there is no servlet request, the context is left as it is.
+   *
+   * @param context the context of the subscriber
+   * @return the context with the deadline of the servlet request, if there is one
+   */
+  public static Context captured(Context context) {
+    Deadline deadline = SERVLET_REQUEST.get();
+    return deadline == null || context.hasKey(Deadline.class) ? context : context.put(Deadline.class, deadline);
+  }
+
+  static void bind(Deadline deadline) {
+    SERVLET_REQUEST.set(deadline);
+  }
+
+  static void unbind() {
+    SERVLET_REQUEST.remove();
+  }
+
+  /**
+   * Makes the context of a call that is shared by several requests from the context of the request that
+   * starts it. The call gets the larger of the shared timeout and the budget of that request, so a request
+   * with a tiny budget can't make the call fail or skip parts for all the others.
+   *
+   * @param context the context of the request that starts the call
+   * @param sharedTimeout the budget of a shared call, zero for none
+   * @return the context to run the shared call with
+   */
+  public static Context shared(ContextView context, Duration sharedTimeout) {
+    Context shared = Context.of(context);
+    if (sharedTimeout.isZero()) {
+      return shared.delete(Deadline.class);
+    }
+    Duration timeout = from(context)
+      .map(Deadline::remaining)
+      .filter(remaining -> remaining.compareTo(sharedTimeout) > 0)
+      .orElse(sharedTimeout);
+    return shared.put(Deadline.class, after(timeout));
+  }
+
+  public Duration remaining() {
+    return Duration.ofNanos(Math.max(0, deadlineNanos - System.nanoTime()));
+  }
+
+  public long remainingMillis() {
+    return Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000);
+  }
+
+  public boolean isExpired() {
+    return deadlineNanos - System.nanoTime() <= 0;
+  }
+}
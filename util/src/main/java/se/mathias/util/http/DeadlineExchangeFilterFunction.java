@@ -0,0 +1,31 @@
+package se.mathias.util.http;
+
+import java.util.concurrent.TimeoutException;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+/**
+ * Propagates the deadline in the Reactor context of a {@code WebClient} call to the called service as the
+ * {@value Deadline#TIMEOUT_HEADER} header, and cancels the call when the deadline passes. Calls whose
+ * deadline has already passed are not sent at all.
+ */
+public class DeadlineExchangeFilterFunction implements ExchangeFilterFunction {
+
+  @Override
+  public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+    return Mono.deferContextual(context -> Deadline.from(context)
+      .map(deadline -> {
+        if (deadline.isExpired()) {
+          return Mono.<ClientResponse>error(new TimeoutException("Deadline exceeded before calling " + request.url()));
+        }
+        ClientRequest withBudget = ClientRequest.from(request)
+          .header(Deadline.TIMEOUT_HEADER, Long.toString(deadline.remainingMillis()))
+          .build();
+        return next.exchange(withBudget).timeout(deadline.remaining());
+      })
+      .orElseGet(() -> next.exchange(request)));
+  }
+}
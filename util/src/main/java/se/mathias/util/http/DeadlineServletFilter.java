@@ -0,0 +1,76 @@
+package se.mathias.util.http;
+
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Servlet stack counterpart of {@link DeadlineWebFilter}, used when a service runs with the virtual-threads
+ * profile.
+ * <p>
+ * The deadline is started the same way, and requests that arrive with no budget left are answered with a
+ * 504 right away. It is bound to the request thread while the request is handled, see
+ * {@link Deadline#captured}, which is where the publisher a handler returns is subscribed to, so downstream
+ * calls get the remaining budget just like on WebFlux.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+class DeadlineServletFilter extends OncePerRequestFilter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DeadlineServletFilter.class);
+
+  private final Duration defaultTimeout;
+
+  @Autowired
+  DeadlineServletFilter(@Value("${app.deadline.default-timeout:0ms}") Duration defaultTimeout) {
+    this.defaultTimeout = defaultTimeout;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+    throws ServletException, IOException {
+
+    Duration timeout = timeoutOf(request);
+    if (timeout == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    if (timeout.isZero() || timeout.isNegative()) {
+      LOG.debug("Dropping request to {}, its deadline has already passed", request.getRequestURI());
+      response.setStatus(GATEWAY_TIMEOUT.value());
+      return;
+    }
+
+    Deadline.bind(Deadline.after(timeout));
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      Deadline.unbind();
+    }
+  }
+
+  private Duration timeoutOf(HttpServletRequest request) {
+    String header = request.getHeader(Deadline.TIMEOUT_HEADER);
+    if (header != null) {
+      try {
+        return Duration.ofMillis(Long.parseLong(header.trim()));
+      } catch (NumberFormatException ex) {
+        LOG.debug("Ignoring invalid {} header: {}", Deadline.TIMEOUT_HEADER, header);
+      }
+    }
+    return defaultTimeout.isZero() ? null : defaultTimeout;
+  }
+}
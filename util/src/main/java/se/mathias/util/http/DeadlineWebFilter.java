@@ -0,0 +1,65 @@
+package se.mathias.util.http;
+
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+/**
+ * Starts the deadline of incoming requests.
+ * <p>
+ * The deadline is taken from the {@value Deadline#TIMEOUT_HEADER} header if the caller sent one, else from
+ * app.deadline.default-timeout if it is set. Requests that arrive with no budget left are answered with a
+ * 504 right away, nobody is waiting for the result anyway.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class DeadlineWebFilter implements WebFilter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DeadlineWebFilter.class);
+
+  private final Duration defaultTimeout;
+
+  @Autowired
+  DeadlineWebFilter(@Value("${app.deadline.default-timeout:0ms}") Duration defaultTimeout) {
+    this.defaultTimeout = defaultTimeout;
+  }
+
+  @Override
+  public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+    Duration timeout = timeoutOf(exchange);
+    if (timeout == null) {
+      return chain.filter(exchange);
+    }
+
+    if (timeout.isZero() || timeout.isNegative()) {
+      LOG.debug("Dropping request to {}, its deadline has already passed", exchange.getRequest().getPath());
+      exchange.getResponse().setStatusCode(GATEWAY_TIMEOUT);
+      return exchange.getResponse().setComplete();
+    }
+
+    Deadline deadline = Deadline.after(timeout);
+    return chain.filter(exchange).contextWrite(context -> context.put(Deadline.class, deadline));
+  }
+
+  private Duration timeoutOf(ServerWebExchange exchange) {
+    String header = exchange.getRequest().getHeaders().getFirst(Deadline.TIMEOUT_HEADER);
+    if (header != null) {
+      try {
+        return Duration.ofMillis(Long.parseLong(header.trim()));
+      } catch (NumberFormatException ex) {
+        LOG.debug("Ignoring invalid {} header: {}", Deadline.TIMEOUT_HEADER, header);
+      }
+    }
+    return defaultTimeout.isZero() ? null : defaultTimeout;
+  }
+}
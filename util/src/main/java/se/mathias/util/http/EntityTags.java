@@ -0,0 +1,166 @@
+package se.mathias.util.http;
+
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Weak entity tags made from content hashes that the services keep up to date with the content, so that a
+ * tag is known before the content is read or serialized, and a request with a matching If-None-Match header
+ * is answered with a 304 without either.
+ * <p>
+ * A tag only depends on the content, not on when or where it was written, so every replica of a service,
+ * and the same replica after a restart, gives the same content the same tag. The tags are weak since they
+ * don't cover everything in the representation: the service address is diagnostics, it differs between
+ * replicas and is left out.
+ * <p>
+ * Hashes are 64 bit FNV-1a, chained over the fields of the content with {@link #hash(long, String)} and
+ * {@link #hash(long, long)}, starting from {@link #NO_CONTENT}. The hash of a collection is the sum of the
+ * hashes of its elements, which doesn't depend on their order and can be updated on every change without
+ * hashing the rest.
+ */
+public final class EntityTags {
+
+  /**
+   * The hash to start from.
+   */
+  public static final long NO_CONTENT = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private EntityTags() {
+  }
+
+  /**
+   * Makes the tag of content.
+   *
+   * @param hash the hash of the content
+   * @return the weak entity tag
+   */
+  public static String of(long hash) {
+    return "W/\"" + Long.toHexString(hash) + "\"";
+  }
+
+  /**
+   * Adds a string field to a hash. Null and the empty string hash differently.
+   *
+   * @param hash the hash of the fields before this one
+   * @param value the field
+   * @return the hash including the field
+   */
+  public static long hash(long hash, String value) {
+    if (value == null) {
+      return (hash ^ 0xFFFE) * FNV_PRIME;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    // Ends the field, so that moving characters between fields changes the hash
+    return (hash ^ 0xFFFF) * FNV_PRIME;
+  }
+
+  /**
+   * Adds a numeric field to a hash.
+   *
+   * @param hash the hash of the fields before this one
+   * @param value the field
+   * @return the hash including the field
+   */
+  public static long hash(long hash, long value) {
+    for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+      hash = (hash ^ ((value >>> shift) & 0xFF)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer to a hash, without moving its position.
+   *
+   * @param hash the hash of the fields before these bytes
+   * @param bytes the bytes
+   * @return the hash including the bytes
+   */
+  public static long hash(long hash, ByteBuffer bytes) {
+    for (int i = bytes.position(); i < bytes.limit(); i++) {
+      hash = (hash ^ (bytes.get(i) & 0xFF)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * Makes the tag of a representation that is derived from other tagged representations, and from
+   * nothing else but the given parameters. The tags are hashed, not concatenated, so the tag stays short.
+   *
+   * @param parts the tags of the parts and the parameters of the derivation, in a fixed order
+   * @return the weak entity tag
+   */
+  public static String combine(String... parts) {
+    long hash = NO_CONTENT;
+    for (String part : parts) {
+      hash = hash(hash, part);
+    }
+    return of(hash);
+  }
+
+  /**
+   * Tells if an If-None-Match header matches a tag. The comparison is weak, as the header asks for.
+   *
+   * @param ifNoneMatch the value of the header, or null if the request has none
+   * @param tag the entity tag of the current representation
+   * @return true if the client already has the current representation
+   */
+  public static boolean matches(String ifNoneMatch, String tag) {
+    if (ifNoneMatch == null || tag == null) {
+      return false;
+    }
+    String opaqueTag = opaque(tag);
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || opaque(candidate).equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String opaque(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  /**
+   * Prepares the answer to a conditional GET, for code that writes the response itself: sets the tag, if
+   * any, and tells if the answer is 304 Not Modified, without a body.
+   *
+   * @param tag the entity tag of the current representation, or null if it has none
+   * @param ifNoneMatch the value of the If-None-Match header, or null if the request has none
+   * @param headers the headers of the response
+   * @return true if the client already has the current representation
+   */
+  public static boolean notModified(String tag, String ifNoneMatch, HttpHeaders headers) {
+    if (tag != null) {
+      headers.setETag(tag);
+    }
+    return matches(ifNoneMatch, tag);
+  }
+
+  /**
+   * Answers a conditional GET: 304 Not Modified if the client has the current representation, else 200 OK
+   * with the body. Either way the response carries the tag.
+   *
+   * @param tag the entity tag of the current representation, or null if it has none and can't be
+   *            revalidated
+   * @param ifNoneMatch the value of the If-None-Match header, or null if the request has none
+   * @param body makes the body, only called if it is sent
+   * @param <T> the type of the body
+   * @return the response
+   */
+  public static <T> ResponseEntity<T> response(String tag, String ifNoneMatch, Supplier<T> body) {
+    HttpHeaders headers = new HttpHeaders();
+    if (notModified(tag, ifNoneMatch, headers)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+    }
+    return ResponseEntity.ok().headers(headers).body(body.get());
+  }
+}
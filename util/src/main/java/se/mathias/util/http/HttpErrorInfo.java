@@ -1,10 +1,20 @@
 package se.mathias.util.http;
 
-import java.time.ZonedDateTime;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
 import org.springframework.http.HttpStatus;
 
+/**
+ * The body of an error response.
+ * <p>
+ * Errors like 404 for unknown products are a large share of the responses, so the timestamp is kept cheap:
+ * it is an ISO-8601 UTC string with second precision, formatted once per second and shared by all errors
+ * made within it, instead of a zoned date-time that is formatted for every response.
+ */
 public class HttpErrorInfo {
-  private final ZonedDateTime timestamp;
+  private static volatile Timestamp lastTimestamp = new Timestamp(Long.MIN_VALUE, null);
+
+  private final String timestamp;
   private final String path;
   private final HttpStatus httpStatus;
   private final String message;
@@ -17,13 +27,13 @@ public class HttpErrorInfo {
   }
 
   public HttpErrorInfo(HttpStatus httpStatus, String path, String message) {
-    timestamp = ZonedDateTime.now();
+    timestamp = now();
     this.httpStatus = httpStatus;
     this.path = path;
     this.message = message;
   }
 
-  public ZonedDateTime getTimestamp() {
+  public String getTimestamp() {
     return timestamp;
   }
 
@@ -42,4 +52,21 @@ public class HttpErrorInfo {
   public String getMessage() {
     return message;
   }
+
+  /**
+   * Returns the current second formatted, reusing the last one if it is still current. Threads that race at
+   * the turn of a second may format it twice, the result is the same.
+   */
+  private static String now() {
+    long epochSecond = System.currentTimeMillis() / 1000;
+    Timestamp last = lastTimestamp;
+    if (last.epochSecond() != epochSecond) {
+      last = new Timestamp(epochSecond, DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochSecond(epochSecond)));
+      lastTimestamp = last;
+    }
+    return last.formatted();
+  }
+
+  private record Timestamp(long epochSecond, String formatted) {
+  }
 }
@@ -0,0 +1,66 @@
+package se.mathias.util.http;
+
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.util.UrlPathHelper;
+import se.mathias.api.exceptions.InvalidInputException;
+import se.mathias.api.exceptions.NotFoundException;
+
+/**
+ * Servlet stack counterpart of {@link GlobalControllerExceptionHandler}, used when a service runs with the
+ * virtual-threads profile. Both produce the same {@link HttpErrorInfo} bodies.
+ */
+@RestControllerAdvice
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+class ServletControllerExceptionHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ServletControllerExceptionHandler.class);
+
+  private static final UrlPathHelper URL_PATH_HELPER = new UrlPathHelper();
+
+  @ResponseStatus(NOT_FOUND)
+  @ExceptionHandler(NotFoundException.class)
+  public @ResponseBody HttpErrorInfo handleNotFoundExceptions(
+    HttpServletRequest request, NotFoundException ex) {
+
+    return createHttpErrorInfo(NOT_FOUND, request, ex);
+  }
+
+  @ResponseStatus(UNPROCESSABLE_ENTITY)
+  @ExceptionHandler(InvalidInputException.class)
+  public @ResponseBody HttpErrorInfo handleInvalidInputException(
+    HttpServletRequest request, InvalidInputException ex) {
+
+    return createHttpErrorInfo(UNPROCESSABLE_ENTITY, request, ex);
+  }
+
+  @ResponseStatus(GATEWAY_TIMEOUT)
+  @ExceptionHandler(TimeoutException.class)
+  public @ResponseBody HttpErrorInfo handleTimeoutException(
+    HttpServletRequest request, TimeoutException ex) {
+
+    return createHttpErrorInfo(GATEWAY_TIMEOUT, request, ex);
+  }
+
+  private HttpErrorInfo createHttpErrorInfo(
+    HttpStatus httpStatus, HttpServletRequest request, Exception ex) {
+
+    final String path = URL_PATH_HELPER.getPathWithinApplication(request);
+    final String message = ex.getMessage();
+
+    LOG.debug("Returning HTTP status: {} for path: {}, message: {}", httpStatus, path, message);
+    return new HttpErrorInfo(httpStatus, path, message);
+  }
+}